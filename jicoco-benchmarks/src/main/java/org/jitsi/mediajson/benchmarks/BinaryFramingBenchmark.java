@@ -0,0 +1,110 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.mediajson.benchmarks;
+
+import org.jitsi.mediajson.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Compares the JSON and the binary framing of media events (see
+ * {@link MediaFormat#FRAMING}), encoding into and parsing from a reused
+ * buffer. The score is in frames per microsecond, so the time per frame is
+ * its reciprocal, and the {@code encode*} benchmarks also report the size:
+ * the {@code bytes} secondary result divided by the score is the number of
+ * bytes per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BinaryFramingBenchmark
+{
+    /** The size of the payload in bytes, before base64 encoding. */
+    @Param({ "160", "1280" })
+    public int payloadSize;
+
+    private BinaryMediaEvent event;
+
+    private String json;
+
+    private byte[] binary;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+    @Setup
+    public void setup()
+    {
+        byte[] payload = new byte[payloadSize];
+        new Random(0).nextBytes(payload);
+        event = new BinaryMediaEvent(
+            1,
+            new BinaryMedia("endpoint-audio", 1, 48000, ByteBuffer.wrap(payload), 127, false));
+        json = event.toJson();
+        binary = event.toBinary();
+    }
+
+    @Benchmark
+    public int encodeJson(Size size)
+    {
+        buffer.clear();
+        int bytes = event.writeTo(buffer);
+        size.bytes += bytes;
+        return bytes;
+    }
+
+    @Benchmark
+    public int encodeBinary(Size size)
+    {
+        buffer.clear();
+        int bytes = event.writeBinaryTo(buffer);
+        size.bytes += bytes;
+        return bytes;
+    }
+
+    @Benchmark
+    public Event parseJson()
+    {
+        return Event.Companion.parseWithBinaryPayload(json);
+    }
+
+    @Benchmark
+    public Event parseBinary()
+    {
+        return Event.Companion.parseBinary(ByteBuffer.wrap(binary), true);
+    }
+
+    /**
+     * Counts the size of the encoded frames.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Size
+    {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.mediajson.benchmarks;
+
+import org.jitsi.mediajson.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures encoding a media event for sending, as {@link Event#toJson()}
+ * followed by the conversion to UTF-8 bytes, and with the
+ * {@link Event#writeTo(ByteBuffer)} and {@link Event#writeTo(OutputStream)}
+ * methods which reuse the generator and the output buffer. Compare the bytes
+ * allocated per call ({@code gc.alloc.rate.norm}) as well as the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MediaJsonBenchmark
+{
+    /** The size of the payload in bytes, before base64 encoding. */
+    @Param({ "160", "1280" })
+    public int payloadSize;
+
+    private MediaEvent event;
+
+    private BinaryMediaEvent binaryEvent;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+
+    @Setup
+    public void setup()
+    {
+        byte[] payload = new byte[payloadSize];
+        new Random(0).nextBytes(payload);
+        event = new MediaEvent(
+            1,
+            new Media("endpoint-audio", 1, 48000, Base64.getEncoder().encodeToString(payload), 127, false));
+        binaryEvent = new BinaryMediaEvent(
+            1,
+            new BinaryMedia("endpoint-audio", 1, 48000, ByteBuffer.wrap(payload), 127, false));
+    }
+
+    @Benchmark
+    public byte[] toJson()
+    {
+        return event.toJson().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int writeToByteBuffer()
+    {
+        buffer.clear();
+        return event.writeTo(buffer);
+    }
+
+    @Benchmark
+    public int writeToOutputStream()
+    {
+        out.reset();
+        event.writeTo(out);
+        return out.size();
+    }
+
+    /**
+     * Writes a {@link BinaryMediaEvent}, whose payload is base64-encoded
+     * directly into the output.
+     */
+    @Benchmark
+    public int writeBinaryToByteBuffer()
+    {
+        buffer.clear();
+        return binaryEvent.writeTo(buffer);
+    }
+}
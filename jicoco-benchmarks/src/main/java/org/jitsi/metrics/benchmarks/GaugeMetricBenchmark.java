@@ -0,0 +1,97 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics.benchmarks;
+
+import io.prometheus.client.*;
+import org.jitsi.metrics.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures updates of a {@link LongGaugeMetric}, with and without labels, and
+ * of a {@link DoubleGaugeMetric}, and compares them with the implementation
+ * they replaced, which guarded a Prometheus {@link Gauge} with
+ * {@code synchronized}. Run with e.g. {@code -t 1} and {@code -t 8} to see the
+ * effect of contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class GaugeMetricBenchmark
+{
+    private LongGaugeMetric gauge;
+
+    private LongGaugeMetric.Child labeledChild;
+
+    private DoubleGaugeMetric doubleGauge;
+
+    private Gauge synchronizedGauge;
+
+    @Setup
+    public void setup()
+    {
+        gauge = new LongGaugeMetric("bench", "Help", "jmh");
+        labeledChild = new LongGaugeMetric("bench_labeled", "Help", "jmh", 0, List.of("endpoint"))
+            .child("endpoint");
+        doubleGauge = new DoubleGaugeMetric("bench_double", "Help", "jmh");
+        synchronizedGauge = Gauge.build("bench_sync", "Help").namespace("jmh").create();
+    }
+
+    @Benchmark
+    public long addAndGet()
+    {
+        return gauge.addAndGet(1);
+    }
+
+    @Benchmark
+    public void set()
+    {
+        gauge.set(42);
+    }
+
+    @Benchmark
+    public long labeledChildAddAndGet()
+    {
+        return labeledChild.addAndGet(1);
+    }
+
+    @Benchmark
+    public double doubleAddAndGet()
+    {
+        return doubleGauge.addAndGet(1.0);
+    }
+
+    /**
+     * The implementation {@link LongGaugeMetric#addAndGet} and
+     * {@link DoubleGaugeMetric#addAndGet} used before they held their values
+     * in {@link java.util.concurrent.atomic.AtomicLong}s.
+     */
+    @Benchmark
+    public double synchronizedAddAndGet()
+    {
+        synchronized (synchronizedGauge)
+        {
+            synchronizedGauge.inc(1.0);
+            return synchronizedGauge.get();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics.benchmarks;
+
+import org.jitsi.metrics.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures observing values in a {@link HistogramMetric}, with and without
+ * labels, and compares it with recording them in a
+ * {@link LogLinearHistogramMetric}. Run with e.g. {@code -t 1} and
+ * {@code -t 8} to see the effect of contention. The exemplar benchmarks show
+ * the cost of observations which are almost always sampled out. The async
+ * timer benchmark times a completed future from 8 threads at once, so
+ * {@code gc.alloc.rate.norm} shows what
+ * {@link LogLinearHistogramMetric.Child#timeAsync} allocates per call when its
+ * pooled timers are shared concurrently: only the stage returned by
+ * {@link CompletableFuture#whenComplete}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class HistogramMetricBenchmark
+{
+    private HistogramMetric histogram;
+
+    private HistogramMetric labeledHistogram;
+
+    private HistogramMetric.Child labeledChild;
+
+    private final List<String> labels = List.of("endpoint");
+
+    private LogLinearHistogramMetric logLinearHistogram;
+
+    private LogLinearHistogramMetric.Child logLinearChild;
+
+    private final CompletableFuture<Void> completed = CompletableFuture.completedFuture(null);
+
+    @Setup
+    public void setup()
+    {
+        double[] buckets = { 1, 5, 10, 50, 100, 500, 1000, 5000 };
+        histogram = new HistogramMetric("bench", "Help", "jmh", buckets);
+        labeledHistogram = new HistogramMetric("bench_labeled", "Help", "jmh", List.of("endpoint"), buckets);
+        labeledChild = labeledHistogram.child(labels);
+        logLinearHistogram = new LogLinearHistogramMetric("bench_log_linear", "Help", "jmh");
+        logLinearChild = logLinearHistogram.child();
+    }
+
+    @Benchmark
+    public void observe()
+    {
+        histogram.observe(ThreadLocalRandom.current().nextInt(10_000));
+    }
+
+    @Benchmark
+    public void labeledObserve()
+    {
+        labeledHistogram.observe(ThreadLocalRandom.current().nextInt(10_000), labels);
+    }
+
+    @Benchmark
+    public void labeledChildObserve()
+    {
+        labeledChild.observe(ThreadLocalRandom.current().nextInt(10_000));
+    }
+
+    @Benchmark
+    public void labeledChildObserveWithExemplar()
+    {
+        labeledChild.observeWithExemplar(ThreadLocalRandom.current().nextInt(10_000), "conference_id", "bench");
+    }
+
+    @Benchmark
+    public void logLinearRecord()
+    {
+        logLinearHistogram.record(ThreadLocalRandom.current().nextInt(10_000));
+    }
+
+    @Benchmark
+    public CompletableFuture<Void> logLinearTimeAsync()
+    {
+        return logLinearChild.timeAsync(completed);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics.benchmarks;
+
+import com.fasterxml.jackson.databind.*;
+import io.prometheus.client.*;
+import org.jitsi.metrics.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures the JSON export of a {@link MetricsContainer}, and compares it with
+ * the implementation it replaced, which built a map of the values and
+ * converted it to a Jackson tree. Compare the bytes allocated per call
+ * ({@code gc.alloc.rate.norm}) as well as the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonMetricsBenchmark
+{
+    @Param({ "30", "300" })
+    public int metricCount;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private MetricsContainer container;
+
+    private final List<Metric<?>> metrics = new ArrayList<>();
+
+    @Setup
+    public void setup()
+    {
+        container = new MetricsContainer(new CollectorRegistry(), "jmh");
+        for (int i = 0; i < metricCount / 3; i++)
+        {
+            metrics.add(container.registerCounter("counter_" + i, "Help", i));
+            metrics.add(container.registerLongGauge("gauge_" + i, "Help", i));
+            metrics.add(container.registerBooleanMetric("boolean_" + i, "Help", i % 2 == 0));
+        }
+    }
+
+    @Benchmark
+    public String jsonString()
+    {
+        return container.getJsonString();
+    }
+
+    @Benchmark
+    public String writeMetrics()
+    {
+        return container.writeMetrics(List.of("application/json"), Writer.nullWriter());
+    }
+
+    /**
+     * The implementation {@link MetricsContainer#getJsonString()} used before
+     * it wrote the metrics with a {@link com.fasterxml.jackson.core.JsonGenerator}.
+     */
+    @Benchmark
+    public String treeJsonString()
+    {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Metric<?> metric : metrics)
+        {
+            values.put(metric.getName(), metric.get());
+        }
+        return mapper.valueToTree(values).toString();
+    }
+}
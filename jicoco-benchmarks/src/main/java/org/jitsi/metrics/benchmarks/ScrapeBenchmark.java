@@ -0,0 +1,135 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics.benchmarks;
+
+import io.prometheus.client.*;
+import org.jitsi.metrics.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures full scrapes of a {@link MetricsContainer} through
+ * {@link MetricsContainer#getMetrics(List)} in each supported format, with
+ * {@link #seriesCount} labeled series split between a counter and a gauge.
+ * The {@code write*} benchmarks stream the Prometheus formats (including
+ * protobuf, which is only available as a stream) and also report the payload
+ * size: the {@code bytes} secondary result divided by the score is the number
+ * of bytes per scrape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScrapeBenchmark
+{
+    @Param({ "1000", "10000", "100000" })
+    public int seriesCount;
+
+    private MetricsContainer container;
+
+    @Setup
+    public void setup()
+    {
+        container = new MetricsContainer(new CollectorRegistry(), "jmh");
+        CounterMetric counter = container.registerCounter(
+            "packets", "Help", 0, List.of("endpoint", "direction"));
+        LongGaugeMetric gauge = container.registerLongGauge(
+            "bitrate", "Help", 0, List.of("endpoint", "direction"));
+        for (int i = 0; i < seriesCount / 4; i++)
+        {
+            for (String direction : List.of("send", "receive"))
+            {
+                List<String> labels = List.of("endpoint-" + i, direction);
+                counter.add(i, labels);
+                gauge.set(i * 1000L, labels);
+            }
+        }
+    }
+
+    @Benchmark
+    public String openMetrics()
+    {
+        return container.getMetrics(List.of("application/openmetrics-text")).getFirst();
+    }
+
+    @Benchmark
+    public String text()
+    {
+        return container.getMetrics(List.of("text/plain")).getFirst();
+    }
+
+    @Benchmark
+    public String json()
+    {
+        return container.getMetrics(List.of("application/json")).getFirst();
+    }
+
+    @Benchmark
+    public String writeOpenMetrics(Payload payload)
+    {
+        return container.writeMetrics(List.of("application/openmetrics-text"), payload.out);
+    }
+
+    @Benchmark
+    public String writeText(Payload payload)
+    {
+        return container.writeMetrics(List.of("text/plain"), payload.out);
+    }
+
+    @Benchmark
+    public String writeProtobuf(Payload payload)
+    {
+        return container.writeMetrics(
+            List.of("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily"),
+            payload.out);
+    }
+
+    /**
+     * Discards the scraped output, counting its size.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Payload
+    {
+        public long bytes;
+
+        private final OutputStream out = new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                bytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                bytes += len;
+            }
+        };
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.mediajson
+
+import com.fasterxml.jackson.core.JsonProcessingException
+import java.nio.BufferOverflowException
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.util.Base64
+
+/**
+ * A compact binary encoding of events, for connections which negotiated it with [MediaFormat.FRAMING]. Each event is
+ * encoded as one frame, which is expected to be delimited by the transport (e.g. a binary WebSocket message). The first
+ * byte of a frame holds the version of the framing in its high 4 bits ([VERSION], currently 0) and the type in its
+ * low 4 bits. Frames of any other version are rejected when parsing, so that the format can be changed by a later
+ * version. The types are:
+ *
+ * [TYPE_MEDIA]: a media event, with a fixed header (all numbers big-endian) followed by the tag and the raw payload,
+ * which extends to the end of the frame:
+ * ```
+ *  0: type          1 byte
+ *  1: flags         1 byte, FLAG_AUDIO_LEVEL | FLAG_VAD | FLAG_VAD_ACTIVE
+ *  2: audio level   1 byte, 0 unless FLAG_AUDIO_LEVEL is set
+ *  3: tag length    1 byte
+ *  4: sequence      4 bytes
+ *  8: chunk         4 bytes
+ * 12: timestamp     8 bytes
+ * 20: tag           UTF-8
+ *     payload
+ * ```
+ *
+ * [TYPE_PING] and [TYPE_PONG]: the type followed by the 4 byte id.
+ *
+ * [TYPE_JSON]: any other event, as its UTF-8 JSON following the type. Media events which do not fit the media header
+ * (a tag longer than [MAX_TAG_LENGTH] bytes, or an audio level outside 0..127) are encoded this way too, and so are
+ * those whose payload is not canonical base64 (padded, and with the unused bits of the last character zero), because
+ * decoding it into raw bytes would not give back the same payload when parsed.
+ */
+internal object BinaryFraming {
+    const val VERSION = 0
+
+    const val TYPE_JSON: Byte = 0
+    const val TYPE_MEDIA: Byte = 1
+    const val TYPE_PING: Byte = 2
+    const val TYPE_PONG: Byte = 3
+
+    private const val FLAG_AUDIO_LEVEL = 1
+    private const val FLAG_VAD = 2
+    private const val FLAG_VAD_ACTIVE = 4
+
+    private const val MEDIA_HEADER_LENGTH = 20
+    private const val MAX_TAG_LENGTH = 255
+
+    /** Returns the frame of [event]. */
+    fun toBytes(event: Event): ByteArray {
+        val capacity = when {
+            event is PingEvent || event is PongEvent -> 5
+            !hasMediaFrame(event) -> return jsonFrame(event)
+            event is MediaEvent -> MEDIA_HEADER_LENGTH + MAX_TAG_LENGTH + event.media.payload.length / 4 * 3
+            event is BinaryMediaEvent -> MEDIA_HEADER_LENGTH + MAX_TAG_LENGTH + event.media.payload.remaining()
+            else -> return jsonFrame(event)
+        }
+        val buffer = ByteBuffer.allocate(capacity)
+        write(event, buffer)
+        return buffer.array().copyOf(buffer.position())
+    }
+
+    /**
+     * Writes the frame of [event] into [buffer] and returns its size. If it does not fit, the position of [buffer] is
+     * restored and [BufferOverflowException] is thrown.
+     */
+    fun write(event: Event, buffer: ByteBuffer): Int {
+        val start = buffer.position()
+        try {
+            when {
+                event is MediaEvent && hasMediaFrame(event) -> with(event.media) {
+                    val bytes = Base64.getDecoder().decode(payload)
+                    writeMediaHeader(event.sequenceNumber, tag, chunk, timestamp, audioLevel, vad, buffer)
+                    buffer.put(bytes)
+                }
+                event is BinaryMediaEvent && hasMediaFrame(event) -> with(event.media) {
+                    writeMediaHeader(event.sequenceNumber, tag, chunk, timestamp, audioLevel, vad, buffer)
+                    buffer.put(payload.duplicate())
+                }
+                event is PingEvent -> buffer.put(TYPE_PING).putInt(event.id)
+                event is PongEvent -> buffer.put(TYPE_PONG).putInt(event.id)
+                else -> {
+                    buffer.put(TYPE_JSON)
+                    event.writeTo(buffer)
+                }
+            }
+        } catch (e: BufferOverflowException) {
+            buffer.position(start)
+            throw e
+        }
+        return buffer.position() - start
+    }
+
+    private fun jsonFrame(event: Event) = byteArrayOf(TYPE_JSON) + event.toJson().toByteArray()
+
+    /** Whether [event] is a media event which is encoded as a [TYPE_MEDIA] frame, see [TYPE_JSON]. */
+    private fun hasMediaFrame(event: Event) = when (event) {
+        is MediaEvent -> with(event.media) { fitsMediaHeader(tag, audioLevel) && isCanonicalBase64(payload) }
+        is BinaryMediaEvent -> fitsMediaHeader(event.media.tag, event.media.audioLevel)
+        else -> false
+    }
+
+    /** Whether [tag] and [audioLevel] can be written in the media header. */
+    private fun fitsMediaHeader(tag: String, audioLevel: Int?): Boolean {
+        if (audioLevel != null && audioLevel !in 0..127) {
+            return false
+        }
+        // A char takes at most 3 bytes in UTF-8 (a surrogate pair takes 4 for 2 chars), and at least one.
+        return tag.length * 3 <= MAX_TAG_LENGTH ||
+            tag.length <= MAX_TAG_LENGTH && tag.toByteArray().size <= MAX_TAG_LENGTH
+    }
+
+    /**
+     * Whether [payload] is base64 which decodes and encodes back to itself: padded, with only characters of the basic
+     * alphabet, and with the unused bits of the last character zero.
+     */
+    private fun isCanonicalBase64(payload: String): Boolean {
+        if (payload.length % 4 != 0) {
+            return false
+        }
+        val padding = when {
+            payload.endsWith("==") -> 2
+            payload.endsWith("=") -> 1
+            else -> 0
+        }
+        val end = payload.length - padding
+        for (i in 0 until end) {
+            if (base64Value(payload[i]) < 0) {
+                return false
+            }
+        }
+        return when (padding) {
+            0 -> true
+            1 -> base64Value(payload[end - 1]) and 0x3 == 0
+            else -> base64Value(payload[end - 1]) and 0xf == 0
+        }
+    }
+
+    /** Returns the value of the base64 character [c], or -1 if it is not one. */
+    private fun base64Value(c: Char): Int = when (c) {
+        in 'A'..'Z' -> c - 'A'
+        in 'a'..'z' -> c - 'a' + 26
+        in '0'..'9' -> c - '0' + 52
+        '+' -> 62
+        '/' -> 63
+        else -> -1
+    }
+
+    private fun writeMediaHeader(
+        sequenceNumber: Int,
+        tag: String,
+        chunk: Int,
+        timestamp: Long,
+        audioLevel: Int?,
+        vad: Boolean?,
+        buffer: ByteBuffer
+    ) {
+        var flags = 0
+        if (audioLevel != null) {
+            flags = flags or FLAG_AUDIO_LEVEL
+        }
+        if (vad != null) {
+            flags = flags or FLAG_VAD or (if (vad) FLAG_VAD_ACTIVE else 0)
+        }
+        // ASCII tags (the common case) are written without encoding them into a new array.
+        val tagBytes = if (tag.all { it.code < 0x80 }) null else tag.toByteArray()
+        val tagLength = tagBytes?.size ?: tag.length
+
+        buffer.put(TYPE_MEDIA).put(flags.toByte()).put((audioLevel ?: 0).toByte()).put(tagLength.toByte())
+        buffer.putInt(sequenceNumber).putInt(chunk).putLong(timestamp)
+        if (tagBytes == null) {
+            tag.forEach { buffer.put(it.code.toByte()) }
+        } else {
+            buffer.put(tagBytes)
+        }
+    }
+
+    /**
+     * Parses the frame in the remaining bytes of [buffer], consuming them. With [binaryPayload] media events are
+     * returned as [BinaryMediaEvent], with a copy of the payload. Throws [IllegalArgumentException] if the frame is
+     * truncated, its version or type is unknown, or it is a [TYPE_JSON] frame which is not a valid event (with the
+     * [JsonProcessingException] as the cause).
+     */
+    fun parse(buffer: ByteBuffer, binaryPayload: Boolean): Event = try {
+        val first = buffer.get().toInt() and 0xff
+        val version = first ushr 4
+        require(version == VERSION) { "Unsupported frame version: $version" }
+        when (val type = (first and 0xf).toByte()) {
+            TYPE_MEDIA -> parseMedia(buffer, binaryPayload)
+            TYPE_PING -> PingEvent(buffer.int)
+            TYPE_PONG -> PongEvent(buffer.int)
+            TYPE_JSON -> {
+                val json = Charsets.UTF_8.decode(buffer).toString()
+                if (binaryPayload) Event.parseWithBinaryPayload(json) else Event.parse(json)
+            }
+            else -> throw IllegalArgumentException("Unknown frame type: $type")
+        }
+    } catch (e: BufferUnderflowException) {
+        throw IllegalArgumentException("Truncated frame", e)
+    } catch (e: JsonProcessingException) {
+        throw IllegalArgumentException("Invalid JSON frame", e)
+    }
+
+    private fun parseMedia(buffer: ByteBuffer, binaryPayload: Boolean): Event {
+        val flags = buffer.get().toInt()
+        val audioLevel = buffer.get().toInt().takeIf { flags and FLAG_AUDIO_LEVEL != 0 }
+        val vad = if (flags and FLAG_VAD != 0) flags and FLAG_VAD_ACTIVE != 0 else null
+        val tagLength = buffer.get().toInt() and 0xff
+        val sequenceNumber = buffer.int
+        val chunk = buffer.int
+        val timestamp = buffer.long
+        if (buffer.remaining() < tagLength) {
+            throw BufferUnderflowException()
+        }
+        val tag = Charsets.UTF_8.decode(buffer.slice().limit(tagLength)).toString()
+        buffer.position(buffer.position() + tagLength)
+        return if (binaryPayload) {
+            val payload = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip()
+            BinaryMediaEvent(sequenceNumber, BinaryMedia(tag, chunk, timestamp, payload, audioLevel, vad))
+        } else {
+            val payload = String(Base64.getEncoder().encode(buffer).array(), Charsets.ISO_8859_1)
+            MediaEvent(sequenceNumber, Media(tag, chunk, timestamp, payload, audioLevel, vad))
+        }
+    }
+}
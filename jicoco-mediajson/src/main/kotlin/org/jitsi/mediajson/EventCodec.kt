@@ -0,0 +1,424 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.mediajson
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream
+import java.io.StringWriter
+import java.nio.ByteBuffer
+
+/**
+ * Encodes and decodes the events on the media path ([MediaEvent], [BinaryMediaEvent], [MediaBatchEvent], [PingEvent]
+ * and [PongEvent]) directly with a [JsonGenerator] and [JsonParser], without the reflection and polymorphic type
+ * handling of data binding. The format is the same as with data binding, including the numeric fields which are
+ * encoded as strings.
+ *
+ * Other events, and input which is not in the expected shape, are left to data binding: the functions here return
+ * `null` for them. In particular parsing only takes the fast path when `event` is the first field (as written by both
+ * encoders), and any value which data binding would coerce or reject makes it fall back, so that the result (or the
+ * error) is the same as with data binding. The exception is a media event parsed with a binary payload which is not
+ * valid base64: parsing fails with [InvalidPayloadException] right away, instead of parsing the input again with data
+ * binding only to fail on the same payload.
+ */
+internal object EventCodec {
+    val jsonFactory = JsonFactory()
+
+    /** The maximum length of a formatted [Long]. */
+    const val MAX_DIGITS = 20
+
+    /** Returns [event] as JSON, or `null` if it is not one of the events handled here. */
+    fun toJson(event: Event): String? {
+        val writer = when (event) {
+            is MediaEvent -> StringWriter(256 + event.media.payload.length)
+            is BinaryMediaEvent -> StringWriter(256 + event.media.payload.remaining() / 3 * 4)
+            is MediaBatchEvent -> StringWriter(256 + event.batch.frames.sumOf { it.payload.length + 64 })
+            is PingEvent, is PongEvent -> StringWriter(64)
+            else -> return null
+        }
+        jsonFactory.createGenerator(writer).use { write(event, it) }
+        return writer.toString()
+    }
+
+    /**
+     * Writes [event] to [generator], returning `false` if it is not one of the events handled here. [digits] is used to
+     * format numbers as strings, so that writing does not allocate when it is reused.
+     */
+    fun write(event: Event, generator: JsonGenerator, digits: CharArray = CharArray(MAX_DIGITS)): Boolean {
+        when (event) {
+            is MediaEvent -> with(generator) {
+                writeStartObject()
+                writeStringField("event", event.event)
+                writeDecimalStringField("sequenceNumber", event.sequenceNumber.toLong(), generator, digits)
+                writeFieldName("media")
+                with(event.media) {
+                    writeMedia(tag, chunk, timestamp, audioLevel, vad, generator, digits) {
+                        writeStringField("payload", payload)
+                    }
+                }
+                writeEndObject()
+            }
+            is BinaryMediaEvent -> with(generator) {
+                writeStartObject()
+                writeStringField("event", event.event)
+                writeDecimalStringField("sequenceNumber", event.sequenceNumber.toLong(), generator, digits)
+                writeFieldName("media")
+                with(event.media) {
+                    writeMedia(tag, chunk, timestamp, audioLevel, vad, generator, digits) {
+                        writePayload(payload, generator)
+                    }
+                }
+                writeEndObject()
+            }
+            is MediaBatchEvent -> with(generator) {
+                writeStartObject()
+                writeStringField("event", event.event)
+                writeNumberField("sequenceNumber", event.sequenceNumber)
+                writeFieldName("batch")
+                writeBatch(event.batch, generator)
+                writeEndObject()
+            }
+            is PingEvent -> writeId(event.event, event.id, generator)
+            is PongEvent -> writeId(event.event, event.id, generator)
+            else -> return false
+        }
+        return true
+    }
+
+    private inline fun writeMedia(
+        tag: String,
+        chunk: Int,
+        timestamp: Long,
+        audioLevel: Int?,
+        vad: Boolean?,
+        generator: JsonGenerator,
+        digits: CharArray,
+        writePayload: JsonGenerator.() -> Unit
+    ) = with(generator) {
+        writeStartObject()
+        writeStringField("tag", tag)
+        writeDecimalStringField("chunk", chunk.toLong(), generator, digits)
+        writeDecimalStringField("timestamp", timestamp, generator, digits)
+        writePayload()
+        audioLevel?.let { writeNumberField("audioLevel", it) }
+        vad?.let { writeBooleanField("vad", it) }
+        writeEndObject()
+    }
+
+    /** Writes the remaining bytes of [payload] base64-encoded, directly into the output of [generator]. */
+    private fun writePayload(payload: ByteBuffer, generator: JsonGenerator) {
+        generator.writeFieldName("payload")
+        if (payload.hasArray()) {
+            generator.writeBinary(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining())
+        } else {
+            generator.writeBinary(ByteBufferBackedInputStream(payload.duplicate()), payload.remaining())
+        }
+    }
+
+    private fun writeBatch(batch: MediaBatch, generator: JsonGenerator) = with(generator) {
+        writeStartObject()
+        writeStringField("tag", batch.tag)
+        writeNumberField("chunk", batch.chunk)
+        writeNumberField("timestamp", batch.timestamp)
+        writeArrayFieldStart("frames")
+        for (i in batch.frames.indices) {
+            val frame = batch.frames[i]
+            writeStartObject()
+            writeStringField("payload", frame.payload)
+            if (frame.chunkDelta != 0) {
+                writeNumberField("chunkDelta", frame.chunkDelta)
+            }
+            if (frame.timestampDelta != 0L) {
+                writeNumberField("timestampDelta", frame.timestampDelta)
+            }
+            frame.audioLevel?.let { writeNumberField("audioLevel", it) }
+            frame.vad?.let { writeBooleanField("vad", it) }
+            writeEndObject()
+        }
+        writeEndArray()
+        writeEndObject()
+    }
+
+    /** Writes [value] as a string of its decimal digits, formatted into [digits] instead of a new [String]. */
+    private fun writeDecimalStringField(name: String, value: Long, generator: JsonGenerator, digits: CharArray) {
+        // Formatted as a negative number, which also covers Long.MIN_VALUE.
+        var remaining = if (value < 0) value else -value
+        var start = digits.size
+        do {
+            digits[--start] = '0' - (remaining % 10).toInt()
+            remaining /= 10
+        } while (remaining != 0L)
+        if (value < 0) {
+            digits[--start] = '-'
+        }
+        generator.writeFieldName(name)
+        generator.writeString(digits, start, digits.size - start)
+    }
+
+    private fun writeId(event: String, id: Int, generator: JsonGenerator) = with(generator) {
+        writeStartObject()
+        writeStringField("event", event)
+        writeNumberField("id", id)
+        writeEndObject()
+    }
+
+    /**
+     * Parses [s] if it is one of the events handled here, otherwise (or if it is not as expected) returns `null`. With
+     * [binaryPayload] media events are returned as [BinaryMediaEvent], and [InvalidPayloadException] is thrown if the
+     * payload of one is not valid base64.
+     */
+    fun parse(s: String, binaryPayload: Boolean = false): Event? = try {
+        jsonFactory.createParser(s).use { parse(it, binaryPayload) }
+    } catch (e: InvalidPayloadException) {
+        throw e
+    } catch (e: JsonProcessingException) {
+        null
+    }
+
+    private fun parse(p: JsonParser, binaryPayload: Boolean): Event? {
+        if (p.nextToken() != JsonToken.START_OBJECT ||
+            p.nextToken() != JsonToken.FIELD_NAME ||
+            p.currentName() != "event" ||
+            p.nextToken() != JsonToken.VALUE_STRING
+        ) {
+            return null
+        }
+        return when (val type = p.text) {
+            "media" -> parseMediaEvent(p, binaryPayload)
+            "ping" -> parseId(p, type)?.let { PingEvent(it) }
+            "pong" -> parseId(p, type)?.let { PongEvent(it) }
+            "media-batch" -> parseMediaBatchEvent(p)
+            else -> null
+        }
+    }
+
+    private fun parseMediaEvent(p: JsonParser, binaryPayload: Boolean): Event? {
+        var sequenceNumber: Int? = null
+        var media: MediaFields? = null
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            val name = p.currentName()
+            p.nextToken()
+            when (name) {
+                "sequenceNumber" -> sequenceNumber = readInt(p) ?: return null
+                "media" -> media = parseMedia(p, binaryPayload) ?: return null
+                else -> if (!skipField(p, name, "media")) return null
+            }
+        }
+        if (sequenceNumber == null || media == null) {
+            return null
+        }
+        return with(media) {
+            if (binaryPayload) {
+                BinaryMediaEvent(sequenceNumber, BinaryMedia(tag, chunk, timestamp, binary!!, audioLevel, vad))
+            } else {
+                MediaEvent(sequenceNumber, Media(tag, chunk, timestamp, text!!, audioLevel, vad))
+            }
+        }
+    }
+
+    private class MediaFields(
+        val tag: String,
+        val chunk: Int,
+        val timestamp: Long,
+        val text: String?,
+        val binary: ByteBuffer?,
+        val audioLevel: Int?,
+        val vad: Boolean?
+    )
+
+    private fun parseMedia(p: JsonParser, binaryPayload: Boolean): MediaFields? {
+        if (p.currentToken() != JsonToken.START_OBJECT) {
+            return null
+        }
+        var tag: String? = null
+        var chunk: Int? = null
+        var timestamp: Long? = null
+        var text: String? = null
+        var binary: ByteBuffer? = null
+        var audioLevel: Int? = null
+        var vad: Boolean? = null
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            val name = p.currentName()
+            val token = p.nextToken()
+            when (name) {
+                "tag" -> tag = readString(p) ?: return null
+                "chunk" -> chunk = readInt(p) ?: return null
+                "timestamp" -> timestamp = readLong(p) ?: return null
+                "payload" -> when {
+                    token != JsonToken.VALUE_STRING -> return null
+                    // Decoded from the input buffer, without creating a String.
+                    binaryPayload -> binary = try {
+                        ByteBuffer.wrap(p.binaryValue)
+                    } catch (e: JsonParseException) {
+                        throw InvalidPayloadException(p, e)
+                    }
+                    else -> text = p.text
+                }
+                "audioLevel" -> audioLevel = when (token) {
+                    JsonToken.VALUE_NULL -> null
+                    JsonToken.VALUE_NUMBER_INT -> readInt(p) ?: return null
+                    else -> return null
+                }
+                "vad" -> vad = when (token) {
+                    JsonToken.VALUE_NULL -> null
+                    JsonToken.VALUE_TRUE -> true
+                    JsonToken.VALUE_FALSE -> false
+                    else -> return null
+                }
+                else -> p.skipChildren()
+            }
+        }
+        if (text == null && binary == null) {
+            return null
+        }
+        return MediaFields(
+            tag ?: return null,
+            chunk ?: return null,
+            timestamp ?: return null,
+            text,
+            binary,
+            audioLevel,
+            vad
+        )
+    }
+
+    private fun parseMediaBatchEvent(p: JsonParser): MediaBatchEvent? {
+        var sequenceNumber: Int? = null
+        var batch: MediaBatch? = null
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            val name = p.currentName()
+            p.nextToken()
+            when (name) {
+                "sequenceNumber" -> sequenceNumber = readInt(p) ?: return null
+                "batch" -> batch = parseBatch(p) ?: return null
+                else -> if (!skipField(p, name, "media-batch")) return null
+            }
+        }
+        return MediaBatchEvent(sequenceNumber ?: return null, batch ?: return null)
+    }
+
+    private fun parseBatch(p: JsonParser): MediaBatch? {
+        if (p.currentToken() != JsonToken.START_OBJECT) {
+            return null
+        }
+        var tag: String? = null
+        var chunk: Int? = null
+        var timestamp: Long? = null
+        var frames: MutableList<BatchFrame>? = null
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            val name = p.currentName()
+            val token = p.nextToken()
+            when (name) {
+                "tag" -> tag = readString(p) ?: return null
+                "chunk" -> chunk = readInt(p) ?: return null
+                "timestamp" -> timestamp = readLong(p) ?: return null
+                "frames" -> {
+                    if (token != JsonToken.START_ARRAY) {
+                        return null
+                    }
+                    frames = ArrayList()
+                    while (p.nextToken() != JsonToken.END_ARRAY) {
+                        frames.add(parseFrame(p) ?: return null)
+                    }
+                }
+                else -> p.skipChildren()
+            }
+        }
+        return MediaBatch(tag ?: return null, chunk ?: return null, timestamp ?: return null, frames ?: return null)
+    }
+
+    private fun parseFrame(p: JsonParser): BatchFrame? {
+        if (p.currentToken() != JsonToken.START_OBJECT) {
+            return null
+        }
+        var payload: String? = null
+        var chunkDelta = 0
+        var timestampDelta = 0L
+        var audioLevel: Int? = null
+        var vad: Boolean? = null
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            val name = p.currentName()
+            val token = p.nextToken()
+            when (name) {
+                "payload" -> payload = readString(p) ?: return null
+                "chunkDelta" -> chunkDelta = readInt(p) ?: return null
+                "timestampDelta" -> timestampDelta = readLong(p) ?: return null
+                "audioLevel" -> audioLevel = when (token) {
+                    JsonToken.VALUE_NULL -> null
+                    JsonToken.VALUE_NUMBER_INT -> readInt(p) ?: return null
+                    else -> return null
+                }
+                "vad" -> vad = when (token) {
+                    JsonToken.VALUE_NULL -> null
+                    JsonToken.VALUE_TRUE -> true
+                    JsonToken.VALUE_FALSE -> false
+                    else -> return null
+                }
+                else -> p.skipChildren()
+            }
+        }
+        return BatchFrame(payload ?: return null, chunkDelta, timestampDelta, audioLevel, vad)
+    }
+
+    private fun parseId(p: JsonParser, type: String): Int? {
+        var id: Int? = null
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            val name = p.currentName()
+            p.nextToken()
+            when (name) {
+                "id" -> id = readInt(p) ?: return null
+                else -> if (!skipField(p, name, type)) return null
+            }
+        }
+        return id
+    }
+
+    /**
+     * Skips the value of an unknown field. Returns `false` if it is a repeated `event` field which does not match
+     * [type], in which case the input is left to data binding.
+     */
+    private fun skipField(p: JsonParser, name: String, type: String): Boolean {
+        if (name == "event") {
+            return p.currentToken() == JsonToken.VALUE_STRING && p.text == type
+        }
+        p.skipChildren()
+        return true
+    }
+
+    private fun readString(p: JsonParser): String? = if (p.currentToken() == JsonToken.VALUE_STRING) p.text else null
+
+    /** Reads an int encoded as a number or as a string of digits. */
+    private fun readInt(p: JsonParser): Int? = when (p.currentToken()) {
+        JsonToken.VALUE_NUMBER_INT -> if (p.numberType == JsonParser.NumberType.INT) p.intValue else null
+        JsonToken.VALUE_STRING -> p.text.toIntOrNull()
+        else -> null
+    }
+
+    /** Reads a long encoded as a number or as a string of digits. */
+    private fun readLong(p: JsonParser): Long? = when (p.currentToken()) {
+        JsonToken.VALUE_NUMBER_INT -> if (p.numberType != JsonParser.NumberType.BIG_INTEGER) p.longValue else null
+        JsonToken.VALUE_STRING -> p.text.toLongOrNull()
+        else -> null
+    }
+}
+
+/** Thrown when the payload of a media event parsed with a binary payload is not valid base64. */
+internal class InvalidPayloadException(p: JsonParser?, cause: Throwable) :
+    JsonParseException(p, "Invalid base64 payload: ${cause.message}", cause)
@@ -0,0 +1,113 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.mediajson
+
+import com.fasterxml.jackson.core.JsonEncoding
+import com.fasterxml.jackson.core.JsonGenerator
+import java.io.OutputStream
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+
+/**
+ * Writes events as UTF-8 JSON with a [JsonGenerator] which is created once per thread and reused for all events the
+ * thread writes, retargeted to the output of each call. Together with [EventCodec] this writes media, ping and pong
+ * events without allocating in steady state. Other events are written with data binding, through the same generator.
+ *
+ * A writer whose generator failed (e.g. because the output threw) is discarded, since the generator may be left in the
+ * middle of an event.
+ */
+internal class EventWriter private constructor() {
+    private val target = TargetOutputStream()
+    private val bufferTarget = ByteBufferOutputStream()
+    private val digits = CharArray(EventCodec.MAX_DIGITS)
+    private val generator = EventCodec.jsonFactory.createGenerator(target, JsonEncoding.UTF8).apply {
+        // Events are written one after another as separate root values, without a separator.
+        setRootValueSeparator(null)
+    }
+
+    private fun write(event: Event, out: OutputStream) {
+        target.out = out
+        try {
+            if (!EventCodec.write(event, generator, digits)) {
+                objectMapper.writeValue(generator, event)
+            }
+            generator.flush()
+        } finally {
+            target.out = null
+        }
+    }
+
+    /** Forwards to [out], which is set for the duration of a write. */
+    private class TargetOutputStream : OutputStream() {
+        var out: OutputStream? = null
+
+        override fun write(b: Int) = out!!.write(b)
+        override fun write(b: ByteArray, off: Int, len: Int) = out!!.write(b, off, len)
+        override fun flush() = out!!.flush()
+    }
+
+    /** Puts into [buffer], which is set for the duration of a write. */
+    private class ByteBufferOutputStream : OutputStream() {
+        var buffer: ByteBuffer? = null
+
+        override fun write(b: Int) {
+            buffer!!.put(b.toByte())
+        }
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            buffer!!.put(b, off, len)
+        }
+    }
+
+    companion object {
+        private val writers = ThreadLocal.withInitial { EventWriter() }
+
+        /** Writes [event] to [out]. */
+        fun write(event: Event, out: OutputStream) {
+            val writer = writers.get()
+            try {
+                writer.write(event, out)
+            } catch (e: Throwable) {
+                writers.remove()
+                throw e
+            }
+        }
+
+        /**
+         * Writes [event] into [buffer] and returns the number of bytes written. If it does not fit, the position of
+         * [buffer] is restored and [BufferOverflowException] is thrown.
+         */
+        fun write(event: Event, buffer: ByteBuffer): Int {
+            val start = buffer.position()
+            val writer = writers.get()
+            writer.bufferTarget.buffer = buffer
+            try {
+                writer.write(event, writer.bufferTarget)
+            } catch (e: Throwable) {
+                writers.remove()
+                // Data binding wraps exceptions thrown by the output, e.g. in a JsonMappingException.
+                val overflow = generateSequence(e) { it.cause }.firstOrNull { it is BufferOverflowException }
+                if (overflow != null) {
+                    buffer.position(start)
+                    throw overflow as BufferOverflowException
+                }
+                throw e
+            } finally {
+                writer.bufferTarget.buffer = null
+            }
+            return buffer.position() - start
+        }
+    }
+}
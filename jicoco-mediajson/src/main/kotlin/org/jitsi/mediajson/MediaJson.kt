@@ -31,8 +31,11 @@ import com.fasterxml.jackson.databind.SerializerProvider
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize
 import com.fasterxml.jackson.databind.annotation.JsonSerialize
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.Base64
 
-private val objectMapper = jacksonObjectMapper().apply {
+internal val objectMapper = jacksonObjectMapper().apply {
     configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
     setDefaultPropertyInclusion(JsonInclude.Include.NON_NULL)
 }
@@ -46,6 +49,7 @@ private val objectMapper = jacksonObjectMapper().apply {
 @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "event")
 @JsonSubTypes(
     JsonSubTypes.Type(value = MediaEvent::class, name = "media"),
+    JsonSubTypes.Type(value = MediaBatchEvent::class, name = "media-batch"),
     JsonSubTypes.Type(value = PingEvent::class, name = "ping"),
     JsonSubTypes.Type(value = PongEvent::class, name = "pong"),
     JsonSubTypes.Type(value = StartEvent::class, name = "start"),
@@ -54,10 +58,58 @@ private val objectMapper = jacksonObjectMapper().apply {
     JsonSubTypes.Type(value = InfoEvent::class, name = "info"),
 )
 sealed class Event(val event: String) {
-    fun toJson(): String = objectMapper.writeValueAsString(this)
+    /** Media, ping and pong events are encoded by [EventCodec], other events with data binding. */
+    fun toJson(): String = EventCodec.toJson(this) ?: objectMapper.writeValueAsString(this)
+
+    /**
+     * Writes this event to [out] as UTF-8 JSON, the same as [toJson]. It uses a generator reused by the calling thread,
+     * and does not allocate for media, ping and pong events.
+     */
+    fun writeTo(out: OutputStream) = EventWriter.write(this, out)
+
+    /**
+     * Writes this event into [buffer] as UTF-8 JSON, the same as [toJson], and returns the number of bytes written.
+     * If it does not fit, the position of [buffer] is left unchanged and [java.nio.BufferOverflowException] is thrown.
+     */
+    fun writeTo(buffer: ByteBuffer): Int = EventWriter.write(this, buffer)
+
+    /** Returns this event in the binary framing, see [MediaFormat.FRAMING]. */
+    fun toBinary(): ByteArray = BinaryFraming.toBytes(this)
+
+    /**
+     * Writes this event into [buffer] in the binary framing, see [MediaFormat.FRAMING], and returns the number of
+     * bytes written. If it does not fit, the position of [buffer] is left unchanged and
+     * [java.nio.BufferOverflowException] is thrown.
+     */
+    fun writeBinaryTo(buffer: ByteBuffer): Int = BinaryFraming.write(this, buffer)
+
     companion object {
-        fun parse(s: String): Event = objectMapper.readValue(s, Event::class.java)
-        fun parse(s: List<String>): List<Event> = s.map { objectMapper.readValue(it, Event::class.java) }
+        fun parse(s: String): Event = EventCodec.parse(s) ?: objectMapper.readValue(s, Event::class.java)
+        fun parse(s: List<String>): List<Event> = s.map { parse(it) }
+
+        /**
+         * Like [parse], but media events are returned as [BinaryMediaEvent], with the payload decoded directly from
+         * the input. Throws [com.fasterxml.jackson.core.JsonParseException] if the payload is not valid base64, like
+         * for any other invalid input.
+         */
+        fun parseWithBinaryPayload(s: String): Event = EventCodec.parse(s, binaryPayload = true)
+            ?: when (val event = objectMapper.readValue(s, Event::class.java)) {
+                is MediaEvent -> try {
+                    BinaryMediaEvent(event.sequenceNumber, event.media.toBinaryMedia())
+                } catch (e: IllegalArgumentException) {
+                    throw InvalidPayloadException(null, e)
+                }
+                else -> event
+            }
+
+        /**
+         * Parses an event in the binary framing (see [MediaFormat.FRAMING]) from the remaining bytes of [buffer]. With
+         * [binaryPayload] media events are returned as [BinaryMediaEvent]. Throws [IllegalArgumentException] if the
+         * frame is not valid.
+         */
+        @JvmOverloads
+        fun parseBinary(buffer: ByteBuffer, binaryPayload: Boolean = false): Event =
+            BinaryFraming.parse(buffer, binaryPayload)
     }
 }
 
@@ -68,6 +120,26 @@ data class MediaEvent(
     val media: Media
 ) : Event("media")
 
+/**
+ * A [MediaEvent] which carries its payload as bytes, see [BinaryMedia]. It is encoded as the same JSON as [MediaEvent]
+ * and, like [SessionEndEvent], it is not registered in [Event]'s subtypes: it is parsed with
+ * [Event.parseWithBinaryPayload].
+ */
+data class BinaryMediaEvent(
+    val sequenceNumber: Int,
+    val media: BinaryMedia
+) : Event("media")
+
+/**
+ * Carries consecutive frames of one source, which would otherwise be sent as separate [MediaEvent]s, in one message.
+ * It is not part of the VoxImplant format, so it is only sent to peers which negotiated it with
+ * [MediaFormat.MAX_BATCH_FRAMES], and its numeric fields are natural JSON numbers.
+ */
+data class MediaBatchEvent(
+    val sequenceNumber: Int,
+    val batch: MediaBatch
+) : Event("media-batch")
+
 data class StartEvent(
     @JsonSerialize(using = Int2StringSerializer::class)
     @JsonDeserialize(using = String2IntDeserializer::class)
@@ -150,7 +222,35 @@ data class MediaFormat(
     val sampleRate: Int,
     val channels: Int,
     var parameters: Map<String, String>? = null
-)
+) {
+    /**
+     * The maximum number of frames in a [MediaBatchEvent] the peer accepts, as set in [parameters] with
+     * [MAX_BATCH_FRAMES], or 1 if it does not accept [MediaBatchEvent]s.
+     */
+    fun maxBatchFrames(): Int = parameters?.get(MAX_BATCH_FRAMES)?.toIntOrNull()?.coerceAtLeast(1) ?: 1
+
+    /** Whether the peer selected the binary framing with [FRAMING]. */
+    fun binaryFraming(): Boolean = parameters?.get(FRAMING) == FRAMING_BINARY
+
+    companion object {
+        /**
+         * The parameter with which a peer announces in its [StartEvent] that it accepts [MediaBatchEvent]s, with the
+         * maximum number of frames in a batch as the value.
+         */
+        const val MAX_BATCH_FRAMES = "maxBatchFrames"
+
+        /**
+         * The parameter with which a peer selects the framing of the events sent to it on the connection: JSON (the
+         * default) or, with [FRAMING_BINARY], a binary encoding (see [Event.toBinary]) in which media events carry
+         * their payload as raw bytes instead of base64, and numbers in a fixed size header instead of strings. Events
+         * other than media, ping and pong events are still encoded as JSON inside the binary frame.
+         */
+        const val FRAMING = "framing"
+
+        /** The value of [FRAMING] which selects the binary framing. */
+        const val FRAMING_BINARY = "binary"
+    }
+}
 data class Start(
     val tag: String,
     val mediaFormat: MediaFormat,
@@ -219,6 +319,94 @@ data class Media(
      * header extension. Null when the sender did not include the extension.
      */
     val vad: Boolean? = null
+) {
+    /** Returns this media with its payload decoded from base64. */
+    fun toBinaryMedia() =
+        BinaryMedia(tag, chunk, timestamp, ByteBuffer.wrap(Base64.getDecoder().decode(payload)), audioLevel, vad)
+}
+
+/**
+ * A [Media] whose payload is the remaining bytes of [payload] instead of a base64 string. The payload is base64-encoded
+ * directly into the output when the event is written, and decoded directly from the input when it is parsed, without
+ * going through an intermediate [String]. The position of [payload] is not changed by either.
+ */
+data class BinaryMedia(
+    val tag: String,
+    val chunk: Int,
+    val timestamp: Long,
+    val payload: ByteBuffer,
+    val audioLevel: Int? = null,
+    val vad: Boolean? = null
+) {
+    /** Returns this media with its payload encoded as base64. */
+    fun toMedia() = Media(
+        tag,
+        chunk,
+        timestamp,
+        String(Base64.getEncoder().encode(payload.duplicate()).array(), Charsets.ISO_8859_1),
+        audioLevel,
+        vad
+    )
+}
+
+/**
+ * Consecutive frames of the source [tag]. [chunk] and [timestamp] are those of the first frame, and the frames which
+ * follow it carry the difference to the previous frame's, so that the common case of consecutive chunks 20 ms apart
+ * costs only a few bytes per frame.
+ */
+data class MediaBatch(
+    val tag: String,
+    val chunk: Int,
+    val timestamp: Long,
+    val frames: List<BatchFrame>
+) {
+    /** Returns the frames of this batch as separate [Media]. */
+    fun toMedia(): List<Media> {
+        var chunk = chunk
+        var timestamp = timestamp
+        return frames.mapIndexed { i, frame ->
+            if (i > 0) {
+                chunk += frame.chunkDelta
+                timestamp += frame.timestampDelta
+            }
+            Media(tag, chunk, timestamp, frame.payload, frame.audioLevel, frame.vad)
+        }
+    }
+
+    companion object {
+        /** Returns a batch of [media], which must be of the same source. */
+        @JvmStatic
+        fun of(media: List<Media>): MediaBatch {
+            require(media.isNotEmpty()) { "A batch needs at least one frame" }
+            val first = media[0]
+            val frames = media.mapIndexed { i, frame ->
+                require(frame.tag == first.tag) { "All frames of a batch must have the same tag" }
+                val previous = media[maxOf(i - 1, 0)]
+                BatchFrame(
+                    frame.payload,
+                    frame.chunk - previous.chunk,
+                    frame.timestamp - previous.timestamp,
+                    frame.audioLevel,
+                    frame.vad
+                )
+            }
+            return MediaBatch(first.tag, first.chunk, first.timestamp, frames)
+        }
+    }
+}
+
+/**
+ * A frame in a [MediaBatch]. [chunkDelta] and [timestampDelta] are relative to the previous frame (and 0 for the first
+ * frame), and are omitted when 0.
+ */
+data class BatchFrame(
+    val payload: String,
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    val chunkDelta: Int = 0,
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    val timestampDelta: Long = 0,
+    val audioLevel: Int? = null,
+    val vad: Boolean? = null
 )
 
 class Int2StringSerializer : JsonSerializer<Int>() {
@@ -15,6 +15,8 @@
  */
 package org.jitsi.mediajson
 
+import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.core.JsonProcessingException
 import com.fasterxml.jackson.databind.exc.InvalidFormatException
 import com.fasterxml.jackson.databind.node.ArrayNode
 import com.fasterxml.jackson.databind.node.ObjectNode
@@ -23,7 +25,12 @@ import io.kotest.assertions.throwables.shouldThrow
 import io.kotest.core.spec.style.ShouldSpec
 import io.kotest.matchers.nulls.shouldNotBeNull
 import io.kotest.matchers.shouldBe
+import io.kotest.matchers.string.shouldStartWith
 import io.kotest.matchers.types.shouldBeInstanceOf
+import java.io.ByteArrayOutputStream
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+import java.util.Base64
 
 class MediaJsonTest : ShouldSpec() {
     val mapper = jacksonObjectMapper()
@@ -238,6 +245,276 @@ class MediaJsonTest : ShouldSpec() {
                 (parsed === event) shouldBe false
             }
         }
+        context("Streaming codec") {
+            val event = MediaEvent(seq, Media(tag, 1, 0x1_0000_ffff, "AAAA", audioLevel = 5, vad = false))
+
+            context("Serializing") {
+                event.toJson() shouldBe
+                    """{"event":"media","sequenceNumber":"123","media":{"tag":"t","chunk":"1",""" +
+                    """"timestamp":"4295032831","payload":"AAAA","audioLevel":5,"vad":false}}"""
+                PingEvent(4).toJson() shouldBe """{"event":"ping","id":4}"""
+                PongEvent(5).toJson() shouldBe """{"event":"pong","id":5}"""
+                EventCodec.toJson(SessionEndEvent()) shouldBe null
+            }
+            context("Parsing numbers, unknown fields and fields in any order") {
+                val json = """
+                    {
+                        "event": "media",
+                        "media": {
+                            "payload": "AAAA",
+                            "extra": { "a": [1, 2] },
+                            "timestamp": 4295032831,
+                            "chunk": 1,
+                            "vad": false,
+                            "tag": "t",
+                            "audioLevel": 5
+                        },
+                        "sequenceNumber": 123,
+                        "event": "media"
+                    }
+                """.trimIndent()
+                EventCodec.parse(json) shouldBe event
+                Event.parse(json) shouldBe event
+            }
+            context("Falling back to data binding") {
+                val json = """{"sequenceNumber":"123","media":{"tag":"t","chunk":"1","timestamp":"4295032831",""" +
+                    """"payload":"AAAA","audioLevel":5,"vad":false},"event":"media"}"""
+                EventCodec.parse(json) shouldBe null
+                Event.parse(json) shouldBe event
+                EventCodec.parse("""{"event":"start","sequenceNumber":"1","start":{}}""") shouldBe null
+                EventCodec.parse("""{"event":"ping","id":"x"}""") shouldBe null
+            }
+        }
+        context("Binary payload") {
+            val bytes = ByteArray(100) { it.toByte() }
+            val media = Media(tag, 1, 2, Base64.getEncoder().encodeToString(bytes), audioLevel = 3)
+            val event = MediaEvent(seq, media)
+
+            context("Serializing") {
+                // A slice of a larger array, and a direct buffer.
+                val array = ByteBuffer.wrap(ByteArray(110).also { bytes.copyInto(it, 5) }, 5, 100).slice()
+                val direct = ByteBuffer.allocateDirect(100).put(bytes).flip()
+                listOf(array, direct).forEach { payload ->
+                    BinaryMediaEvent(seq, BinaryMedia(tag, 1, 2, payload, audioLevel = 3)).toJson() shouldBe
+                        event.toJson()
+                    payload.position() shouldBe 0
+                    payload.remaining() shouldBe 100
+                }
+            }
+            context("Parsing") {
+                val parsed = Event.parseWithBinaryPayload(event.toJson())
+                parsed.shouldBeInstanceOf<BinaryMediaEvent>()
+                parsed.sequenceNumber shouldBe seq
+                parsed.media shouldBe BinaryMedia(tag, 1, 2, ByteBuffer.wrap(bytes), audioLevel = 3)
+                parsed.media.toMedia() shouldBe media
+                media.toBinaryMedia() shouldBe parsed.media
+            }
+            context("Parsing with data binding") {
+                val json = """{"sequenceNumber":"$seq","media":{"tag":"t","chunk":"1","timestamp":"2",""" +
+                    """"payload":"${media.payload}","audioLevel":3},"event":"media"}"""
+                Event.parseWithBinaryPayload(json) shouldBe
+                    BinaryMediaEvent(seq, BinaryMedia(tag, 1, 2, ByteBuffer.wrap(bytes), audioLevel = 3))
+                Event.parseWithBinaryPayload(PingEvent(1).toJson()) shouldBe PingEvent(1)
+            }
+            context("Parsing a payload which is not valid base64") {
+                val invalid = MediaEvent(seq, media.copy(payload = "not base64!")).toJson()
+                val reordered = """{"sequenceNumber":"$seq","media":{"tag":"t","chunk":"1","timestamp":"2",""" +
+                    """"payload":"not base64!"},"event":"media"}"""
+                listOf(invalid, reordered).forEach {
+                    shouldThrow<JsonParseException> {
+                        Event.parseWithBinaryPayload(it)
+                    }.message shouldStartWith "Invalid base64 payload"
+                    Event.parse(it).shouldBeInstanceOf<MediaEvent>().media.payload shouldBe "not base64!"
+                }
+            }
+        }
+        context("Writing to bytes") {
+            val events = listOf(
+                MediaEvent(seq, Media(tag, Int.MIN_VALUE, Long.MIN_VALUE, "AAAA", audioLevel = 5)),
+                MediaEvent(seq, Media("ü", 0, Long.MAX_VALUE, "AAAA")),
+                BinaryMediaEvent(-1, BinaryMedia(tag, 1, 2, ByteBuffer.wrap(byteArrayOf(1, 2, 3)))),
+                PingEvent(1),
+                StartEvent(seq, Start(tag, MediaFormat("opus", 48000, 2))),
+                SourcesEvent(listOf("a"), listOf("b"))
+            )
+            val expected = events.map { it.toJson().toByteArray() }
+
+            context("To an OutputStream") {
+                events.forEachIndexed { i, event ->
+                    val out = ByteArrayOutputStream()
+                    event.writeTo(out)
+                    out.toByteArray().toList() shouldBe expected[i].toList()
+                }
+            }
+            context("To a ByteBuffer") {
+                val buffer = ByteBuffer.allocate(4096)
+                events.forEachIndexed { i, event ->
+                    event.writeTo(buffer) shouldBe expected[i].size
+                }
+                buffer.flip()
+                val bytes = ByteArray(buffer.remaining()).also { buffer.get(it) }
+                bytes.toList() shouldBe expected.flatMap { it.toList() }
+            }
+            context("To a ByteBuffer which is too small") {
+                val buffer = ByteBuffer.allocate(expected[0].size - 1).position(1)
+                shouldThrow<BufferOverflowException> {
+                    events[0].writeTo(buffer)
+                }
+                buffer.position() shouldBe 1
+                // The thread can still write afterwards.
+                events[3].writeTo(buffer) shouldBe expected[3].size
+            }
+            context("A large event to a ByteBuffer which is too small") {
+                // Larger than the buffer of the generator, so that it overflows while data binding writes it.
+                val info = InfoEvent().put("data", "x".repeat(20_000))
+                val buffer = ByteBuffer.allocate(10_000).put(1)
+                shouldThrow<BufferOverflowException> {
+                    info.writeTo(buffer)
+                }
+                buffer.position() shouldBe 1
+                shouldThrow<BufferOverflowException> {
+                    info.writeBinaryTo(buffer)
+                }
+                buffer.position() shouldBe 1
+                info.writeTo(ByteBuffer.allocate(30_000)) shouldBe info.toJson().length
+            }
+        }
+        context("MediaBatchEvent") {
+            val media = List(3) { Media(tag, 10 + it, 48000L + 960 * it, "p$it", audioLevel = it) }
+            val event = MediaBatchEvent(seq, MediaBatch.of(media))
+
+            context("Delta encoding") {
+                event.batch.chunk shouldBe 10
+                event.batch.timestamp shouldBe 48000
+                event.batch.frames.map { it.chunkDelta } shouldBe listOf(0, 1, 1)
+                event.batch.frames.map { it.timestampDelta } shouldBe listOf(0L, 960L, 960L)
+                event.batch.toMedia() shouldBe media
+                shouldThrow<IllegalArgumentException> {
+                    MediaBatch.of(listOf(media[0], media[1].copy(tag = "other")))
+                }
+            }
+            context("Serializing") {
+                event.toJson() shouldBe
+                    """{"event":"media-batch","sequenceNumber":123,"batch":{"tag":"t","chunk":10,"timestamp":48000,""" +
+                    """"frames":[{"payload":"p0","audioLevel":0},""" +
+                    """{"payload":"p1","chunkDelta":1,"timestampDelta":960,"audioLevel":1},""" +
+                    """{"payload":"p2","chunkDelta":1,"timestampDelta":960,"audioLevel":2}]}}"""
+                mapper.readTree(event.toJson()) shouldBe mapper.readTree(objectMapper.writeValueAsString(event))
+            }
+            context("Parsing") {
+                Event.parse(event.toJson()) shouldBe event
+                val json = """{"sequenceNumber":"123","batch":{"tag":"t","chunk":"10","timestamp":48000,""" +
+                    """"frames":[{"payload":"p0","audioLevel":0},""" +
+                    """{"payload":"p1","chunkDelta":1,"timestampDelta":960,"audioLevel":1},""" +
+                    """{"payload":"p2","chunkDelta":1,"timestampDelta":960,"audioLevel":2}]},"event":"media-batch"}"""
+                Event.parse(json) shouldBe event
+            }
+            context("Negotiation") {
+                MediaFormat("opus", 48000, 2).maxBatchFrames() shouldBe 1
+                MediaFormat("opus", 48000, 2, mapOf(MediaFormat.MAX_BATCH_FRAMES to "5")).maxBatchFrames() shouldBe 5
+                MediaFormat("opus", 48000, 2, mapOf(MediaFormat.MAX_BATCH_FRAMES to "x")).maxBatchFrames() shouldBe 1
+            }
+        }
+        context("Binary framing") {
+            val bytes = ByteArray(160) { it.toByte() }
+            val payload = Base64.getEncoder().encodeToString(bytes)
+
+            context("Media events") {
+                listOf(
+                    MediaEvent(seq, Media(tag, 1, 0x1_0000_ffff, payload)),
+                    MediaEvent(-1, Media("ü", Int.MIN_VALUE, Long.MIN_VALUE, payload, audioLevel = 127, vad = true)),
+                    MediaEvent(seq, Media(tag, 1, 2, "", audioLevel = 0, vad = false))
+                ).forEach { event ->
+                    val frame = event.toBinary()
+                    frame.size shouldBe 20 + event.media.tag.toByteArray().size +
+                        Base64.getDecoder().decode(event.media.payload).size
+                    Event.parseBinary(ByteBuffer.wrap(frame)) shouldBe event
+                    Event.parseBinary(ByteBuffer.wrap(frame), binaryPayload = true) shouldBe
+                        BinaryMediaEvent(event.sequenceNumber, event.media.toBinaryMedia())
+                }
+            }
+            context("Binary media events") {
+                val event = BinaryMediaEvent(seq, BinaryMedia(tag, 1, 2, ByteBuffer.wrap(bytes, 10, 100)))
+                val buffer = ByteBuffer.allocate(1000).put(0)
+                event.writeBinaryTo(buffer) shouldBe 20 + 1 + 100
+                event.media.payload.position() shouldBe 10
+                buffer.flip().get()
+                Event.parseBinary(buffer, binaryPayload = true) shouldBe event
+                buffer.remaining() shouldBe 0
+            }
+            context("Other events") {
+                listOf(
+                    PingEvent(1),
+                    PongEvent(Int.MAX_VALUE),
+                    StartEvent(seq, Start(tag, MediaFormat("opus", 48000, 2, mapOf("k" to "v")))),
+                    MediaBatchEvent(seq, MediaBatch.of(listOf(Media(tag, 1, 2, payload))))
+                ).forEach { event ->
+                    Event.parseBinary(ByteBuffer.wrap(event.toBinary())) shouldBe event
+                }
+                PingEvent(1).toBinary().size shouldBe 5
+
+                val info = InfoEvent().put("version", "1.0")
+                val parsed = Event.parseBinary(ByteBuffer.wrap(info.toBinary()))
+                parsed.shouldBeInstanceOf<InfoEvent>()
+                parsed.getAdditionalProperties() shouldBe mapOf("version" to "1.0")
+            }
+            context("Media events with a payload which is not canonical base64") {
+                listOf("AQ", "AR==", "AQI=AQI=", "not base64!").forEach {
+                    val event = MediaEvent(seq, Media(tag, 1, 2, it))
+                    val frame = event.toBinary()
+                    frame[0] shouldBe BinaryFraming.TYPE_JSON
+                    Event.parseBinary(ByteBuffer.wrap(frame)) shouldBe event
+                    val buffer = ByteBuffer.allocate(1000)
+                    event.writeBinaryTo(buffer) shouldBe frame.size
+                    Event.parseBinary(buffer.flip()) shouldBe event
+                }
+            }
+            context("A buffer which is too small") {
+                val buffer = ByteBuffer.allocate(100)
+                shouldThrow<BufferOverflowException> {
+                    MediaEvent(seq, Media(tag, 1, 2, payload)).writeBinaryTo(buffer)
+                }
+                buffer.position() shouldBe 0
+            }
+            context("Media events which do not fit the media header") {
+                listOf(
+                    MediaEvent(seq, Media(tag, 1, 2, payload, audioLevel = 128)),
+                    MediaEvent(seq, Media(tag, 1, 2, payload, audioLevel = -1)),
+                    MediaEvent(seq, Media("t".repeat(256), 1, 2, payload)),
+                    MediaEvent(seq, Media("ü".repeat(128), 1, 2, payload))
+                ).forEach { event ->
+                    val frame = event.toBinary()
+                    frame[0] shouldBe BinaryFraming.TYPE_JSON
+                    Event.parseBinary(ByteBuffer.wrap(frame)) shouldBe event
+                    val binary = BinaryMediaEvent(event.sequenceNumber, event.media.toBinaryMedia())
+                    val buffer = ByteBuffer.allocate(1000)
+                    binary.writeBinaryTo(buffer)
+                    buffer.get(0) shouldBe BinaryFraming.TYPE_JSON
+                    Event.parseBinary(buffer.flip(), binaryPayload = true) shouldBe binary
+                }
+                MediaEvent(seq, Media("ü".repeat(127), 1, 2, payload)).toBinary()[0] shouldBe BinaryFraming.TYPE_MEDIA
+            }
+            context("Invalid frames") {
+                shouldThrow<IllegalArgumentException> {
+                    Event.parseBinary(ByteBuffer.wrap(byteArrayOf(15)))
+                }
+                shouldThrow<IllegalArgumentException> {
+                    Event.parseBinary(ByteBuffer.wrap(PingEvent(1).toBinary().also { it[0] = 0x12 }))
+                }.message shouldBe "Unsupported frame version: 1"
+                val frame = MediaEvent(seq, Media(tag, 1, 2, payload)).toBinary()
+                shouldThrow<IllegalArgumentException> {
+                    Event.parseBinary(ByteBuffer.wrap(frame, 0, 20))
+                }
+                shouldThrow<IllegalArgumentException> {
+                    Event.parseBinary(ByteBuffer.wrap(byteArrayOf(BinaryFraming.TYPE_JSON) + "{".toByteArray()))
+                }.cause.shouldBeInstanceOf<JsonProcessingException>()
+            }
+            context("Negotiation") {
+                MediaFormat("opus", 48000, 2).binaryFraming() shouldBe false
+                MediaFormat("opus", 48000, 2, mapOf(MediaFormat.FRAMING to MediaFormat.FRAMING_BINARY))
+                    .binaryFraming() shouldBe true
+            }
+        }
         context("TranscriptionResultEvent") {
             val event = TranscriptionResultEvent()
 
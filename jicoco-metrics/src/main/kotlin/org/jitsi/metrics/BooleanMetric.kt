@@ -15,12 +15,16 @@
  */
 package org.jitsi.metrics
 
+import com.fasterxml.jackson.core.JsonGenerator
 import io.prometheus.client.CollectorRegistry
-import io.prometheus.client.Gauge
 
 /**
- * A metric that represents booleans using Prometheus [Gauges][Gauge].
+ * A metric that represents booleans using Prometheus [Gauges][io.prometheus.client.Gauge].
  * A non-zero value corresponds to `true`, zero corresponds to `false`.
+ * The number of series can be bounded with [SeriesLimits].
+ *
+ * The value is held in a [Child] per set of labels, which is created once and returned by every lookup, so updates
+ * allocate nothing and take no lock.
  */
 class BooleanMetric @JvmOverloads constructor(
     /** the name of this metric */
@@ -33,47 +37,58 @@ class BooleanMetric @JvmOverloads constructor(
     internal val initialValue: Boolean = false,
     /** Label names for this metric. If non-empty, the initial value must be false and all get/update calls MUST
      * specify values for the labels. Calls to simply get() or set() will fail with an exception. */
-    val labelNames: List<String> = emptyList()
+    val labelNames: List<String> = emptyList(),
+    /** Limits on the series of this metric, when it has labels. */
+    limits: SeriesLimits = SeriesLimits.NONE
 ) : Metric<Boolean>() {
-    private val gauge = run {
-        val builder = Gauge.build(name, help).namespace(namespace)
-        if (labelNames.isNotEmpty()) {
-            builder.labelNames(*labelNames.toTypedArray())
-            if (initialValue) {
-                throw IllegalArgumentException("Cannot set an initial value for a labeled gauge")
-            }
+    private val gauge = GaugeCollector(
+        name,
+        help,
+        namespace,
+        labelNames,
+        { Child() },
+        { if (it.get()) 1.0 else 0.0 },
+        limits
+    ).apply {
+        if (labelNames.isNotEmpty() && initialValue) {
+            throw IllegalArgumentException("Cannot set an initial value for a labeled gauge")
         }
-        builder.create().apply {
-            if (initialValue) {
-                set(1.0)
-            }
+        if (initialValue) {
+            noLabels().set(true)
         }
     }
 
-    override val supportsJson: Boolean = labelNames.isEmpty()
-    override fun get() = gauge.get() != 0.0
-    fun get(labels: List<String>) = gauge.labels(*labels.toTypedArray()).get() != 0.0
+    override fun get() = gauge.noLabels().get()
+    fun get(labels: List<String>) = gauge.labels(labels).get()
+
+    override fun writeJson(generator: JsonGenerator) = if (labelNames.isEmpty()) {
+        generator.writeBoolean(get())
+    } else {
+        generator.writeLabeledSamples(gauge.collect()[0].samples, labelNames.size) {
+            generator.writeBoolean(it.value != 0.0)
+        }
+    }
 
-    override fun reset() = synchronized(gauge) {
+    override fun reset() {
         gauge.clear()
         if (initialValue) {
-            gauge.set(1.0)
+            gauge.noLabels().set(true)
         }
     }
 
     override fun register(registry: CollectorRegistry) = this.also { registry.register(gauge) }
 
+    override fun forEachSeries(action: (List<String>, Any) -> Unit) =
+        gauge.childEntries.forEach { (labelValues, child) -> action(labelValues, child.get()) }
+
+    override val limitedCollector: LabeledCollector<*>?
+        get() = gauge.takeIf { it.hasLimits }
+
     /**
      * Atomically sets the gauge to the given value.
      */
     @JvmOverloads
-    fun set(newValue: Boolean, labels: List<String> = emptyList()): Unit = synchronized(gauge) {
-        if (labels.isEmpty()) {
-            gauge.set(if (newValue) 1.0 else 0.0)
-        } else {
-            gauge.labels(*labels.toTypedArray()).set(if (newValue) 1.0 else 0.0)
-        }
-    }
+    fun set(newValue: Boolean, labels: List<String> = emptyList()): Unit = child(labels).set(newValue)
 
     /**
      * Atomically sets the gauge to the given value, returning the updated value.
@@ -81,16 +96,47 @@ class BooleanMetric @JvmOverloads constructor(
      * @return the updated value
      */
     @JvmOverloads
-    fun setAndGet(newValue: Boolean, labels: List<String> = emptyList()): Boolean = synchronized(gauge) {
-        set(newValue, labels)
-        return newValue
-    }
+    fun setAndGet(newValue: Boolean, labels: List<String> = emptyList()): Boolean = child(labels).setAndGet(newValue)
 
     /** Remove the child with the given labels (the metric with those labels will stop being emitted) */
-    fun remove(labels: List<String> = emptyList()) = synchronized(gauge) {
+    fun remove(labels: List<String> = emptyList()) {
         if (labels.isNotEmpty()) {
-            gauge.remove(*labels.toTypedArray())
+            gauge.remove(labels)
+        }
+    }
+
+    /**
+     * Returns the child of this metric with the given label values, creating it if necessary. Updates through the
+     * returned handle do not look up the labels again. Once the child is removed (with [remove] or by resetting this
+     * metric) updates through an existing handle are no longer emitted.
+     */
+    fun child(vararg labelValues: String): Child = gauge.labels(labelValues.asList())
+
+    /** Returns the child of this metric with the given label values, see [child]. */
+    fun child(labelValues: List<String>): Child =
+        if (labelValues.isEmpty()) gauge.noLabels() else gauge.labels(labelValues)
+
+    override fun collect() = gauge.collect()
+
+    /**
+     * A handle to the value of a [BooleanMetric] for one set of label values, see [BooleanMetric.child].
+     */
+    class Child internal constructor() {
+        @Volatile
+        private var value = false
+
+        /** Returns the value of this child. */
+        fun get(): Boolean = value
+
+        /** Atomically sets this child to the given value. */
+        fun set(newValue: Boolean) {
+            value = newValue
+        }
+
+        /** Atomically sets this child to the given value, returning the updated value. */
+        fun setAndGet(newValue: Boolean): Boolean {
+            set(newValue)
+            return newValue
         }
     }
-    internal fun collect() = gauge.collect()
 }
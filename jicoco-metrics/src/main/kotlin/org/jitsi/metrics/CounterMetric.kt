@@ -15,13 +15,24 @@
  */
 package org.jitsi.metrics
 
+import com.fasterxml.jackson.core.JsonGenerator
 import io.prometheus.client.CollectorRegistry
-import io.prometheus.client.Counter
+import io.prometheus.client.exemplars.Exemplar
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
 
 /**
- * A long metric wrapper for a Prometheus [Counter], which is monotonically increasing.
+ * A long metric wrapper for a Prometheus [Counter][io.prometheus.client.Counter], which is monotonically increasing.
  * Provides atomic operations such as [incAndGet].
  *
+ * The value is held in a [LongAdder] per set of labels, so updates take no lock and scale with the number of threads
+ * updating the counter concurrently. [addAndGet] and [incAndGet], which need an exact result, update an [AtomicLong]
+ * instead, so they take no lock either but contend with each other. Frequently updated series can be resolved once
+ * with [child] and updated through the returned [Child], which avoids looking up the labels on every update. The
+ * number of series can be bounded with [SeriesLimits].
+ *
+ * Increments can carry an exemplar (see [incWithExemplar]), which is exported in the OpenMetrics format.
+ *
  * @see [Prometheus Counter](https://prometheus.io/docs/concepts/metric_types/.counter)
  *
  * @see [Prometheus Gauge](https://prometheus.io/docs/concepts/metric_types/.gauge)
@@ -37,72 +48,64 @@ class CounterMetric @JvmOverloads constructor(
     internal val initialValue: Long = 0L,
     /** Label names for this metric. If non-empty, the initial value must be 0 and all get/update calls MUST
      * specify values for the labels. Calls to simply [get()] or [inc()] will fail with an exception. */
-    val labelNames: List<String> = emptyList()
+    val labelNames: List<String> = emptyList(),
+    /** Limits on the series of this metric, when it has labels. */
+    limits: SeriesLimits = SeriesLimits.NONE
 ) : Metric<Long>() {
-    private val counter = run {
-        val builder = Counter.build(name, help).namespace(namespace)
-        if (labelNames.isNotEmpty()) {
-            builder.labelNames(*labelNames.toTypedArray())
-            if (initialValue != 0L) {
-                throw IllegalArgumentException("Cannot set an initial value for a labeled counter")
-            }
+    private val counter = StripedCounter(name, help, namespace, labelNames, limits).apply {
+        if (labelNames.isNotEmpty() && initialValue != 0L) {
+            throw IllegalArgumentException("Cannot set an initial value for a labeled counter")
         }
-        builder.create().apply {
-            if (initialValue != 0L) {
-                inc(initialValue.toDouble())
-            }
+        if (initialValue != 0L) {
+            noLabels().add(initialValue)
         }
     }
 
-    /** When we have labels [get()] throws an exception and the JSON format is not supported. */
-    override val supportsJson: Boolean = labelNames.isEmpty()
+    override fun get() = counter.noLabels().get()
+    fun get(labels: List<String>) = counter.labels(labels).get()
 
-    override fun get() = counter.get().toLong()
-    fun get(labels: List<String>) = counter.labels(*labels.toTypedArray()).get().toLong()
+    override fun writeJson(generator: JsonGenerator) = if (labelNames.isEmpty()) {
+        generator.writeNumber(get())
+    } else {
+        // Skip the "_created" samples.
+        val samples = counter.collect()[0].samples.filter { it.name.endsWith("_total") }
+        generator.writeLabeledSamples(samples, labelNames.size) { generator.writeNumber(it.value.toLong()) }
+    }
 
     override fun reset() {
-        synchronized(counter) {
-            counter.apply {
-                clear()
-                if (initialValue != 0L) {
-                    inc(initialValue.toDouble())
-                }
-            }
+        counter.clear()
+        if (initialValue != 0L) {
+            counter.noLabels().add(initialValue)
         }
     }
 
     override fun register(registry: CollectorRegistry) = this.also { registry.register(counter) }
 
+    override fun forEachSeries(action: (List<String>, Any) -> Unit) =
+        counter.childEntries.forEach { (labelValues, child) -> action(labelValues, child.get()) }
+
+    override fun forEachChangedSeries(action: (List<String>, Any?) -> Unit) =
+        counter.drainChanges { labelValues, child -> action(labelValues, child?.get()) }
+
+    override val limitedCollector: LabeledCollector<*>?
+        get() = counter.takeIf { it.hasLimits }
+
     /**
      * Atomically adds the given value to this counter.
      */
     @JvmOverloads
-    fun add(delta: Long, labels: List<String> = emptyList()) = synchronized(counter) {
-        if (labels.isEmpty()) {
-            counter.inc(delta.toDouble())
-        } else {
-            counter.labels(*labels.toTypedArray()).inc(delta.toDouble())
-        }
-    }
+    fun add(delta: Long, labels: List<String> = emptyList()) = child(labels).add(delta)
 
     /**
-     * Atomically adds the given value to this counter, returning the updated value.
+     * Atomically adds the given value to this counter, returning the updated value, see [Child.addAndGet].
      *
      * @return the updated value
      */
     @JvmOverloads
-    fun addAndGet(delta: Long, labels: List<String> = emptyList()): Long = synchronized(counter) {
-        return if (labels.isEmpty()) {
-            counter.inc(delta.toDouble())
-            counter.get().toLong()
-        } else {
-            counter.labels(*labels.toTypedArray()).inc(delta.toDouble())
-            counter.labels(*labels.toTypedArray()).get().toLong()
-        }
-    }
+    fun addAndGet(delta: Long, labels: List<String> = emptyList()): Long = child(labels).addAndGet(delta)
 
     /**
-     * Atomically increments the value of this counter by one, returning the updated value.
+     * Atomically increments the value of this counter by one, returning the updated value, see [Child.addAndGet].
      *
      * @return the updated value
      */
@@ -113,20 +116,112 @@ class CounterMetric @JvmOverloads constructor(
      * Atomically increments the value of this counter by one.
      */
     @JvmOverloads
-    fun inc(labels: List<String> = emptyList()) = synchronized(counter) {
-        if (labels.isEmpty()) {
-            counter.inc()
-        } else {
-            counter.labels(*labels.toTypedArray()).inc()
-        }
-    }
+    fun inc(labels: List<String> = emptyList()) = child(labels).inc()
+
+    /**
+     * Atomically increments the value of this counter by one, with an exemplar labeled with [exemplarLabels] (label
+     * names and values, alternating). The exemplar is sampled, see [Child.addWithExemplar].
+     */
+    fun incWithExemplar(labels: List<String>, vararg exemplarLabels: String) =
+        child(labels).addWithExemplar(1, *exemplarLabels)
 
     /** Remove the child with the given labels (the metric with those labels will stop being emitted) */
-    fun remove(labels: List<String> = emptyList()) = synchronized(counter) {
+    fun remove(labels: List<String> = emptyList()) {
         if (labels.isNotEmpty()) {
-            counter.remove(*labels.toTypedArray())
+            counter.remove(labels)
         }
     }
 
-    internal fun collect() = counter.collect()
+    /**
+     * Returns the child of this counter with the given label values, creating it if necessary. Updates through the
+     * returned handle do not look up the labels again. Once the child is removed (with [remove] or by resetting this
+     * metric) updates through an existing handle are no longer emitted.
+     */
+    fun child(vararg labelValues: String): Child = counter.labels(labelValues.asList())
+
+    /** Returns the child of this counter with the given label values, see [child]. */
+    fun child(labelValues: List<String>): Child =
+        if (labelValues.isEmpty()) counter.noLabels() else counter.labels(labelValues)
+
+    override fun collect() = counter.collect()
+
+    /**
+     * A handle to the value of a [CounterMetric] for one set of label values, see [CounterMetric.child].
+     */
+    class Child internal constructor() {
+        /** The value added with [add] and [inc]. */
+        private val value = LongAdder()
+
+        /** The value added with [addAndGet] and [incAndGet]. */
+        private val exact = AtomicLong()
+
+        /** The time this child was created, in milliseconds since the epoch. */
+        internal val created = System.currentTimeMillis()
+
+        /** The latest sampled exemplar. */
+        @Volatile
+        internal var exemplar: Exemplar? = null
+            private set
+
+        /** Tracks whether this child changed, see [MetricsContainer.getDelta]. */
+        internal val change = SeriesChange()
+
+        /** Returns the value of this child. */
+        fun get(): Long = value.sum() + exact.get()
+
+        /** Atomically adds the given value to this child. */
+        fun add(delta: Long) {
+            if (delta < 0) {
+                throw IllegalArgumentException("Amount to increment must be non-negative.")
+            }
+            value.add(delta)
+            change.mark()
+        }
+
+        /** Atomically increments the value of this child by one. */
+        fun inc() {
+            value.increment()
+            change.mark()
+        }
+
+        /**
+         * Atomically adds the given value to this child, with an exemplar labeled with [exemplarLabels] (label names
+         * and values, alternating, e.g. `"conference_id", id`). The exemplar replaces the previous one only if that is
+         * at least [ExemplarSlots.MIN_INTERVAL_MS] old, otherwise it is dropped at almost no cost.
+         */
+        fun addWithExemplar(delta: Long, vararg exemplarLabels: String) =
+            addWithExemplar(delta, exemplarLabels, System.currentTimeMillis())
+
+        internal fun addWithExemplar(delta: Long, exemplarLabels: Array<out String>, nowMs: Long) {
+            add(delta)
+            if (ExemplarSlots.isDue(exemplar, nowMs)) {
+                exemplar = Exemplar(delta.toDouble(), nowMs, *exemplarLabels)
+            }
+        }
+
+        /** Atomically increments the value of this child by one, with an exemplar, see [addWithExemplar]. */
+        fun incWithExemplar(vararg exemplarLabels: String) = addWithExemplar(1, *exemplarLabels)
+
+        /**
+         * Atomically adds the given value to this child, returning the updated value. Calls of [addAndGet] and
+         * [incAndGet] update an [AtomicLong] without a lock, so they return exact values which are distinct (e.g.
+         * usable as a sequence) as long as the child is only updated through them. The returned value may also include
+         * updates made concurrently through [add] or [inc].
+         *
+         * This is not the fast path: concurrent calls contend on the [AtomicLong], and reading the updates made
+         * through [add] and [inc] costs O(stripes) once they have been contended. Use [add] or [inc] when the result
+         * is not needed.
+         */
+        fun addAndGet(delta: Long): Long {
+            if (delta < 0) {
+                throw IllegalArgumentException("Amount to increment must be non-negative.")
+            }
+            val updated = exact.addAndGet(delta) + value.sum()
+            change.mark()
+            return updated
+        }
+
+        /** Atomically increments the value of this child by one, returning the updated value, see [addAndGet]. */
+        fun incAndGet() = addAndGet(1)
+    }
 }
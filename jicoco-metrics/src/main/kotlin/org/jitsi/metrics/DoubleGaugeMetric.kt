@@ -15,13 +15,17 @@
  */
 package org.jitsi.metrics
 
+import com.fasterxml.jackson.core.JsonGenerator
 import io.prometheus.client.CollectorRegistry
-import io.prometheus.client.Gauge
+import java.util.concurrent.atomic.AtomicLong
 
 /**
- * A double metric wrapper for Prometheus [Gauges][Gauge].
+ * A double metric exported as a Prometheus gauge.
  * Provides atomic operations such as [incAndGet].
  *
+ * The value is held in an [AtomicLong] per set of labels as the bits of the double, and updated with a
+ * compare-and-set loop, so updates take no lock.
+ *
  * @see [Prometheus Gauge](https://prometheus.io/docs/concepts/metric_types/.gauge)
  */
 class DoubleGaugeMetric @JvmOverloads constructor(
@@ -37,47 +41,54 @@ class DoubleGaugeMetric @JvmOverloads constructor(
      * specify values for the labels. Calls to simply [get()] or [set(Double)] will fail with an exception. */
     val labelNames: List<String> = emptyList()
 ) : Metric<Double>() {
-    private val gauge = run {
-        val builder = Gauge.build(name, help).namespace(namespace)
-        if (labelNames.isNotEmpty()) {
-            builder.labelNames(*labelNames.toTypedArray())
-            if (initialValue != 0.0) {
-                throw IllegalArgumentException("Cannot set an initial value for a labeled gauge")
-            }
+    private val gauge = GaugeCollector(
+        name,
+        help,
+        namespace,
+        labelNames,
+        { Child() },
+        { it.get() },
+        seriesChange = { it.change }
+    ).apply {
+        if (labelNames.isNotEmpty() && initialValue != 0.0) {
+            throw IllegalArgumentException("Cannot set an initial value for a labeled gauge")
         }
-        builder.create().apply {
-            if (initialValue != 0.0) {
-                set(initialValue)
-            }
+        if (initialValue != 0.0) {
+            noLabels().set(initialValue)
         }
     }
 
-    /** When we have labels [get()] throws an exception and the JSON format is not supported. */
-    override val supportsJson: Boolean = labelNames.isEmpty()
+    override fun get() = gauge.noLabels().get()
+    fun get(labelNames: List<String>) = gauge.labels(labelNames).get()
 
-    override fun get() = gauge.get()
-    fun get(labelNames: List<String>) = gauge.labels(*labelNames.toTypedArray()).get()
+    override fun writeJson(generator: JsonGenerator) = if (labelNames.isEmpty()) {
+        generator.writeNumber(get())
+    } else {
+        generator.writeLabeled(gauge.childEntries, labelNames.size, { it.key }) {
+            generator.writeNumber(it.value.get())
+        }
+    }
 
-    override fun reset() = synchronized(gauge) {
+    override fun reset() {
         gauge.clear()
         if (initialValue != 0.0) {
-            gauge.set(initialValue)
+            gauge.noLabels().set(initialValue)
         }
     }
 
     override fun register(registry: CollectorRegistry) = this.also { registry.register(gauge) }
 
+    override fun forEachSeries(action: (List<String>, Any) -> Unit) =
+        gauge.childEntries.forEach { (labelValues, child) -> action(labelValues, child.get()) }
+
+    override fun forEachChangedSeries(action: (List<String>, Any?) -> Unit) =
+        gauge.drainChanges { labelValues, child -> action(labelValues, child?.get()) }
+
     /**
      * Sets the value of this gauge to the given value.
      */
     @JvmOverloads
-    fun set(newValue: Double, labels: List<String> = emptyList()) {
-        if (labels.isEmpty()) {
-            gauge.set(newValue)
-        } else {
-            gauge.labels(*labels.toTypedArray()).set(newValue)
-        }
-    }
+    fun set(newValue: Double, labels: List<String> = emptyList()) = child(labels).set(newValue)
 
     /**
      * Atomically sets the gauge to the given value, returning the updated value.
@@ -85,17 +96,7 @@ class DoubleGaugeMetric @JvmOverloads constructor(
      * @return the updated value
      */
     @JvmOverloads
-    fun setAndGet(newValue: Double, labels: List<String> = emptyList()): Double = synchronized(gauge) {
-        return if (labels.isEmpty()) {
-            gauge.set(newValue)
-            gauge.get()
-        } else {
-            with(gauge.labels(*labels.toTypedArray())) {
-                set(newValue)
-                get()
-            }
-        }
-    }
+    fun setAndGet(newValue: Double, labels: List<String> = emptyList()): Double = child(labels).setAndGet(newValue)
 
     /**
      * Atomically adds the given value to this gauge, returning the updated value.
@@ -103,17 +104,7 @@ class DoubleGaugeMetric @JvmOverloads constructor(
      * @return the updated value
      */
     @JvmOverloads
-    fun addAndGet(delta: Double, labels: List<String> = emptyList()): Double = synchronized(gauge) {
-        return if (labels.isEmpty()) {
-            gauge.inc(delta)
-            gauge.get()
-        } else {
-            with(gauge.labels(*labels.toTypedArray())) {
-                inc(delta)
-                get()
-            }
-        }
-    }
+    fun addAndGet(delta: Double, labels: List<String> = emptyList()): Double = child(labels).addAndGet(delta)
 
     /**
      * Atomically increments the value of this gauge by one, returning the updated value.
@@ -132,11 +123,66 @@ class DoubleGaugeMetric @JvmOverloads constructor(
     fun decAndGet(labels: List<String> = emptyList()) = addAndGet(-1.0, labels)
 
     /** Remove the child with the given labels (the metric with those labels will stop being emitted) */
-    fun remove(labels: List<String> = emptyList()) = synchronized(gauge) {
+    fun remove(labels: List<String> = emptyList()) {
         if (labels.isNotEmpty()) {
-            gauge.remove(*labels.toTypedArray())
+            gauge.remove(labels)
         }
     }
 
-    internal fun collect() = gauge.collect()
+    /**
+     * Returns the child of this gauge with the given label values, creating it if necessary. Updates through the
+     * returned handle do not look up the labels again. Once the child is removed (with [remove] or by resetting this
+     * metric) updates through an existing handle are no longer emitted.
+     */
+    fun child(vararg labelValues: String): Child = gauge.labels(labelValues.asList())
+
+    /** Returns the child of this gauge with the given label values, see [child]. */
+    fun child(labelValues: List<String>): Child =
+        if (labelValues.isEmpty()) gauge.noLabels() else gauge.labels(labelValues)
+
+    override fun collect() = gauge.collect()
+
+    /**
+     * A handle to the value of a [DoubleGaugeMetric] for one set of label values, see [DoubleGaugeMetric.child].
+     */
+    class Child internal constructor() {
+        /** The bits of the value, see [Double.toRawBits]. */
+        private val bits = AtomicLong(0.0.toRawBits())
+
+        /** Tracks whether this child changed, see [MetricsContainer.getDelta]. */
+        internal val change = SeriesChange()
+
+        /** Returns the value of this child. */
+        fun get(): Double = Double.fromBits(bits.get())
+
+        /** Atomically sets this child to the given value. */
+        fun set(newValue: Double) {
+            bits.set(newValue.toRawBits())
+            change.mark()
+        }
+
+        /** Atomically sets this child to the given value, returning the updated value. */
+        fun setAndGet(newValue: Double): Double {
+            set(newValue)
+            return newValue
+        }
+
+        /** Atomically adds the given value to this child, returning the updated value. */
+        fun addAndGet(delta: Double): Double {
+            while (true) {
+                val current = bits.get()
+                val updated = Double.fromBits(current) + delta
+                if (bits.compareAndSet(current, updated.toRawBits())) {
+                    change.mark()
+                    return updated
+                }
+            }
+        }
+
+        /** Atomically increments the value of this child by one, returning the updated value. */
+        fun incAndGet() = addAndGet(1.0)
+
+        /** Atomically decrements the value of this child by one, returning the updated value. */
+        fun decAndGet() = addAndGet(-1.0)
+    }
 }
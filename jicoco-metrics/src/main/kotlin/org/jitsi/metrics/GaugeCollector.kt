@@ -0,0 +1,51 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import io.prometheus.client.Collector.MetricFamilySamples.Sample
+
+/**
+ * A Prometheus gauge with children of type [C], which are created with [createChild]. Each child is exported as a
+ * single sample, with the value returned by [sampleValue]. The changes of the children are tracked if [seriesChange]
+ * is given.
+ */
+internal class GaugeCollector<C : Any>(
+    name: String,
+    help: String,
+    namespace: String,
+    labelNames: List<String>,
+    private val createChild: () -> C,
+    private val sampleValue: (C) -> Double,
+    limits: SeriesLimits = SeriesLimits.NONE,
+    private val seriesChange: ((C) -> SeriesChange)? = null
+) : LabeledCollector<C>(name, help, namespace, labelNames, Type.GAUGE, limits) {
+    init {
+        initializeNoLabelsChild()
+    }
+
+    override fun newChild() = createChild()
+
+    override fun valueOf(child: C) = sampleValue(child)
+
+    override fun changeOf(child: C) = seriesChange?.invoke(child)
+
+    override val tracksChanges: Boolean
+        get() = seriesChange != null
+
+    override fun addSamples(samples: MutableList<Sample>, labelValues: List<String>, child: C) {
+        samples.add(Sample(fullName, labelNames, labelValues, sampleValue(child)))
+    }
+}
@@ -15,37 +15,227 @@
  */
 package org.jitsi.metrics
 
+import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.databind.node.JsonNodeFactory
 import com.fasterxml.jackson.databind.node.ObjectNode
+import io.prometheus.client.Collector
+import io.prometheus.client.Collector.MetricFamilySamples
+import io.prometheus.client.Collector.MetricFamilySamples.Sample
 import io.prometheus.client.CollectorRegistry
 import io.prometheus.client.Histogram
+import java.util.concurrent.ConcurrentHashMap
 
+/**
+ * A wrapper for a Prometheus [Histogram]. Observations can carry an exemplar (see [observeWithExemplar]), which is
+ * exported in the OpenMetrics format on the bucket the observation fell in. Without [buckets], the default buckets
+ * of the Prometheus [Histogram] builder are used.
+ */
 class HistogramMetric(
     override val name: String,
     /** the description of this metric */
     private val help: String,
     /** the namespace (prefix) of this metric */
     val namespace: String,
+    /** Label names for this metric. If non-empty, all get/update calls MUST specify values for the labels. */
+    val labelNames: List<String>,
     vararg buckets: Double
 ) : Metric<ObjectNode>() {
-    val histogram: Histogram = Histogram.build(name, help).namespace(namespace).buckets(*buckets).create()
-
-    override fun get(): ObjectNode = JsonNodeFactory.instance.objectNode().apply {
-        histogram.collect().forEach {
-            it.samples.forEach { sample ->
-                if (sample.name.startsWith("${namespace}_${name}_")) {
-                    val shortName = sample.name.substring("${namespace}_${name}_".length)
-                    if (shortName == "bucket" && sample.labelNames.size == 1) {
-                        put("${shortName}_${sample.labelNames[0]}_${sample.labelValues[0]}", sample.value)
-                    } else {
-                        put(shortName, sample.value)
-                    }
+    constructor(name: String, help: String, namespace: String, vararg buckets: Double) :
+        this(name, help, namespace, emptyList(), *buckets)
+
+    val histogram: Histogram = Histogram.build(name, help).namespace(namespace).apply {
+        if (buckets.isNotEmpty()) {
+            this.buckets(*buckets)
+        }
+        if (labelNames.isNotEmpty()) {
+            labelNames(*labelNames.toTypedArray())
+        }
+    }.create()
+
+    /** The upper bounds of the buckets of [histogram], including +Inf. */
+    private val upperBounds: DoubleArray = if (buckets.isEmpty()) {
+        DEFAULT_UPPER_BOUNDS
+    } else {
+        buckets.sorted().let { if (it.last().isInfinite()) it else it + Double.POSITIVE_INFINITY }.toDoubleArray()
+    }
+
+    /** The prefix of the names of the samples of [histogram]. */
+    private val samplePrefix = "${namespace}_${name}_"
+
+    /**
+     * The exemplar slots of the series which were resolved with [child], by label values. A [Child] resolves its slots
+     * once when it is created, so a removed series keeps its slots only in the handles which still reference it.
+     */
+    private val exemplars = ConcurrentHashMap<List<String>, ExemplarSlots>()
+
+    /** Exports [histogram] with the exemplars added to its buckets. */
+    private val collector = object : Collector(), Collector.Describable {
+        override fun collect(): List<MetricFamilySamples> = if (exemplars.isEmpty()) {
+            histogram.collect()
+        } else {
+            histogram.collect().map { family ->
+                MetricFamilySamples(family.name, family.unit, family.type, family.help, withExemplars(family.samples))
+            }
+        }
+
+        override fun describe(): List<MetricFamilySamples> = histogram.describe()
+    }
+
+    /** Returns the count, sum and buckets of this histogram. Throws if it has labels. */
+    override fun get(): ObjectNode {
+        if (labelNames.isNotEmpty()) {
+            throw IllegalStateException("$name has labels, their values are required")
+        }
+        return JsonNodeFactory.instance.objectNode().apply {
+            forEachField(histogram.collect()[0].samples) { name, value -> put(name, value) }
+        }
+    }
+
+    override fun writeJson(generator: JsonGenerator) {
+        val samples = histogram.collect()[0].samples
+        if (labelNames.isEmpty()) {
+            writeFields(generator, samples)
+        } else {
+            val series = samples.groupBy { it.labelValues.subList(0, labelNames.size) }
+            generator.writeLabeled(series.entries, labelNames.size, { it.key }) { writeFields(generator, it.value) }
+        }
+    }
+
+    /**
+     * Adds the exemplars to the bucket samples in [samples], which come in order before the other samples of each
+     * series.
+     */
+    private fun withExemplars(samples: List<Sample>): List<Sample> {
+        var slots: ExemplarSlots? = null
+        var bucket = 0
+        return samples.map { sample ->
+            if (!sample.name.endsWith("_bucket")) {
+                bucket = 0
+                return@map sample
+            }
+            if (bucket == 0) {
+                slots = exemplars[sample.labelValues.subList(0, labelNames.size)]
+            }
+            val index = bucket++
+            val exemplar = slots?.get(index) ?: return@map sample
+            Sample(sample.name, sample.labelNames, sample.labelValues, sample.value, exemplar)
+        }
+    }
+
+    private fun writeFields(generator: JsonGenerator, samples: List<Sample>) {
+        generator.writeStartObject()
+        forEachField(samples) { name, value -> generator.writeNumberField(name, value) }
+        generator.writeEndObject()
+    }
+
+    /**
+     * Calls [action] with the name and value of each field of the JSON representation of the series in [samples].
+     */
+    private inline fun forEachField(samples: List<Sample>, action: (String, Double) -> Unit) {
+        samples.forEach { sample ->
+            if (sample.name.startsWith(samplePrefix)) {
+                val shortName = sample.name.substring(samplePrefix.length)
+                if (shortName == "bucket" && sample.labelNames.size == labelNames.size + 1) {
+                    action("${shortName}_${sample.labelNames.last()}_${sample.labelValues.last()}", sample.value)
+                } else {
+                    action(shortName, sample.value)
                 }
             }
         }
     }
 
-    override fun reset() = histogram.clear()
+    /** Observes the given value, in the series with the given labels. */
+    @JvmOverloads
+    fun observe(value: Double, labels: List<String> = emptyList()) =
+        histogram.labels(*labels.toTypedArray()).observe(value)
+
+    /**
+     * Observes the given value, in the series with the given labels, with an exemplar labeled with [exemplarLabels]
+     * (label names and values, alternating). The exemplar is sampled, see [Child.observeWithExemplar].
+     */
+    fun observeWithExemplar(value: Double, labels: List<String>, vararg exemplarLabels: String) =
+        child(labels).observeWithExemplar(value, *exemplarLabels)
+
+    /**
+     * Remove the child with the given labels (the metric with those labels will stop being emitted). Handles returned
+     * by [child] for these labels keep recording, but neither their values nor their exemplars are emitted.
+     */
+    fun remove(labels: List<String> = emptyList()) {
+        if (labels.isNotEmpty()) {
+            histogram.remove(*labels.toTypedArray())
+            exemplars.remove(labels)
+        }
+    }
+
+    /**
+     * Returns the child of this histogram with the given label values, creating it if necessary. Values observed
+     * through the returned handle do not look up the labels again, and neither do their exemplars.
+     */
+    fun child(vararg labelValues: String): Child = child(labelValues.asList())
+
+    /** Returns the child of this histogram with the given label values, see [child]. */
+    fun child(labelValues: List<String>): Child {
+        val child = histogram.labels(*labelValues.toTypedArray())
+        // Resolved after the series, so that slots dropped by a concurrent [remove] are added back with it. A late
+        // [remove] leaves slots without a series, which are used again if the series is.
+        val slots = exemplars[labelValues] ?: exemplars.computeIfAbsent(labelValues.toList()) {
+            ExemplarSlots(upperBounds.size)
+        }
+        return Child(child, slots)
+    }
+
+    override fun reset() {
+        histogram.clear()
+        exemplars.clear()
+    }
+
+    override fun collect() = collector.collect()
 
-    override fun register(registry: CollectorRegistry): Metric<ObjectNode> = this.also { registry.register(histogram) }
+    override fun register(registry: CollectorRegistry): Metric<ObjectNode> = this.also { registry.register(collector) }
+
+    /**
+     * A handle to the series of a [HistogramMetric] for one set of label values, see [HistogramMetric.child].
+     */
+    inner class Child internal constructor(private val child: Histogram.Child, private val slots: ExemplarSlots) {
+        /** Observes the given value. */
+        fun observe(value: Double) = child.observe(value)
+
+        /**
+         * Observes the given value, with an exemplar labeled with [exemplarLabels] (label names and values,
+         * alternating, e.g. `"conference_id", id`). The exemplar replaces the previous one of its bucket only if that
+         * is at least [ExemplarSlots.MIN_INTERVAL_MS] old. Otherwise it is dropped at the cost of finding the bucket,
+         * see [ExemplarSlots.record].
+         */
+        fun observeWithExemplar(value: Double, vararg exemplarLabels: String) {
+            child.observe(value)
+            slots.record(bucketOf(value), value, exemplarLabels)
+        }
+
+        internal fun observeWithExemplar(value: Double, exemplarLabels: Array<out String>, nowMs: Long) {
+            child.observe(value)
+            slots.record(bucketOf(value), value, exemplarLabels, nowMs)
+        }
+
+        private fun bucketOf(value: Double): Int {
+            var bucket = 0
+            while (value > upperBounds[bucket]) {
+                bucket++
+            }
+            return bucket
+        }
+    }
+
+    companion object {
+        /**
+         * The upper bounds of the buckets which the Prometheus [Histogram] builder uses when none are given, read back
+         * from a histogram built without any.
+         */
+        private val DEFAULT_UPPER_BOUNDS: DoubleArray by lazy {
+            Histogram.build("default_buckets", "Default buckets.").create().collect()[0].samples
+                .filter { it.name.endsWith("_bucket") }
+                .map { it.labelValues.last() }
+                .map { if (it == "+Inf") Double.POSITIVE_INFINITY else it.toDouble() }
+                .toDoubleArray()
+        }
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import io.prometheus.client.Collector.MetricFamilySamples.Sample
+
+/**
+ * A Prometheus info metric with [InfoCollector.Child] children, each holding a single value under the key [key]. The
+ * samples it produces are the same as those of a Prometheus [Info][io.prometheus.client.Info] which is only ever set
+ * with that key.
+ */
+internal class InfoCollector(
+    name: String,
+    help: String,
+    namespace: String,
+    labelNames: List<String>,
+    /** the key the values are exported under */
+    private val key: String,
+    limits: SeriesLimits = SeriesLimits.NONE
+) : LabeledCollector<InfoCollector.Child>(name, help, namespace, labelNames, Type.INFO, limits) {
+    private val keyedLabelNames = labelNames + key
+
+    init {
+        initializeNoLabelsChild()
+    }
+
+    override fun newChild() = Child()
+
+    override fun valueOf(child: Child) = child.value
+
+    override fun addSamples(samples: MutableList<Sample>, labelValues: List<String>, child: Child) {
+        val value = child.value
+        if (value == null) {
+            samples.add(Sample("${fullName}_info", labelNames, labelValues, 1.0))
+        } else {
+            samples.add(Sample("${fullName}_info", keyedLabelNames, labelValues + value, 1.0))
+        }
+    }
+
+    /** The value of one series. */
+    class Child {
+        /** The value, or `null` if it was never set. */
+        @Volatile
+        var value: String? = null
+    }
+}
@@ -15,14 +15,15 @@
  */
 package org.jitsi.metrics
 
+import com.fasterxml.jackson.core.JsonGenerator
 import io.prometheus.client.CollectorRegistry
-import io.prometheus.client.Info
 
 /**
  * `InfoMetric` wraps around a single key-value information pair.
  * Useful for general information such as build versions, JVB region, etc.
  * In the Prometheus exposition format, these are shown as labels of either a custom metric (OpenMetrics)
  * or a [Gauge][io.prometheus.client.Gauge] (0.0.4 plain text).
+ * The number of series can be bounded with [SeriesLimits].
  */
 class InfoMetric @JvmOverloads constructor(
     /** the name of this metric */
@@ -34,39 +35,55 @@ class InfoMetric @JvmOverloads constructor(
     /** the value of this info metric */
     internal val value: String = "",
     /** Label names for this metric */
-    val labelNames: List<String> = emptyList()
+    val labelNames: List<String> = emptyList(),
+    /** Limits on the series of this metric, when it has labels. */
+    limits: SeriesLimits = SeriesLimits.NONE
 ) : Metric<String>() {
-    private val info = run {
-        val builder = Info.build(name, help).namespace(namespace)
-        if (labelNames.isNotEmpty()) {
-            builder.labelNames(*labelNames.toTypedArray())
-        }
-        builder.create().apply {
-            if (labelNames.isEmpty()) {
-                info(name, value)
-            }
+    private val info = InfoCollector(name, help, namespace, labelNames, name, limits).apply {
+        if (labelNames.isEmpty()) {
+            noLabels().value = value
         }
     }
 
     override fun get() = if (labelNames.isEmpty()) value else throw UnsupportedOperationException()
-    fun get(labels: List<String> = emptyList()) =
-        if (labels.isEmpty()) value else info.labels(*labels.toTypedArray()).get()[name]
+    fun get(labels: List<String> = emptyList()) = if (labels.isEmpty()) value else info.labels(labels).value
+
+    override fun writeJson(generator: JsonGenerator) = if (labelNames.isEmpty()) {
+        generator.writeString(get())
+    } else {
+        // The value of each series is held in an additional label, after the label names. Children which were never
+        // set have no value.
+        val samples = info.collect()[0].samples.filter { it.labelValues.size > labelNames.size }
+        generator.writeLabeledSamples(samples, labelNames.size) {
+            generator.writeString(it.labelValues[labelNames.size])
+        }
+    }
 
-    override fun reset() = if (labelNames.isEmpty()) info.info(name, value) else info.clear()
+    override fun reset() = info.clear().also {
+        if (labelNames.isEmpty()) {
+            info.noLabels().value = value
+        }
+    }
 
     override fun register(registry: CollectorRegistry) = this.also { registry.register(info) }
 
+    override fun forEachSeries(action: (List<String>, Any) -> Unit) =
+        info.childEntries.forEach { (labelValues, child) -> child.value?.let { action(labelValues, it) } }
+
+    override val limitedCollector: LabeledCollector<*>?
+        get() = info.takeIf { it.hasLimits }
+
     /** Remove the child with the given labels (the metric with those labels will stop being emitted) */
-    fun remove(labels: List<String> = emptyList()) = synchronized(info) {
+    fun remove(labels: List<String> = emptyList()) {
         if (labels.isNotEmpty()) {
-            info.remove(*labels.toTypedArray())
+            info.remove(labels)
         }
     }
 
     fun set(labels: List<String>, value: String) {
         if (labels.isNotEmpty()) {
-            info.labels(*labels.toTypedArray()).info(name, value)
+            info.labels(labels).value = value
         }
     }
-    internal fun collect() = info.collect()
+    override fun collect() = info.collect()
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import io.prometheus.client.Collector
+import io.prometheus.client.Collector.MetricFamilySamples.Sample
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * A lock-free replacement for Prometheus' `SimpleCollector`, which holds one child of type [C] per set of label
+ * values. Children are looked up by the label values list directly, so no array is created per lookup.
+ *
+ * The number of children can be bounded with [SeriesLimits]. The changes of children which have a [SeriesChange] (see
+ * [changeOf]) are tracked, see [drainChanges].
+ *
+ * Subclasses must call [initializeNoLabelsChild] at the end of their initialization.
+ */
+internal abstract class LabeledCollector<C : Any>(
+    /** the name of this collector, without the namespace */
+    name: String,
+    /** the description of this collector */
+    private val help: String,
+    /** the namespace (prefix) of this collector */
+    namespace: String,
+    /** the label names of this collector */
+    val labelNames: List<String>,
+    /** the Prometheus type of this collector */
+    private val type: Type,
+    /** the limits on the series of this collector, which only apply when it has labels */
+    private val limits: SeriesLimits = SeriesLimits.NONE
+) : Collector(), Collector.Describable {
+    /** The name of this collector, including the namespace. */
+    val fullName: String
+
+    private val children = ConcurrentHashMap<List<String>, C>()
+
+    /** The activity of each child, when idle children are evicted. */
+    private val activity = if (labelNames.isNotEmpty() && limits.idleTtl != null) {
+        ConcurrentHashMap<List<String>, Activity>()
+    } else {
+        null
+    }
+
+    /** The last time idle children were evicted, in milliseconds. */
+    @Volatile
+    private var lastEviction = 0L
+
+    private val evicted = LongAdder()
+    private val rejected = LongAdder()
+
+    /** Called with the number of children evicted because they were idle. */
+    @Volatile
+    var onEvicted: ((Int) -> Unit)? = null
+
+    /** Called when a lookup of a new child is rejected because of the limit on the number of children. */
+    @Volatile
+    var onRejected: (() -> Unit)? = null
+
+    /** Whether the number of children is bounded by [SeriesLimits]. */
+    val hasLimits: Boolean
+        get() = labelNames.isNotEmpty() && (limits.maxSeries != Int.MAX_VALUE || limits.idleTtl != null)
+
+    /** The number of children evicted because they were idle. */
+    val evictedCount: Long
+        get() = evicted.sum()
+
+    /** The number of lookups of new children rejected because of the limit on the number of children. */
+    val rejectedCount: Long
+        get() = rejected.sum()
+
+    @Volatile
+    private var noLabelsChild: C? = null
+
+    /**
+     * The label values of the children which changed, were added or were removed since the last [drainChanges], or
+     * `null` until it is first called.
+     */
+    @Volatile
+    private var changes: ConcurrentLinkedQueue<List<String>>? = null
+
+    /** The number of label values in [changes]. */
+    private val queuedChanges = AtomicInteger()
+
+    /** Whether [changes] was dropped because it exceeded [MAX_QUEUED_CHANGES]. */
+    @Volatile
+    private var changesDropped = false
+
+    init {
+        if (name.isEmpty()) {
+            throw IllegalStateException("Name hasn't been set.")
+        }
+        if (help.isEmpty()) {
+            throw IllegalStateException("Help hasn't been set.")
+        }
+        fullName = if (namespace.isEmpty()) name else "${namespace}_$name"
+        checkMetricName(fullName)
+        labelNames.forEach { checkMetricLabelName(it) }
+    }
+
+    /** Creates a new child, holding the initial value for a set of label values. */
+    protected abstract fun newChild(): C
+
+    /** Adds the samples describing [child], which has the given [labelValues], to [samples]. */
+    protected abstract fun addSamples(samples: MutableList<Sample>, labelValues: List<String>, child: C)
+
+    /**
+     * Returns the value of [child], which is compared between evictions to tell whether the child is idle. `null`
+     * means that only lookups count as activity.
+     */
+    protected open fun valueOf(child: C): Any? = null
+
+    /** Returns the [SeriesChange] of [child], or `null` if the changes of the children are not tracked. */
+    protected open fun changeOf(child: C): SeriesChange? = null
+
+    /** Whether the children of this collector have a [SeriesChange], see [changeOf]. */
+    protected open val tracksChanges: Boolean
+        get() = false
+
+    protected fun initializeNoLabelsChild() {
+        if (labelNames.isEmpty()) {
+            noLabelsChild = labels(emptyList())
+        }
+    }
+
+    /** Returns the child for this collector when it has no labels, or throws if it has labels. */
+    fun noLabels(): C = noLabelsChild ?: throw IllegalStateException("$fullName has labels, their values are required")
+
+    /** Returns the child for the given label values, creating it if necessary. */
+    fun labels(labelValues: List<String>): C {
+        if (labelValues.size != labelNames.size) {
+            throw IllegalArgumentException("Incorrect number of labels.")
+        }
+        children[labelValues]?.let {
+            touch(labelValues)
+            return it
+        }
+        if (labelNames.isNotEmpty() && children.size >= limits.maxSeries) {
+            if (activity != null && limits.clock.millis() - lastEviction >= MIN_EVICTION_INTERVAL_MS) {
+                evictIdle()
+            }
+            if (children.size >= limits.maxSeries) {
+                rejected.increment()
+                onRejected?.invoke()
+                // Not exported
+                return newChild()
+            }
+        }
+        // Copy the key, the caller is free to reuse its list.
+        val key = labelValues.toList()
+        val newChild = newChild()
+        changeOf(newChild)?.attach(this, key)
+        children.putIfAbsent(key, newChild)?.let {
+            touch(key)
+            return it
+        }
+        activity?.put(key, Activity(limits.clock.millis()))
+        changed(key)
+        return newChild
+    }
+
+    private fun touch(labelValues: List<String>) {
+        val activity = activity?.get(labelValues) ?: return
+        // Avoid writing to a shared location on every lookup.
+        if (!activity.touched) {
+            activity.touched = true
+        }
+    }
+
+    /**
+     * Removes the children which have been idle for longer than the idle TTL of the [limits]. This happens on every
+     * [collect]; exports which read [childEntries] instead should call it first.
+     */
+    fun evictIdle() {
+        val activity = activity ?: return
+        val idleTtl = limits.idleTtl?.toMillis() ?: return
+        var count = 0
+        synchronized(activity) {
+            val now = limits.clock.millis()
+            lastEviction = now
+            activity.forEach { (labelValues, childActivity) ->
+                val child = children[labelValues]
+                if (child == null) {
+                    activity.remove(labelValues)
+                    return@forEach
+                }
+                val value = valueOf(child)
+                if (childActivity.touched || value != childActivity.value) {
+                    childActivity.touched = false
+                    childActivity.value = value
+                    childActivity.lastActive = now
+                } else if (now - childActivity.lastActive >= idleTtl && children.remove(labelValues, child)) {
+                    activity.remove(labelValues)
+                    changed(labelValues)
+                    count++
+                }
+            }
+        }
+        if (count > 0) {
+            evicted.add(count.toLong())
+            onEvicted?.invoke(count)
+        }
+    }
+
+    /** The current children, keyed by their label values. */
+    val childEntries: Set<Map.Entry<List<String>, C>>
+        get() = children.entries
+
+    /** Removes the child with the given label values (it will stop being emitted). */
+    fun remove(labelValues: List<String>) {
+        if (children.remove(labelValues) != null) {
+            changed(labelValues.toList())
+        }
+        activity?.remove(labelValues)
+    }
+
+    /** Removes all children, re-initializing the child of a collector without labels. */
+    fun clear() {
+        if (changes != null) {
+            children.keys.forEach { changed(it) }
+        }
+        children.clear()
+        activity?.clear()
+        initializeNoLabelsChild()
+    }
+
+    /**
+     * Queues the child with the given label values as changed, once changes are tracked. The queue is dropped once it
+     * holds more than [MAX_QUEUED_CHANGES] label values, i.e. when [drainChanges] is not called regularly.
+     */
+    fun changed(labelValues: List<String>) {
+        val queue = changes ?: return
+        if (queuedChanges.incrementAndGet() > MAX_QUEUED_CHANGES) {
+            // Set first, so that [drainChanges] does not take the dropped queue for one which was never started.
+            changesDropped = true
+            changes = null
+            queue.clear()
+        } else {
+            queue.add(labelValues)
+        }
+    }
+
+    /**
+     * Calls [action] with the label values and the child (`null` if it was removed) of each child which changed since
+     * the last call, or of every child on the first call. A child may be passed more than once. Returns `false`
+     * without calling [action] if the changes of the children are not tracked (see [changeOf]), or if too many of them
+     * were queued since the last call (see [changed]), in which case they are all passed on the next call.
+     *
+     * Must not be called concurrently.
+     */
+    fun drainChanges(action: (List<String>, C?) -> Unit): Boolean {
+        if (!tracksChanges) {
+            return false
+        }
+        val queue = changes
+        if (queue == null) {
+            if (changesDropped) {
+                changesDropped = false
+                return false
+            }
+            // Children changed from now on are queued, those changed before are read below.
+            queuedChanges.set(0)
+            changes = ConcurrentLinkedQueue()
+            children.forEach { (labelValues, child) ->
+                changeOf(child)?.clear()
+                action(labelValues, child)
+            }
+            return true
+        }
+        while (true) {
+            val labelValues = queue.poll() ?: break
+            queuedChanges.decrementAndGet()
+            val child = children[labelValues]
+            child?.let { changeOf(it)?.clear() }
+            action(labelValues, child)
+        }
+        return true
+    }
+
+    override fun collect(): List<MetricFamilySamples> {
+        evictIdle()
+        val samples = ArrayList<Sample>(children.size)
+        children.forEach { (labelValues, child) -> addSamples(samples, labelValues, child) }
+        return listOf(MetricFamilySamples(fullName, type, help, samples))
+    }
+
+    override fun describe(): List<MetricFamilySamples> = listOf(MetricFamilySamples(fullName, type, help, emptyList()))
+
+    /** Tracks whether a child is idle. Only [touched] is accessed without holding the lock of the activity map. */
+    private class Activity(var lastActive: Long) {
+        /** Whether the child was looked up since the last eviction. */
+        @Volatile
+        var touched = false
+
+        /** The value of the child at the last eviction. */
+        var value: Any? = null
+    }
+
+    companion object {
+        /** How often lookups which would exceed the limit on the number of children try evicting idle children. */
+        private const val MIN_EVICTION_INTERVAL_MS = 1000L
+
+        /** The maximum number of changed children queued between calls of [drainChanges]. */
+        internal const val MAX_QUEUED_CHANGES = 1 shl 16
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import com.fasterxml.jackson.core.JsonGenerator
+import io.prometheus.client.Collector.MetricFamilySamples.Sample
+
+/**
+ * Writes labeled series as nested JSON objects keyed by label values, one level per label. For example a metric with
+ * labels `["l1", "l2"]` is written as `{"a": {"x": 1, "y": 2}, "b": {"x": 3}}`.
+ *
+ * The [samples] are sorted by their first [labelCount] label values, so that series which share a prefix are adjacent
+ * and the objects can be written in a single pass, without building a tree. [writeValue] writes the value of a series.
+ */
+internal fun JsonGenerator.writeLabeledSamples(samples: List<Sample>, labelCount: Int, writeValue: (Sample) -> Unit) =
+    writeLabeled(samples, labelCount, { it.labelValues }, writeValue)
+
+/**
+ * Writes [series] as nested JSON objects keyed by the values of their first [labelCount] labels, as returned by
+ * [labelValues]. See [writeLabeledSamples].
+ */
+internal fun <T> JsonGenerator.writeLabeled(
+    series: Iterable<T>,
+    labelCount: Int,
+    labelValues: (T) -> List<String>,
+    writeValue: (T) -> Unit
+) {
+    writeStartObject()
+    var previous: List<String>? = null
+    for (item in series.sortedWith { a, b -> compareLabelValues(labelValues(a), labelValues(b), labelCount) }) {
+        val values = labelValues(item)
+        // The number of enclosing objects shared with the previous series.
+        var common = 0
+        if (previous != null) {
+            while (common < labelCount - 1 && previous[common] == values[common]) {
+                common++
+            }
+            repeat(labelCount - 1 - common) { writeEndObject() }
+        }
+        for (i in common until labelCount - 1) {
+            writeFieldName(values[i])
+            writeStartObject()
+        }
+        writeFieldName(values[labelCount - 1])
+        writeValue(item)
+        previous = values
+    }
+    if (previous != null) {
+        repeat(labelCount - 1) { writeEndObject() }
+    }
+    writeEndObject()
+}
+
+private fun compareLabelValues(a: List<String>, b: List<String>, labelCount: Int): Int {
+    for (i in 0 until labelCount) {
+        val result = a[i].compareTo(b[i])
+        if (result != 0) {
+            return result
+        }
+    }
+    return 0
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import com.fasterxml.jackson.core.JsonGenerator
+import io.prometheus.client.CollectorRegistry
+import org.jitsi.utils.logging2.createLogger
+import java.time.Clock
+import java.time.Duration
+
+/**
+ * A gauge whose value is computed by [supplier] when the metrics are exported (or when [get] is called), instead of
+ * being kept up to date by a [MetricsUpdater] subtask. The value is reused for [minRefreshInterval] after it was
+ * computed, so frequent scrapes do not call [supplier] more often than that, and when nobody scrapes it is not called
+ * at all.
+ *
+ * If [supplier] throws, the previous value is kept (or 0 if there is none).
+ *
+ * It is exported as a Prometheus gauge, and as a number in JSON (an integer unless [supplier] returns a floating point
+ * number).
+ */
+class LazyGaugeMetric @JvmOverloads constructor(
+    /** the name of this metric */
+    override val name: String,
+    /** the description of this metric */
+    help: String,
+    /** the namespace (prefix) of this metric */
+    namespace: String,
+    /** how long a computed value is reused */
+    val minRefreshInterval: Duration = Duration.ZERO,
+    private val clock: Clock = Clock.systemUTC(),
+    /** computes the value of this metric */
+    private val supplier: () -> Number
+) : Metric<Number>() {
+    private val logger = createLogger()
+
+    private val gauge = GaugeCollector(name, help, namespace, emptyList(), { this }, { it.get().toDouble() })
+
+    /** The last computed value, or `null` if it was never computed or was reset. */
+    @Volatile
+    private var value: Number? = null
+
+    /** The time [value] was computed at, in milliseconds. */
+    @Volatile
+    private var computedAt = 0L
+
+    /** Returns the value of this metric, computing it if the last computed value is older than [minRefreshInterval]. */
+    override fun get(): Number {
+        value?.let {
+            if (clock.millis() - computedAt < minRefreshInterval.toMillis()) {
+                return it
+            }
+        }
+        // Concurrent scrapes compute the value only once.
+        synchronized(this) {
+            val now = clock.millis()
+            val previous = value
+            if (previous != null && now - computedAt < minRefreshInterval.toMillis()) {
+                return previous
+            }
+            return try {
+                supplier().also {
+                    value = it
+                    computedAt = now
+                }
+            } catch (e: Exception) {
+                logger.warn("Failed to compute the value of $name", e)
+                previous ?: 0
+            }
+        }
+    }
+
+    override fun writeJson(generator: JsonGenerator) = when (val value = get()) {
+        is Double, is Float -> generator.writeNumber(value.toDouble())
+        else -> generator.writeNumber(value.toLong())
+    }
+
+    /** Drops the last computed value, so that the next export computes it again. */
+    override fun reset() = synchronized(this) {
+        value = null
+    }
+
+    override fun register(registry: CollectorRegistry) = this.also { registry.register(gauge) }
+
+    override fun forEachSeries(action: (List<String>, Any) -> Unit) = action(emptyList(), get())
+
+    override fun collect() = gauge.collect()
+}
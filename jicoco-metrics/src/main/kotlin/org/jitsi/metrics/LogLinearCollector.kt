@@ -0,0 +1,65 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import io.prometheus.client.Collector.MetricFamilySamples.Sample
+
+/**
+ * A Prometheus histogram with [LogLinearHistogramMetric.Child] children. The log-linear buckets of each child are
+ * exported with one cumulative Prometheus bucket for each of the first [exportedRanges] powers of two, followed by the
+ * usual "+Inf" bucket and the "_count", "_sum" and "_created" samples. The buckets do not depend on the recorded
+ * values, so that they are the same for all series and all scrapes, as Prometheus expects.
+ */
+internal class LogLinearCollector(
+    name: String,
+    help: String,
+    namespace: String,
+    labelNames: List<String>,
+    private val precision: Int,
+    private val exportedRanges: Int
+) : LabeledCollector<LogLinearHistogramMetric.Child>(name, help, namespace, labelNames, Type.HISTOGRAM) {
+    private val bucketLabelNames = labelNames + "le"
+
+    /** The "le" label values of the exported buckets. */
+    private val upperBounds = List(exportedRanges) { doubleToGoString(((1L shl (precision + it)) - 1).toDouble()) }
+
+    init {
+        if ("le" in labelNames) {
+            throw IllegalStateException("Histogram cannot have a label named 'le'.")
+        }
+        initializeNoLabelsChild()
+    }
+
+    override fun newChild() = LogLinearHistogramMetric.Child(precision)
+
+    override fun addSamples(
+        samples: MutableList<Sample>,
+        labelValues: List<String>,
+        child: LogLinearHistogramMetric.Child
+    ) {
+        val snapshot = child.snapshot()
+        var cumulativeCount = 0L
+        for (range in 0 until exportedRanges) {
+            cumulativeCount += snapshot.countInRange(range)
+            val le = upperBounds[range]
+            samples.add(Sample("${fullName}_bucket", bucketLabelNames, labelValues + le, cumulativeCount.toDouble()))
+        }
+        samples.add(Sample("${fullName}_bucket", bucketLabelNames, labelValues + "+Inf", snapshot.count.toDouble()))
+        samples.add(Sample("${fullName}_count", labelNames, labelValues, snapshot.count.toDouble()))
+        samples.add(Sample("${fullName}_sum", labelNames, labelValues, snapshot.sum.toDouble()))
+        samples.add(Sample("${fullName}_created", labelNames, labelValues, child.created / 1000.0))
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import com.fasterxml.jackson.core.JsonGenerator
+import io.prometheus.client.CollectorRegistry
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.function.BiConsumer
+import kotlin.math.ceil
+
+/**
+ * A histogram of non-negative long values (e.g. durations in nanoseconds) which needs no buckets to be configured in
+ * advance. Values are counted in log-linear buckets, as in HdrHistogram: each power of two is split into
+ * 2^[precision] linear sub-buckets, so any recorded value is known with a relative error of at most 2^-[precision].
+ *
+ * Recording takes no lock. Each series keeps its counts in a few stripes, selected by the recording thread, which are
+ * merged when a [Snapshot] is taken. Buckets are allocated lazily, one power of two at a time, for the ranges of
+ * values that are actually recorded.
+ *
+ * It is well suited to timing code, see [Child.time], [Child.observeSince] and [Child.timeAsync], which record
+ * durations in nanoseconds.
+ *
+ * In the Prometheus formats the histogram has one bucket per power of two, up to the one of [maxBucketValue], so that
+ * all series always have the same buckets. Larger values are only counted in the "+Inf" bucket. In JSON it is
+ * exported with its count, sum, min, max, mean and its 50th, 99th and 99.9th percentiles.
+ */
+class LogLinearHistogramMetric @JvmOverloads constructor(
+    /** the name of this metric */
+    override val name: String,
+    /** the description of this metric */
+    help: String,
+    /** the namespace (prefix) of this metric */
+    namespace: String,
+    /** the number of bits of linear resolution within each power of two, between 1 and [MAX_PRECISION] */
+    val precision: Int = DEFAULT_PRECISION,
+    /** Label names for this metric. If non-empty, all record calls MUST specify values for the labels. */
+    val labelNames: List<String> = emptyList(),
+    /** the largest value with its own bucket in the Prometheus formats */
+    val maxBucketValue: Long = DEFAULT_MAX_BUCKET_VALUE
+) : Metric<LogLinearHistogramMetric.Snapshot>() {
+    init {
+        if (precision !in 1..MAX_PRECISION) {
+            throw IllegalArgumentException("Precision must be between 1 and $MAX_PRECISION")
+        }
+        if (maxBucketValue < 0) {
+            throw IllegalArgumentException("The maximum bucket value must be non-negative")
+        }
+    }
+
+    private val histogram =
+        LogLinearCollector(name, help, namespace, labelNames, precision, rangeOf(maxBucketValue, precision) + 1)
+
+    /** Returns a snapshot of this histogram. Throws if it has labels. */
+    override fun get() = histogram.noLabels().snapshot()
+
+    /** Returns a snapshot of the series of this histogram with the given labels. */
+    fun snapshot(labels: List<String> = emptyList()) = child(labels).snapshot()
+
+    override fun writeJson(generator: JsonGenerator) = if (labelNames.isEmpty()) {
+        get().writeJson(generator)
+    } else {
+        generator.writeLabeled(histogram.childEntries, labelNames.size, { it.key }) {
+            it.value.snapshot().writeJson(generator)
+        }
+    }
+
+    override fun reset() = histogram.clear()
+
+    override fun register(registry: CollectorRegistry) = this.also { registry.register(histogram) }
+
+    /** Records the given non-negative value. */
+    @JvmOverloads
+    fun record(value: Long, labels: List<String> = emptyList()) = child(labels).record(value)
+
+    /** Records the time elapsed since [startNanos], a value of [System.nanoTime], see [Child.observeSince]. */
+    @JvmOverloads
+    fun observeSince(startNanos: Long, labels: List<String> = emptyList()) = child(labels).observeSince(startNanos)
+
+    /** Runs [block] and records how long it took, in nanoseconds, see [Child.time]. */
+    inline fun <T> time(labels: List<String> = emptyList(), block: () -> T): T = child(labels).time(block)
+
+    /** Records the time until [future] completes, in nanoseconds, see [Child.timeAsync]. */
+    @JvmOverloads
+    fun <F : CompletionStage<*>> timeAsync(future: F, labels: List<String> = emptyList()): F =
+        child(labels).timeAsync(future)
+
+    /** Remove the child with the given labels (the metric with those labels will stop being emitted) */
+    fun remove(labels: List<String> = emptyList()) {
+        if (labels.isNotEmpty()) {
+            histogram.remove(labels)
+        }
+    }
+
+    /**
+     * Returns the child of this histogram with the given label values, creating it if necessary. Values recorded
+     * through the returned handle do not look up the labels again. Once the child is removed (with [remove] or by
+     * resetting this metric) values recorded through an existing handle are no longer emitted.
+     */
+    fun child(vararg labelValues: String): Child = histogram.labels(labelValues.asList())
+
+    /** Returns the child of this histogram with the given label values, see [child]. */
+    fun child(labelValues: List<String>): Child =
+        if (labelValues.isEmpty()) histogram.noLabels() else histogram.labels(labelValues)
+
+    override fun collect() = histogram.collect()
+
+    /**
+     * A handle to the series of a [LogLinearHistogramMetric] for one set of label values, see
+     * [LogLinearHistogramMetric.child].
+     */
+    class Child internal constructor(private val precision: Int) {
+        private val stripes = AtomicReferenceArray<Stripe>(STRIPES)
+
+        /** Idle timers for [timeAsync]. A timer is in at most one slot, and in none while it times a future. */
+        private val timers = AtomicReferenceArray<AsyncTimer>(TIMER_POOL_SIZE)
+
+        /** The time this child was created, in milliseconds since the epoch. */
+        internal val created = System.currentTimeMillis()
+
+        /** Records the given non-negative value. */
+        fun record(value: Long) {
+            if (value < 0) {
+                throw IllegalArgumentException("Value must be non-negative.")
+            }
+            val hash = Thread.currentThread().hashCode()
+            val index = (hash xor (hash ushr 16)) and (STRIPES - 1)
+            val stripe = stripes[index] ?: Stripe(precision).let {
+                if (stripes.compareAndSet(index, null, it)) it else stripes[index]
+            }
+            stripe.record(value)
+        }
+
+        /**
+         * Records the time elapsed since [startNanos], which is a value previously returned by [System.nanoTime].
+         * This allows timing code that does not fit in a block, without allocating anything per observation.
+         */
+        fun observeSince(startNanos: Long) = record(maxOf(0, System.nanoTime() - startNanos))
+
+        /**
+         * Runs [block] and records how long it took, in nanoseconds, whether it returns or throws. This is inlined, so
+         * no closure is allocated.
+         */
+        inline fun <T> time(block: () -> T): T {
+            val start = System.nanoTime()
+            try {
+                return block()
+            } finally {
+                observeSince(start)
+            }
+        }
+
+        /**
+         * Records the time from now until [future] completes, in nanoseconds, whether it completes normally or
+         * exceptionally. Returns [future] itself, for chaining. Any number of futures may be timed concurrently.
+         *
+         * The completion action registered with [CompletionStage.whenComplete] is a timer taken from a pool kept by
+         * this child, which holds the start time and returns itself to the pool once it recorded the duration. So
+         * as long as no more than [TIMER_POOL_SIZE] futures are timed at the same time, this allocates nothing beyond
+         * what [CompletionStage.whenComplete] allocates itself (for a [java.util.concurrent.CompletableFuture], the
+         * dependent stage it returns, plus a completion node if the future is still pending). Beyond that, new timers
+         * are allocated, and kept when they complete if the pool has room.
+         */
+        fun <F : CompletionStage<*>> timeAsync(future: F): F {
+            val timer = takeTimer()
+            // Written before registering the action, which [CompletionStage.whenComplete] makes visible to it.
+            timer.startNanos = System.nanoTime()
+            future.whenComplete(timer)
+            return future
+        }
+
+        private fun takeTimer(): AsyncTimer {
+            for (i in 0 until TIMER_POOL_SIZE) {
+                if (timers[i] != null) {
+                    timers.getAndSet(i, null)?.let { return it }
+                }
+            }
+            return AsyncTimer(this)
+        }
+
+        private fun releaseTimer(timer: AsyncTimer) {
+            for (i in 0 until TIMER_POOL_SIZE) {
+                if (timers.compareAndSet(i, null, timer)) {
+                    return
+                }
+            }
+        }
+
+        /**
+         * The completion action of a future timed by [timeAsync]. It is owned by that future until it completes,
+         * then returned to [timers].
+         */
+        private class AsyncTimer(private val child: Child) : BiConsumer<Any?, Throwable?> {
+            /** The value of [System.nanoTime] when the future being timed was passed to [timeAsync]. */
+            var startNanos = 0L
+
+            override fun accept(result: Any?, error: Throwable?) {
+                child.observeSince(startNanos)
+                child.releaseTimer(this)
+            }
+        }
+
+        /**
+         * Merges the stripes of this child into a [Snapshot]. Values recorded concurrently may be included in some of
+         * its statistics but not in others. The counts of a stripe are read before its other statistics, which
+         * [Stripe.record] updates first, so a value which is counted is also included in the sum, min and max.
+         */
+        fun snapshot(): Snapshot {
+            val counts = arrayOfNulls<LongArray>(rangesFor(precision))
+            var sum = 0L
+            var min = Long.MAX_VALUE
+            var max = Long.MIN_VALUE
+            for (i in 0 until STRIPES) {
+                val stripe = stripes[i] ?: continue
+                for (range in counts.indices) {
+                    val stripeCounts = stripe.ranges[range] ?: continue
+                    val merged = counts[range] ?: LongArray(1 shl precision).also { counts[range] = it }
+                    for (offset in merged.indices) {
+                        merged[offset] += stripeCounts[offset]
+                    }
+                }
+                sum += stripe.sum.get()
+                min = minOf(min, stripe.min.get())
+                max = maxOf(max, stripe.max.get())
+            }
+            val count = counts.sumOf { it?.sum() ?: 0L }
+            return if (count == 0L) {
+                Snapshot(precision, counts, 0, 0, 0, 0)
+            } else {
+                Snapshot(precision, counts, count, sum, min, max)
+            }
+        }
+    }
+
+    /** The counts recorded by some of the threads recording values in a [Child]. */
+    private class Stripe(private val precision: Int) {
+        /** The counts of each power of two, allocated when the first value in its range is recorded. */
+        val ranges = AtomicReferenceArray<AtomicLongArray>(rangesFor(precision))
+        val sum = AtomicLong()
+        val min = AtomicLong(Long.MAX_VALUE)
+        val max = AtomicLong(Long.MIN_VALUE)
+
+        fun record(value: Long) {
+            val range = rangeOf(value, precision)
+            val offset = if (range == 0) value.toInt() else (value ushr (range - 1)).toInt() - (1 shl precision)
+            val counts = ranges[range] ?: AtomicLongArray(1 shl precision).let {
+                if (ranges.compareAndSet(range, null, it)) it else ranges[range]
+            }
+            sum.addAndGet(value)
+            var current = min.get()
+            while (value < current && !min.compareAndSet(current, value)) {
+                current = min.get()
+            }
+            current = max.get()
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get()
+            }
+            // Counted last, see [Child.snapshot].
+            counts.incrementAndGet(offset)
+        }
+    }
+
+    /**
+     * The state of a [LogLinearHistogramMetric] series at some point in time.
+     */
+    class Snapshot internal constructor(
+        private val precision: Int,
+        /** The counts of each power of two, or null for ranges in which no value was recorded. */
+        private val counts: Array<LongArray?>,
+        /** The number of recorded values. */
+        val count: Long,
+        /** The sum of the recorded values. */
+        val sum: Long,
+        /** The smallest recorded value, or 0 if none were recorded. */
+        val min: Long,
+        /** The largest recorded value, or 0 if none were recorded. */
+        val max: Long
+    ) {
+        /** The mean of the recorded values, or 0 if none were recorded. */
+        val mean: Double
+            get() = if (count == 0L) 0.0 else sum.toDouble() / count
+
+        /**
+         * Returns the value below which the given fraction of the recorded values fall, e.g. 0.99 for the 99th
+         * percentile, or 0 if no values were recorded. The result is within the resolution of the histogram.
+         */
+        fun valueAtQuantile(quantile: Double): Long {
+            if (quantile !in 0.0..1.0) {
+                throw IllegalArgumentException("Quantile must be between 0 and 1")
+            }
+            if (count == 0L) {
+                return 0
+            }
+            val rank = maxOf(1L, ceil(quantile * count).toLong())
+            var seen = 0L
+            for (range in counts.indices) {
+                val rangeCounts = counts[range] ?: continue
+                for (offset in rangeCounts.indices) {
+                    seen += rangeCounts[offset]
+                    if (seen >= rank) {
+                        val value = highestValue(range, offset)
+                        // Only a snapshot racing with the first values recorded could have min > max.
+                        return if (min <= max) value.coerceIn(min, max) else value
+                    }
+                }
+            }
+            return max
+        }
+
+        /** Returns the number of values recorded in the given power of two. */
+        internal fun countInRange(range: Int): Long = counts[range]?.sum() ?: 0
+
+        /** Returns the largest value counted in the bucket at [offset] in the given power of two. */
+        private fun highestValue(range: Int, offset: Int): Long = if (range == 0) {
+            offset.toLong()
+        } else {
+            (((1L shl precision) + offset + 1) shl (range - 1)) - 1
+        }
+
+        internal fun writeJson(generator: JsonGenerator) {
+            generator.writeStartObject()
+            generator.writeNumberField("count", count)
+            generator.writeNumberField("sum", sum)
+            generator.writeNumberField("min", min)
+            generator.writeNumberField("max", max)
+            generator.writeNumberField("mean", mean)
+            generator.writeNumberField("p50", valueAtQuantile(0.5))
+            generator.writeNumberField("p99", valueAtQuantile(0.99))
+            generator.writeNumberField("p999", valueAtQuantile(0.999))
+            generator.writeEndObject()
+        }
+    }
+
+    companion object {
+        /** The default [precision], which gives a relative error of at most about 3%. */
+        const val DEFAULT_PRECISION = 5
+
+        /** The largest supported [precision]. */
+        const val MAX_PRECISION = 10
+
+        /**
+         * The default [maxBucketValue], which exports 17 buckets with the default precision. Histograms of larger
+         * values, e.g. durations in nanoseconds, should set their own.
+         */
+        const val DEFAULT_MAX_BUCKET_VALUE = (1L shl 20) - 1
+
+        /** The number of stripes per series, a power of two. */
+        private val STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors().coerceIn(1, 16) * 2 - 1)
+
+        /** The maximum number of idle timers kept by each [Child] for [Child.timeAsync]. */
+        private const val TIMER_POOL_SIZE = 8
+
+        /** Returns the number of powers of two needed to cover all longs with the given precision. */
+        private fun rangesFor(precision: Int) = 64 - precision
+
+        /** Returns the power of two (counting from 0 for the values below 2^[precision]) which [value] falls in. */
+        private fun rangeOf(value: Long, precision: Int) = if (value < (1L shl precision)) {
+            0
+        } else {
+            // The number of low bits below the resolution of the range of [value], plus one.
+            64 - value.countLeadingZeroBits() - precision
+        }
+    }
+}
@@ -15,12 +15,16 @@
  */
 package org.jitsi.metrics
 
+import com.fasterxml.jackson.core.JsonGenerator
 import io.prometheus.client.CollectorRegistry
-import io.prometheus.client.Gauge
+import java.util.concurrent.atomic.AtomicLong
 
 /**
- * A long metric wrapper for Prometheus [Gauges][Gauge].
- * Provides atomic operations such as [incAndGet].
+ * A long metric exported as a Prometheus gauge.
+ * Provides atomic operations such as [incAndGet]. The number of series can be bounded with [SeriesLimits].
+ *
+ * The value is held in an [AtomicLong] per set of labels, so it is exact over the full range of [Long] (it is only
+ * converted to a double in the Prometheus formats), and updates take no lock.
  *
  * @see [Prometheus Gauge](https://prometheus.io/docs/concepts/metric_types/.gauge)
  */
@@ -35,72 +39,75 @@ class LongGaugeMetric @JvmOverloads constructor(
     internal val initialValue: Long = 0L,
     /** Label names for this metric. If non-empty, the initial value must be 0 and all get/update calls MUST
      * specify values for the labels. Calls to simply get() or set() will fail with an exception. */
-    val labelNames: List<String> = emptyList()
+    val labelNames: List<String> = emptyList(),
+    /** Limits on the series of this metric, when it has labels. */
+    limits: SeriesLimits = SeriesLimits.NONE
 ) : Metric<Long>() {
-    private val gauge = run {
-        val builder = Gauge.build(name, help).namespace(namespace)
-        if (labelNames.isNotEmpty()) {
-            builder.labelNames(*labelNames.toTypedArray())
-            if (initialValue != 0L) {
-                throw IllegalArgumentException("Cannot set an initial value for a labeled gauge")
-            }
+    private val gauge = GaugeCollector(
+        name,
+        help,
+        namespace,
+        labelNames,
+        { Child() },
+        { it.get().toDouble() },
+        limits,
+        { it.change }
+    ).apply {
+        if (labelNames.isNotEmpty() && initialValue != 0L) {
+            throw IllegalArgumentException("Cannot set an initial value for a labeled gauge")
         }
-        builder.create().apply {
-            if (initialValue != 0L) {
-                set(initialValue.toDouble())
-            }
+        if (initialValue != 0L) {
+            noLabels().set(initialValue)
         }
     }
 
-    /** When we have labels [get()] throws an exception and the JSON format is not supported. */
-    override val supportsJson: Boolean = labelNames.isEmpty()
-    override fun get() = gauge.get().toLong()
-    fun get(labels: List<String>) = gauge.labels(*labels.toTypedArray()).get().toLong()
+    override fun get() = gauge.noLabels().get()
+    fun get(labels: List<String>) = gauge.labels(labels).get()
+
+    override fun writeJson(generator: JsonGenerator) = if (labelNames.isEmpty()) {
+        generator.writeNumber(get())
+    } else {
+        gauge.evictIdle()
+        generator.writeLabeled(gauge.childEntries, labelNames.size, { it.key }) {
+            generator.writeNumber(it.value.get())
+        }
+    }
 
-    override fun reset() = synchronized(gauge) {
+    override fun reset() {
         gauge.clear()
         if (initialValue != 0L) {
-            gauge.inc(initialValue.toDouble())
+            gauge.noLabels().set(initialValue)
         }
     }
 
     override fun register(registry: CollectorRegistry) = this.also { registry.register(gauge) }
 
+    override fun forEachSeries(action: (List<String>, Any) -> Unit) =
+        gauge.childEntries.forEach { (labelValues, child) -> action(labelValues, child.get()) }
+
+    override fun forEachChangedSeries(action: (List<String>, Any?) -> Unit) =
+        gauge.drainChanges { labelValues, child -> action(labelValues, child?.get()) }
+
+    override val limitedCollector: LabeledCollector<*>?
+        get() = gauge.takeIf { it.hasLimits }
+
     /**
      * Atomically sets the gauge to the given value.
      */
     @JvmOverloads
-    fun set(newValue: Long, labels: List<String> = emptyList()): Unit = synchronized(gauge) {
-        if (labels.isEmpty()) {
-            gauge.set(newValue.toDouble())
-        } else {
-            gauge.labels(*labels.toTypedArray()).set(newValue.toDouble())
-        }
-    }
+    fun set(newValue: Long, labels: List<String> = emptyList()): Unit = child(labels).set(newValue)
 
     /**
      * Atomically increments the value of this gauge by one.
      */
     @JvmOverloads
-    fun inc(labels: List<String> = emptyList()) = synchronized(gauge) {
-        if (labels.isEmpty()) {
-            gauge.inc()
-        } else {
-            gauge.labels(*labels.toTypedArray()).inc()
-        }
-    }
+    fun inc(labels: List<String> = emptyList()) = child(labels).inc()
 
     /**
      * Atomically decrements the value of this gauge by one.
      */
     @JvmOverloads
-    fun dec(labels: List<String> = emptyList()) = synchronized(gauge) {
-        if (labels.isEmpty()) {
-            gauge.dec()
-        } else {
-            gauge.labels(*labels.toTypedArray()).dec()
-        }
-    }
+    fun dec(labels: List<String> = emptyList()) = child(labels).dec()
 
     /**
      * Atomically adds the given value to this gauge, returning the updated value.
@@ -108,17 +115,7 @@ class LongGaugeMetric @JvmOverloads constructor(
      * @return the updated value
      */
     @JvmOverloads
-    fun addAndGet(delta: Long, labels: List<String> = emptyList()): Long = synchronized(gauge) {
-        return if (labels.isEmpty()) {
-            gauge.inc(delta.toDouble())
-            gauge.get().toLong()
-        } else {
-            with(gauge.labels(*labels.toTypedArray())) {
-                inc(delta.toDouble())
-                get().toLong()
-            }
-        }
-    }
+    fun addAndGet(delta: Long, labels: List<String> = emptyList()): Long = child(labels).addAndGet(delta)
 
     /**
      * Atomically increments the value of this gauge by one, returning the updated value.
@@ -137,10 +134,62 @@ class LongGaugeMetric @JvmOverloads constructor(
     fun decAndGet(labels: List<String> = emptyList()) = addAndGet(-1, labels)
 
     /** Remove the child with the given labels (the metric with those labels will stop being emitted) */
-    fun remove(labels: List<String> = emptyList()) = synchronized(gauge) {
+    fun remove(labels: List<String> = emptyList()) {
         if (labels.isNotEmpty()) {
-            gauge.remove(*labels.toTypedArray())
+            gauge.remove(labels)
+        }
+    }
+
+    /**
+     * Returns the child of this gauge with the given label values, creating it if necessary. Updates through the
+     * returned handle do not look up the labels again. Once the child is removed
+     * (with [remove] or by resetting this metric) updates through an existing handle are no longer emitted.
+     */
+    fun child(vararg labelValues: String): Child = gauge.labels(labelValues.asList())
+
+    /** Returns the child of this gauge with the given label values, see [child]. */
+    fun child(labelValues: List<String>): Child =
+        if (labelValues.isEmpty()) gauge.noLabels() else gauge.labels(labelValues)
+
+    override fun collect() = gauge.collect()
+
+    /**
+     * A handle to the value of a [LongGaugeMetric] for one set of label values, see [LongGaugeMetric.child].
+     */
+    class Child internal constructor() {
+        private val value = AtomicLong()
+
+        /** Tracks whether this child changed, see [MetricsContainer.getDelta]. */
+        internal val change = SeriesChange()
+
+        /** Returns the value of this child. */
+        fun get(): Long = value.get()
+
+        /** Atomically sets this child to the given value. */
+        fun set(newValue: Long) {
+            value.set(newValue)
+            change.mark()
         }
+
+        /** Atomically increments the value of this child by one. */
+        fun inc() {
+            value.incrementAndGet()
+            change.mark()
+        }
+
+        /** Atomically decrements the value of this child by one. */
+        fun dec() {
+            value.decrementAndGet()
+            change.mark()
+        }
+
+        /** Atomically adds the given value to this child, returning the updated value. */
+        fun addAndGet(delta: Long): Long = value.addAndGet(delta).also { change.mark() }
+
+        /** Atomically increments the value of this child by one, returning the updated value. */
+        fun incAndGet() = addAndGet(1)
+
+        /** Atomically decrements the value of this child by one, returning the updated value. */
+        fun decAndGet() = addAndGet(-1)
     }
-    internal fun collect() = gauge.collect()
 }
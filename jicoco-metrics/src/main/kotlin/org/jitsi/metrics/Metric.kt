@@ -15,7 +15,11 @@
  */
 package org.jitsi.metrics
 
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import io.prometheus.client.Collector.MetricFamilySamples
 import io.prometheus.client.CollectorRegistry
+import java.io.StringWriter
 
 /**
  * `Metric` provides methods common to all Prometheus metric type wrappers.
@@ -45,5 +49,43 @@ sealed class Metric<T> {
      */
     internal abstract fun register(registry: CollectorRegistry): Metric<T>
 
-    internal open val supportsJson: Boolean = true
+    /**
+     * Returns the samples of this metric, as the collector registered by [register] would.
+     */
+    internal abstract fun collect(): List<MetricFamilySamples>
+
+    /**
+     * Writes the current value of this metric to [generator] as a single JSON value. Labeled metrics write an object
+     * with their series keyed by label values, see [writeLabeledSamples].
+     */
+    internal abstract fun writeJson(generator: JsonGenerator)
+
+    /**
+     * Calls [action] with the label values and the current value of each series of this metric, see
+     * [MetricsContainer.getDelta]. Values are compared between snapshots with `equals`, and written with
+     * [writeSeriesValue]. By default the whole metric is a single series, whose value is its JSON representation.
+     */
+    internal open fun forEachSeries(action: (List<String>, Any) -> Unit) {
+        val writer = StringWriter()
+        jsonFactory.createGenerator(writer).use { writeJson(it) }
+        action(emptyList(), RawJson(writer.toString()))
+    }
+
+    /**
+     * Calls [action] with the label values and the current value (`null` if it was removed) of each series which
+     * changed since the last call, or of every series on the first call, see [MetricsContainer.getDelta]. Returns
+     * `false` if the changes of this metric are not tracked, or were dropped since the last call, in which case
+     * [forEachSeries] is used instead.
+     */
+    internal open fun forEachChangedSeries(action: (List<String>, Any?) -> Unit): Boolean = false
+
+    /**
+     * The collector of this metric, if its series are bounded by [SeriesLimits].
+     */
+    internal open val limitedCollector: LabeledCollector<*>?
+        get() = null
+
+    private companion object {
+        val jsonFactory = JsonFactory()
+    }
 }
@@ -15,13 +15,25 @@
  */
 package org.jitsi.metrics
 
-import com.fasterxml.jackson.databind.ObjectMapper
-import com.fasterxml.jackson.databind.node.ObjectNode
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import io.prometheus.client.Collector.MetricFamilySamples
 import io.prometheus.client.CollectorRegistry
 import io.prometheus.client.exporter.common.TextFormat
 import org.jitsi.utils.logging2.createLogger
+import java.io.BufferedWriter
 import java.io.IOException
+import java.io.OutputStream
+import java.io.OutputStreamWriter
 import java.io.StringWriter
+import java.io.Writer
+import java.time.Duration
+import java.util.AbstractMap.SimpleImmutableEntry
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+import java.util.zip.GZIPOutputStream
 
 /**
  * `MetricsContainer` gathers and exports metrics from Jitsi components.
@@ -33,7 +45,7 @@ open class MetricsContainer @JvmOverloads constructor(
     val namespace: String = "jitsi"
 ) {
     private val logger = createLogger()
-    private val jsonMapper = ObjectMapper()
+    private val jsonFactory = JsonFactory()
 
     /**
      * Defines the behavior when registering a metric with a name in use by an existing metric.
@@ -45,69 +57,322 @@ open class MetricsContainer @JvmOverloads constructor(
     var checkForNameConflicts = true
 
     /**
-     * Map metric names to wrapped Prometheus metric types using the [Metric] interface.
+     * Map metric names to wrapped Prometheus metric types using the [Metric] interface. Metrics may be registered
+     * concurrently with each other and with exporting, see [getOrRegister].
      */
-    private val metrics = mutableMapOf<String, Metric<*>>()
+    private val metrics = ConcurrentHashMap<String, Metric<*>>()
+
+    /** The metrics in [metrics], in the order they were registered, which is the order in which they are exported. */
+    private val registered = ConcurrentLinkedQueue<Metric<*>>()
+
+    private val scrapeCache = ScrapeCache()
+
+    /**
+     * The [ProtobufWriter] reused by exports in the Prometheus protobuf format, see [writeMetrics]. An export takes it
+     * and puts it back when done, so concurrent exports use their own.
+     */
+    private val protobufWriter = AtomicReference<ProtobufWriter?>()
+
+    /** The label values of the open scopes, see [createScope]. */
+    private val scopes = ConcurrentHashMap.newKeySet<List<String>>()
+
+    /** The token of the last snapshot taken by [getDelta]. */
+    private val snapshotTokens = AtomicLong()
 
     /**
-     * Returns the metrics in this instance as a JSON string.
+     * The latest series of the metrics whose changes are tracked (see [Metric.forEachChangedSeries]), by metric name.
+     * A map is replaced rather than modified when its metric changes, so snapshots share the maps of the metrics which
+     * did not change. Guarded by itself.
+     */
+    private val trackedSeries = HashMap<String, Map<List<String>, Any>>()
+
+    /**
+     * Counts the series evicted because of [SeriesLimits], per metric. Registered with the first metric which has
+     * limits, see [countLimitedSeries]. `null` if it could not be registered.
+     */
+    private val evictedSeries by lazy {
+        registerLimitCounter(
+            "metrics_evicted_series_total",
+            "Number of labeled series evicted because they were idle."
+        )
+    }
+
+    /** Counts the series rejected because of [SeriesLimits], per metric, see [evictedSeries]. */
+    private val rejectedSeries by lazy {
+        registerLimitCounter(
+            "metrics_rejected_series_total",
+            "Number of lookups of new labeled series rejected because a metric had too many series."
+        )
+    }
+
+    /**
+     * How long the output of [getPrometheusMetrics] is reused by subsequent calls with the same content type, so that
+     * several scrapers arriving within this window only cause the metrics to be rendered once. Defaults to
+     * [Duration.ZERO], which renders the metrics on every call.
+     */
+    var prometheusCacheTtl: Duration
+        get() = scrapeCache.ttl
+        set(value) {
+            scrapeCache.ttl = value
+            scrapeCache.invalidate()
+        }
+
+    /** The number of times the metrics were rendered in a Prometheus text format (i.e. not served from the cache). */
+    val prometheusRenderCount: Long
+        get() = scrapeCache.renderCount
+
+    /** The total time spent rendering the metrics in a Prometheus text format. */
+    val prometheusRenderTime: Duration
+        get() = Duration.ofNanos(scrapeCache.totalRenderNanos)
+
+    /**
+     * Returns the metrics in this instance as a JSON string. Labeled metrics are represented as nested objects keyed by
+     * label values, e.g. `{"requests": {"GET": {"200": 5, "404": 1}}}` for a counter with labels `["method", "code"]`.
+     * It is rendered by [writeTextFormat].
+     *
+     * An override is used by [getMetrics], but not by [writeMetrics], which streams the output of [writeTextFormat].
+     * Override [writeTextFormat] to change both.
      *
      * @return a JSON string of the metrics in this instance
      */
     open val jsonString: String
-        get() = jsonMapper.valueToTree<ObjectNode>(
-            metrics.filter { it.value.supportsJson }.mapValues { it.value.get() }
-        ).toString()
+        get() = StringWriter().also { writeTextFormat(CONTENT_TYPE_JSON, it) }.toString()
 
     /**
      * Returns the metrics in this instance in the Prometheus text-based format.
      * See [Formats](https://github.com/prometheus/docs/blob/main/content/docs/instrumenting/exposition_formats.md).
+     * The result may come from a cache, see [prometheusCacheTtl]. It is rendered by [writeTextFormat].
+     *
+     * As with [jsonString], an override is used by [getMetrics] but not by [writeMetrics].
      *
      * @param contentType the Content-Type header string
      * @return the metrics in this instance in the Prometheus text-based format
      */
-    open fun getPrometheusMetrics(contentType: String): String {
-        val writer = StringWriter()
+    open fun getPrometheusMetrics(contentType: String): String = scrapeCache.get(contentType) { writer ->
         try {
-            TextFormat.writeFormat(contentType, writer, registry.metricFamilySamples())
+            writeTextFormat(contentType, writer)
         } catch (e: IOException) {
             throw RuntimeException(e)
         }
-        return writer.toString()
     }
 
     /**
      * Gets metrics in a format based on the `Accept` header. Returns the content type as the second element of the
      * pair. Defaults to OpenMetrics.
+     *
+     * The binary protobuf format can not be returned as a string, so it is skipped in favor of the next accepted media
+     * type. Use [writeMetrics] with an [OutputStream] to export it.
      */
     fun getMetrics(
         /** List of accepted media types in order of preference */
         accepts: List<String>
     ): Pair<String, String> {
-        if (accepts.isEmpty()) {
-            return getPrometheusMetrics(
-                TextFormat.CONTENT_TYPE_OPENMETRICS_100
-            ) to TextFormat.CONTENT_TYPE_OPENMETRICS_100
+        val contentType = chooseContentType(accepts)
+        return if (contentType == CONTENT_TYPE_JSON) {
+            jsonString to contentType
+        } else {
+            getPrometheusMetrics(contentType) to contentType
         }
-        accepts.forEach {
-            when (it) {
-                "application/openmetrics-text" -> return getPrometheusMetrics(
-                    TextFormat.CONTENT_TYPE_OPENMETRICS_100
-                ) to TextFormat.CONTENT_TYPE_OPENMETRICS_100
+    }
 
-                "text/plain" -> return getPrometheusMetrics(
-                    TextFormat.CONTENT_TYPE_004
-                ) to TextFormat.CONTENT_TYPE_004
+    /**
+     * Writes metrics in a format based on the `Accept` header to [out] as they are serialized, without holding the
+     * whole output in memory. Returns the content type that was written. Defaults to OpenMetrics.
+     *
+     * Besides the formats supported by [getMetrics], the Prometheus protobuf format
+     * (`application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited`) is supported.
+     *
+     * If [gzip] is set the output is gzip-compressed, and the caller is responsible for setting the
+     * `Content-Encoding` header. [out] is flushed but not closed.
+     *
+     * @throws NoSupportedMediaTypeException if none of [accepts] is supported, in which case nothing is written.
+     */
+    @JvmOverloads
+    fun writeMetrics(
+        /** List of accepted media types in order of preference */
+        accepts: List<String>,
+        /** The stream to write to */
+        out: OutputStream,
+        /** Whether to gzip-compress the output */
+        gzip: Boolean = false
+    ): String {
+        val contentType = chooseContentType(accepts, binary = true)
+        val stream = if (gzip) GZIPOutputStream(out, STREAM_BUFFER_SIZE) else out
+        if (contentType == PrometheusProtobufFormat.CONTENT_TYPE) {
+            val writer = protobufWriter.getAndSet(null) ?: ProtobufWriter()
+            try {
+                PrometheusProtobufFormat.write(registry.metricFamilySamples(), stream, writer)
+            } finally {
+                protobufWriter.set(writer)
+            }
+        } else {
+            writeMetrics(contentType, BufferedWriter(OutputStreamWriter(stream, Charsets.UTF_8), STREAM_BUFFER_SIZE))
+        }
+        if (stream is GZIPOutputStream) {
+            stream.finish()
+        }
+        out.flush()
+        return contentType
+    }
 
-                "application/json" -> return jsonString to "application/json"
+    /**
+     * Writes metrics in a format based on the `Accept` header to [writer] as they are serialized, without holding the
+     * whole output in memory. Returns the content type that was written. Defaults to OpenMetrics. As with
+     * [getMetrics], the binary protobuf format is skipped.
+     *
+     * [writer] is flushed but not closed.
+     *
+     * @throws NoSupportedMediaTypeException if none of [accepts] is supported, in which case nothing is written.
+     */
+    fun writeMetrics(
+        /** List of accepted media types in order of preference */
+        accepts: List<String>,
+        /** The writer to write to */
+        writer: Writer
+    ): String = chooseContentType(accepts).also { writeMetrics(it, writer) }
 
-                "*/*" -> return getPrometheusMetrics(
-                    TextFormat.CONTENT_TYPE_OPENMETRICS_100
-                ) to TextFormat.CONTENT_TYPE_OPENMETRICS_100
+    private fun writeMetrics(contentType: String, writer: Writer) {
+        if (contentType == CONTENT_TYPE_JSON) {
+            writeTextFormat(contentType, writer)
+        } else {
+            scrapeCache.write(contentType, writer) { writeTextFormat(contentType, it) }
+        }
+        writer.flush()
+    }
+
+    /**
+     * Writes the metrics to [writer] in [contentType], which is `application/json` or one of the Prometheus text
+     * formats. All the text outputs of this container are rendered by it: [jsonString], [getPrometheusMetrics], and
+     * [getMetrics] and [writeMetrics] for these formats. Subclasses may override it to change them consistently,
+     * rather than overriding [jsonString] or [getPrometheusMetrics], which [writeMetrics] does not use.
+     * The Prometheus protobuf format, which [writeMetrics] writes from the registry directly, is not affected.
+     */
+    protected open fun writeTextFormat(contentType: String, writer: Writer) {
+        if (contentType == CONTENT_TYPE_JSON) {
+            writeJson(writer)
+        } else {
+            TextFormat.writeFormat(contentType, writer, registry.metricFamilySamples())
+        }
+    }
+
+    /**
+     * Writes all metrics to [writer] as a JSON object keyed by metric name. The metrics are walked directly with a
+     * [JsonGenerator], so no intermediate map or JSON tree is built.
+     */
+    private fun writeJson(writer: Writer) {
+        jsonFactory.createGenerator(writer).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET).use { generator ->
+            generator.writeStartObject()
+            for (metric in registered) {
+                generator.writeFieldName(metric.name)
+                metric.writeJson(generator)
+            }
+            generator.writeEndObject()
+        }
+    }
+
+    /**
+     * Returns the series which changed since [since] as JSON, for pushing metrics to a backend more cheaply than the
+     * whole [jsonString] every time. The format is the same as [jsonString], but only includes the series whose value
+     * changed, and counters hold the increase since [since] rather than their total. Series which were removed are not
+     * reported. Without [since] all series are included, with counters holding their total.
+     *
+     * Pass the snapshot of the returned [MetricsDelta] to the next call. Each caller should keep its own snapshots.
+     *
+     * Metrics which are not split into series with scalar values (i.e. histograms) are reported whole whenever any of
+     * their values changed.
+     *
+     * When [since] is the snapshot returned by the previous call, only the series of counters and long and double
+     * gauges which were updated since are read. Other metrics are read whole, as are those whose series changed too
+     * often to be tracked since the previous call (see [LabeledCollector.MAX_QUEUED_CHANGES]).
+     */
+    @JvmOverloads
+    fun getDelta(since: MetricsSnapshot? = null): MetricsDelta = synchronized(trackedSeries) {
+        val values = HashMap<String, Map<List<String>, Any>>(metrics.size)
+        var changedSeries = 0
+        val writer = StringWriter()
+        jsonFactory.createGenerator(writer).use { generator ->
+            generator.writeStartObject()
+            for (metric in registered) {
+                val previous = since?.values?.get(metric.name)
+                val latest = trackedSeries[metric.name]
+                var updated: HashMap<List<String>, Any>? = null
+                val updatedLabelValues = HashSet<List<String>>()
+                val tracked = metric.forEachChangedSeries { labelValues, value ->
+                    val copy = updated ?: HashMap(latest ?: emptyMap()).also { updated = it }
+                    if (value == null) copy.remove(labelValues) else copy[labelValues] = value
+                    updatedLabelValues.add(labelValues)
+                }
+                val series: Map<List<String>, Any>
+                if (tracked) {
+                    series = updated ?: latest ?: emptyMap()
+                    trackedSeries[metric.name] = series
+                } else {
+                    // The metric is not tracked, or its changes since [latest] were dropped.
+                    trackedSeries.remove(metric.name)
+                    series = HashMap<List<String>, Any>().also { all ->
+                        metric.forEachSeries { labelValues, value -> all[labelValues] = value }
+                    }
+                }
+                values[metric.name] = series
+
+                val changes: List<Map.Entry<List<String>, Any>> = when {
+                    previous === series -> emptyList()
+                    // Nothing changed since [since] other than what was just read.
+                    tracked && previous === latest -> updatedLabelValues.mapNotNull { labelValues ->
+                        series[labelValues]?.takeIf { it != previous?.get(labelValues) }
+                            ?.let { SimpleImmutableEntry(labelValues, it) }
+                    }
+                    else -> series.entries.filter { (labelValues, value) -> previous?.get(labelValues) != value }
+                }
+                if (changes.isEmpty()) {
+                    continue
+                }
+                changedSeries += changes.size
+                val writeChange = { change: Map.Entry<List<String>, Any> ->
+                    val value = change.value
+                    val previousValue = previous?.get(change.key)
+                    // A counter which decreased was reset, its total is the increase.
+                    if (metric is CounterMetric && value is Long && previousValue is Long && value >= previousValue) {
+                        generator.writeNumber(value - previousValue)
+                    } else {
+                        generator.writeSeriesValue(value)
+                    }
+                }
+                generator.writeFieldName(metric.name)
+                val labelCount = changes[0].key.size
+                if (labelCount == 0) {
+                    writeChange(changes[0])
+                } else {
+                    generator.writeLabeled(changes, labelCount, { it.key }, writeChange)
+                }
+            }
+            generator.writeEndObject()
+        }
+        MetricsDelta(MetricsSnapshot(snapshotTokens.incrementAndGet(), values), writer.toString(), changedSeries)
+    }
+
+    /**
+     * Selects the content type to export, based on the list of accepted media types in order of preference. The
+     * protobuf format is only selected if the output is [binary].
+     */
+    private fun chooseContentType(accepts: List<String>, binary: Boolean = false): String {
+        if (accepts.isEmpty()) {
+            return TextFormat.CONTENT_TYPE_OPENMETRICS_100
+        }
+        accepts.forEach {
+            when (it) {
+                "application/openmetrics-text" -> return TextFormat.CONTENT_TYPE_OPENMETRICS_100
+                "text/plain" -> return TextFormat.CONTENT_TYPE_004
+                "application/json" -> return CONTENT_TYPE_JSON
+                "*/*" -> return TextFormat.CONTENT_TYPE_OPENMETRICS_100
+            }
+            if (binary && PrometheusProtobufFormat.matches(it)) {
+                return PrometheusProtobufFormat.CONTENT_TYPE
             }
         }
         throw NoSupportedMediaTypeException(
-            "Supported media types are application/openmetrics-text, text/plain and application/json"
+            "Supported media types are application/openmetrics-text, text/plain, application/json" +
+                if (binary) " and application/vnd.google.protobuf" else ""
         )
     }
 
@@ -126,18 +391,10 @@ open class MetricsContainer @JvmOverloads constructor(
         initialValue: Boolean = false,
         /** Label names for this metric. If non-empty, the initial value must be 0 and all get/update calls MUST
          * specify values for the labels. Calls to simply get() or set() will fail with an exception. */
-        labelNames: List<String> = emptyList()
-    ): BooleanMetric {
-        if (metrics.containsKey(name)) {
-            if (checkForNameConflicts) {
-                throw RuntimeException("Could not register metric '$name'. A metric with that name already exists.")
-            }
-            return metrics[name] as BooleanMetric
-        }
-        return BooleanMetric(name, help, namespace, initialValue, labelNames).apply {
-            metrics[name] = register(registry)
-        }
-    }
+        labelNames: List<String> = emptyList(),
+        /** Limits on the series of the metric, when it has labels. */
+        limits: SeriesLimits = SeriesLimits.NONE
+    ): BooleanMetric = getOrRegister(name) { BooleanMetric(name, help, namespace, initialValue, labelNames, limits) }
 
     /**
      * Creates and registers a [CounterMetric] with the given [name], [help] string and optional [initialValue].
@@ -155,7 +412,9 @@ open class MetricsContainer @JvmOverloads constructor(
         initialValue: Long = 0,
         /** Label names for this metric. If non-empty, the initial value must be 0 and all get/update calls MUST
          * specify values for the labels. Calls to simply get() or inc() will fail with an exception. */
-        labelNames: List<String> = emptyList()
+        labelNames: List<String> = emptyList(),
+        /** Limits on the series of the metric, when it has labels. */
+        limits: SeriesLimits = SeriesLimits.NONE
     ): CounterMetric {
         val newName = if (name.endsWith("_total")) {
             name
@@ -164,14 +423,9 @@ open class MetricsContainer @JvmOverloads constructor(
                 logger.debug("Counter '$name' was renamed to '$it' to ensure consistent metric naming.")
             }
         }
-        if (metrics.containsKey(newName) or metrics.containsKey(name)) {
-            if (checkForNameConflicts) {
-                throw RuntimeException("Could not register metric '$newName'. A metric with that name already exists.")
-            }
-            return metrics[newName] as CounterMetric
-        }
-        return CounterMetric(newName, help, namespace, initialValue, labelNames).apply {
-            metrics[newName] = register(registry)
+        // The Prometheus counter is named without the suffix, so it conflicts with a metric named [name].
+        return getOrRegister(newName, conflictingName = name.takeIf { it != newName }) {
+            CounterMetric(newName, help, namespace, initialValue, labelNames, limits)
         }
     }
 
@@ -190,18 +444,11 @@ open class MetricsContainer @JvmOverloads constructor(
         initialValue: Long = 0,
         /** Label names for this metric. If non-empty, the initial value must be 0 and all get/update calls MUST
          * specify values for the labels. Calls to simply get() or set() will fail with an exception. */
-        labelNames: List<String> = emptyList()
-    ): LongGaugeMetric {
-        if (metrics.containsKey(name)) {
-            if (checkForNameConflicts) {
-                throw RuntimeException("Could not register metric '$name'. A metric with that name already exists.")
-            }
-            return metrics[name] as LongGaugeMetric
-        }
-        return LongGaugeMetric(name, help, namespace, initialValue, labelNames).apply {
-            metrics[name] = register(registry)
-        }
-    }
+        labelNames: List<String> = emptyList(),
+        /** Limits on the series of the metric, when it has labels. */
+        limits: SeriesLimits = SeriesLimits.NONE
+    ): LongGaugeMetric =
+        getOrRegister(name) { LongGaugeMetric(name, help, namespace, initialValue, labelNames, limits) }
 
     /**
      * Creates and registers a [DoubleGaugeMetric] with the given [name], [help] string and optional [initialValue].
@@ -219,23 +466,14 @@ open class MetricsContainer @JvmOverloads constructor(
         /** Label names for this metric. If non-empty, the initial value must be 0 and all get/update calls MUST
          * specify values for the labels. Calls to simply get() or set() will fail with an exception. */
         labelNames: List<String> = emptyList()
-    ): DoubleGaugeMetric {
-        if (metrics.containsKey(name)) {
-            if (checkForNameConflicts) {
-                throw RuntimeException("Could not register metric '$name'. A metric with that name already exists.")
-            }
-            return metrics[name] as DoubleGaugeMetric
-        }
-        return DoubleGaugeMetric(name, help, namespace, initialValue, labelNames).apply {
-            metrics[name] = register(registry)
-        }
-    }
+    ): DoubleGaugeMetric = getOrRegister(name) { DoubleGaugeMetric(name, help, namespace, initialValue, labelNames) }
 
     /**
      * Creates and registers an [InfoMetric] with the given [name], [help] string and [value].
      *
      * Throws an exception if a metric with the same name but a different type exists.
      */
+    @JvmOverloads
     fun registerInfo(
         /** the name of the metric */
         name: String,
@@ -245,40 +483,266 @@ open class MetricsContainer @JvmOverloads constructor(
         value: String,
         /** Label names for this metric. If non-empty, the initial value must be 0 and all get/update calls MUST
          * specify values for the labels. Calls to simply get() or inc() will fail with an exception. */
-        labelNames: List<String> = emptyList()
-    ): InfoMetric {
-        if (metrics.containsKey(name)) {
-            if (checkForNameConflicts) {
-                throw RuntimeException("Could not register metric '$name'. A metric with that name already exists.")
-            }
-            return metrics[name] as InfoMetric
-        }
-        return InfoMetric(name, help, namespace, value, labelNames).apply { metrics[name] = register(registry) }
-    }
+        labelNames: List<String> = emptyList(),
+        /** Limits on the series of the metric, when it has labels. */
+        limits: SeriesLimits = SeriesLimits.NONE
+    ): InfoMetric = getOrRegister(name) { InfoMetric(name, help, namespace, value, labelNames, limits) }
+
+    fun registerHistogram(
+        /** the name of the metric */
+        name: String,
+        /** the description of the metric */
+        help: String,
+        vararg buckets: Double
+    ): HistogramMetric = getOrRegister(name) { HistogramMetric(name, help, namespace, *buckets) }
 
+    /**
+     * Creates and registers a [HistogramMetric] with the given [name], [help] string, [labelNames] and [buckets].
+     *
+     * Throws an exception if a metric with the same name but a different type exists.
+     */
     fun registerHistogram(
         /** the name of the metric */
         name: String,
         /** the description of the metric */
         help: String,
+        /** Label names for this metric. If non-empty, all update calls MUST specify values for the labels. */
+        labelNames: List<String>,
         vararg buckets: Double
-    ): HistogramMetric {
-        if (metrics.containsKey(name)) {
-            if (checkForNameConflicts) {
+    ): HistogramMetric = getOrRegister(name) { HistogramMetric(name, help, namespace, labelNames, *buckets) }
+
+    /**
+     * Creates and registers a [LogLinearHistogramMetric] with the given [name] and [help] string. Unlike
+     * [registerHistogram] it needs no buckets, the distribution of the values is tracked with a relative error of at
+     * most 2^-[precision].
+     *
+     * Throws an exception if a metric with the same name but a different type exists.
+     */
+    @JvmOverloads
+    fun registerLogLinearHistogram(
+        /** the name of the metric */
+        name: String,
+        /** the description of the metric */
+        help: String,
+        /** the number of bits of linear resolution within each power of two */
+        precision: Int = LogLinearHistogramMetric.DEFAULT_PRECISION,
+        /** Label names for this metric. If non-empty, all record calls MUST specify values for the labels. */
+        labelNames: List<String> = emptyList(),
+        /** the largest value with its own bucket in the Prometheus formats */
+        maxBucketValue: Long = LogLinearHistogramMetric.DEFAULT_MAX_BUCKET_VALUE
+    ): LogLinearHistogramMetric =
+        getOrRegister(name) { LogLinearHistogramMetric(name, help, namespace, precision, labelNames, maxBucketValue) }
+
+    /**
+     * Creates and registers a [LogLinearHistogramMetric] for timing code, i.e. recording durations in nanoseconds with
+     * [LogLinearHistogramMetric.time], [LogLinearHistogramMetric.observeSince] or [LogLinearHistogramMetric.timeAsync].
+     * For example, to time the handling of IQs per IQ type:
+     * ```
+     * val iqTimer = metricsContainer.registerTimer("iq_processing_nanoseconds", "...", listOf("type"))
+     * val result = iqTimer.time(listOf(iq.type)) { handle(iq) }
+     * ```
+     * In the Prometheus formats durations longer than [maxDuration] are only counted in the "+Inf" bucket.
+     *
+     * Throws an exception if a metric with the same name but a different type exists.
+     */
+    @JvmOverloads
+    fun registerTimer(
+        /** the name of the metric */
+        name: String,
+        /** the description of the metric */
+        help: String,
+        /** Label names for this metric. If non-empty, all calls MUST specify values for the labels. */
+        labelNames: List<String> = emptyList(),
+        /** the longest duration with its own bucket in the Prometheus formats */
+        maxDuration: Duration = Duration.ofMinutes(1)
+    ): LogLinearHistogramMetric =
+        registerLogLinearHistogram(name, help, labelNames = labelNames, maxBucketValue = maxDuration.toNanos())
+
+    /**
+     * Creates and registers a [RateMetric] with the given [name] and [help] string, which exports the rate of events
+     * per second as an exponentially weighted moving average over [window].
+     *
+     * Throws an exception if a metric with the same name but a different type exists.
+     */
+    @JvmOverloads
+    fun registerRate(
+        /** the name of the metric */
+        name: String,
+        /** the description of the metric */
+        help: String,
+        /** the time window over which the rate is averaged */
+        window: Duration = Duration.ofMinutes(1),
+        /** Label names for this metric. If non-empty, all get/update calls MUST specify values for the labels. */
+        labelNames: List<String> = emptyList()
+    ): RateMetric = getOrRegister(name) { RateMetric(name, help, namespace, window, labelNames) }
+
+    /**
+     * Creates and registers a [MovingAverageMetric] with the given [name] and [help] string, which exports the average
+     * of the values recorded during the last [window].
+     *
+     * Throws an exception if a metric with the same name but a different type exists.
+     */
+    @JvmOverloads
+    fun registerMovingAverage(
+        /** the name of the metric */
+        name: String,
+        /** the description of the metric */
+        help: String,
+        /** the time window over which values are averaged */
+        window: Duration = Duration.ofMinutes(1),
+        /** the number of slots the window is split into */
+        slots: Int = MovingAverageMetric.DEFAULT_SLOTS,
+        /** Label names for this metric. If non-empty, all get/update calls MUST specify values for the labels. */
+        labelNames: List<String> = emptyList()
+    ): MovingAverageMetric =
+        getOrRegister(name) { MovingAverageMetric(name, help, namespace, window, slots, labelNames) }
+
+    /**
+     * Creates and registers a [LazyGaugeMetric] with the given [name] and [help] string, whose value is computed by
+     * [supplier] when the metrics are exported, at most once per [minRefreshInterval]. Use this instead of a gauge
+     * updated by a [MetricsUpdater] subtask when the value is only needed when the metrics are scraped.
+     *
+     * Throws an exception if a metric with the same name but a different type exists.
+     */
+    @JvmOverloads
+    fun registerLazyGauge(
+        /** the name of the metric */
+        name: String,
+        /** the description of the metric */
+        help: String,
+        /** how long a computed value is reused */
+        minRefreshInterval: Duration = Duration.ZERO,
+        /** computes the value of the metric */
+        supplier: () -> Number
+    ): LazyGaugeMetric =
+        getOrRegister(name) { LazyGaugeMetric(name, help, namespace, minRefreshInterval, supplier = supplier) }
+
+    /**
+     * Returns the metric registered with [name], or creates one with [create] and registers it if there is none.
+     * This is atomic: when called concurrently for the same name, exactly one caller creates and registers the metric,
+     * and the others see it as an existing metric.
+     *
+     * Throws an exception if a metric with that name already exists and [checkForNameConflicts] is set (unless the
+     * metric is [shared]), if the existing metric has a different type, or if creating the metric finds a metric named
+     * [conflictingName] or a collector in [registry] with a conflicting name.
+     */
+    private inline fun <reified T : Metric<*>> getOrRegister(
+        name: String,
+        shared: Boolean = false,
+        conflictingName: String? = null,
+        crossinline create: () -> T
+    ): T {
+        var created = false
+        val metric = metrics[name] ?: metrics.computeIfAbsent(name) {
+            if (conflictingName != null && metrics.containsKey(conflictingName)) {
                 throw RuntimeException("Could not register metric '$name'. A metric with that name already exists.")
             }
-            return metrics[name] as HistogramMetric
+            val metric = create()
+            try {
+                // The registry rejects conflicting names atomically, including a metric named [conflictingName] which
+                // is registered concurrently.
+                metric.register(registry)
+            } catch (e: IllegalArgumentException) {
+                throw RuntimeException("Could not register metric '$name'. A metric with a conflicting name exists.", e)
+            }
+            created = true
+            registered.add(metric)
+            metric
+        }
+        if (created) {
+            metric.limitedCollector?.let { countLimitedSeries(name, it) }
+            return metric as T
         }
+        if (checkForNameConflicts && !shared) {
+            throw RuntimeException("Could not register metric '$name'. A metric with that name already exists.")
+        }
+        return metric as? T ?: throw RuntimeException(
+            "Could not register metric '$name'. A ${metric::class.simpleName} with that name already exists."
+        )
+    }
+
+    /**
+     * Returns the counter [name] (which must end in `_total`), registering it if it does not exist yet. Unlike
+     * [registerCounter] this does not check for name conflicts: it is for the metrics of components which may have
+     * several instances using the same container (e.g. [OtlpExporter]), which share the metric.
+     */
+    internal fun registerSharedCounter(name: String, help: String, labelNames: List<String> = emptyList()) =
+        getOrRegister(name, shared = true) { CounterMetric(name, help, namespace, 0, labelNames) }
+
+    /** Returns the timer [name], registering it if it does not exist yet, see [registerSharedCounter]. */
+    internal fun registerSharedTimer(name: String, help: String, maxDuration: Duration = Duration.ofMinutes(1)) =
+        getOrRegister(name, shared = true) {
+            LogLinearHistogramMetric(
+                name,
+                help,
+                namespace,
+                LogLinearHistogramMetric.DEFAULT_PRECISION,
+                maxBucketValue = maxDuration.toNanos()
+            )
+        }
+
+    /** Returns the samples of the metrics registered in this container (but not of other collectors in [registry]). */
+    internal fun collect(): Iterator<MetricFamilySamples> =
+        registered.asSequence().flatMap { it.collect() }.iterator()
+
+    /**
+     * Counts the series of the metric [name] which [collector] evicts or rejects because of its [SeriesLimits].
+     */
+    private fun countLimitedSeries(name: String, collector: LabeledCollector<*>) {
+        // The counters are registered here rather than in the callbacks, which run when updating and exporting.
+        val evicted = evictedSeries
+        val rejected = rejectedSeries
+        // The children are looked up every time, since [resetAll] removes them.
+        val labels = listOf(name)
+        collector.onEvicted = evicted?.let { counter -> { counter.add(it.toLong(), labels) } }
+        collector.onRejected = rejected?.let { counter -> { counter.inc(labels) } }
+    }
 
-        return HistogramMetric(name, help, namespace, *buckets).apply { metrics[name] = register(registry) }
+    /**
+     * Registers a counter of the series affected by [SeriesLimits], or logs and returns `null` if that fails (e.g.
+     * because another container with the same namespace registered it in [registry]). It is only attempted once.
+     */
+    private fun registerLimitCounter(name: String, help: String): CounterMetric? = try {
+        registerSharedCounter(name, help, listOf("metric"))
+    } catch (e: Exception) {
+        logger.warn("Could not register $name, series limits will not be counted.", e)
+        null
     }
 
+    /**
+     * Creates a [MetricsScope] for the series of an object with a lifecycle (e.g. a conference), whose label values
+     * start with [labelValues]. Closing the scope removes all the series obtained through it, across all metrics.
+     *
+     * Throws an [IllegalStateException] if a scope with the same label values is open, since closing either would
+     * remove the series of both.
+     */
+    fun createScope(vararg labelValues: String): MetricsScope {
+        val scopeLabelValues = labelValues.toList()
+        if (!scopes.add(scopeLabelValues)) {
+            throw IllegalStateException("A metrics scope for $scopeLabelValues is already open")
+        }
+        return MetricsScope(this, scopeLabelValues)
+    }
+
+    /** Called when the scope with the given label values is closed, so that a new one can be created. */
+    internal fun scopeClosed(labelValues: List<String>) = scopes.remove(labelValues)
+
+    /** Whether [metric] is registered in this container. */
+    internal fun contains(metric: Metric<*>) = metrics[metric.name] === metric
+
     /**
      * Resets all metrics in this container to their default values.
      */
     fun resetAll() {
-        metrics.values.forEach { it.reset() }
+        registered.forEach { it.reset() }
     }
 
     class NoSupportedMediaTypeException(message: String) : Exception(message)
+
+    companion object {
+        private const val CONTENT_TYPE_JSON = "application/json"
+
+        /** The size of the buffers used when streaming metrics. */
+        private const val STREAM_BUFFER_SIZE = 8192
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * The series of an object with a lifecycle, e.g. a conference, across any number of labeled metrics. The label values
+ * of the series start with [labelValues] (e.g. the conference ID), followed by the values passed when getting a child
+ * through the scope. Closing the scope removes all the series which were obtained through it, so the object's
+ * teardown does not need to remove them from each metric one by one.
+ *
+ * Getting a child through a closed scope throws an [IllegalStateException], and getting a child of a metric which is
+ * not registered in the container of the scope throws an [IllegalArgumentException].
+ *
+ * Create scopes with [MetricsContainer.createScope]. A container has at most one open scope with the same label values.
+ */
+class MetricsScope internal constructor(
+    /** The container which created this scope, and whose metrics it holds series of. */
+    private val container: MetricsContainer,
+    /** The first label values of the series in this scope. */
+    val labelValues: List<String>
+) : AutoCloseable {
+    /** Removes each series obtained through this scope, by metric and label values. */
+    private val series = ConcurrentHashMap<Pair<Metric<*>, List<String>>, () -> Unit>()
+
+    private val closed = AtomicBoolean()
+
+    fun child(metric: CounterMetric, vararg labelValues: String): CounterMetric.Child =
+        inScope(metric, labelValues, metric::remove) { metric.child(it) }
+
+    fun child(metric: LongGaugeMetric, vararg labelValues: String): LongGaugeMetric.Child =
+        inScope(metric, labelValues, metric::remove) { metric.child(it) }
+
+    fun child(metric: DoubleGaugeMetric, vararg labelValues: String): DoubleGaugeMetric.Child =
+        inScope(metric, labelValues, metric::remove) { metric.child(it) }
+
+    fun child(metric: BooleanMetric, vararg labelValues: String): BooleanMetric.Child =
+        inScope(metric, labelValues, metric::remove) { metric.child(it) }
+
+    fun child(metric: HistogramMetric, vararg labelValues: String): HistogramMetric.Child =
+        inScope(metric, labelValues, metric::remove) { metric.child(it) }
+
+    fun child(metric: LogLinearHistogramMetric, vararg labelValues: String): LogLinearHistogramMetric.Child =
+        inScope(metric, labelValues, metric::remove) { metric.child(it) }
+
+    fun child(metric: RateMetric, vararg labelValues: String): RateMetric.Child =
+        inScope(metric, labelValues, metric::remove) { metric.child(it) }
+
+    fun child(metric: MovingAverageMetric, vararg labelValues: String): MovingAverageMetric.Child =
+        inScope(metric, labelValues, metric::remove) { metric.child(it) }
+
+    /** Sets the value of the series of [metric] in this scope with the given additional label values. */
+    fun setInfo(metric: InfoMetric, value: String, vararg labelValues: String) =
+        inScope(metric, labelValues, metric::remove) { metric.set(it, value) }
+
+    /**
+     * Removes all series obtained through this scope. Handles to them which are still held are no longer exported,
+     * as when they are removed from their metric directly.
+     */
+    override fun close() {
+        if (closed.compareAndSet(false, true)) {
+            series.keys.forEach { key -> series.remove(key)?.invoke() }
+            container.scopeClosed(labelValues)
+        }
+    }
+
+    /** Gets a series of [metric] in this scope with [get], and records how to [remove] it. */
+    private inline fun <C> inScope(
+        metric: Metric<*>,
+        labelValues: Array<out String>,
+        noinline remove: (List<String>) -> Unit,
+        get: (List<String>) -> C
+    ): C {
+        if (closed.get()) {
+            throw IllegalStateException("The metrics scope ${this.labelValues} is closed")
+        }
+        if (!container.contains(metric)) {
+            throw IllegalArgumentException("The metric ${metric.name} is not registered in the container of this scope")
+        }
+        val fullLabelValues = this.labelValues + labelValues
+        return get(fullLabelValues).also {
+            series.putIfAbsent(metric to fullLabelValues) { remove(fullLabelValues) }
+            // The scope may have been closed concurrently, without removing this series.
+            if (closed.get()) {
+                series.remove(metric to fullLabelValues)?.invoke()
+            }
+        }
+    }
+}
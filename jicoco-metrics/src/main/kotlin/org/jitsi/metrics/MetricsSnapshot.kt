@@ -0,0 +1,53 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import com.fasterxml.jackson.core.JsonGenerator
+
+/**
+ * The values of all series of a [MetricsContainer] at some point, which [MetricsContainer.getDelta] compares the
+ * current values with. It is opaque to callers, who only pass it back to the next call.
+ */
+class MetricsSnapshot internal constructor(
+    /** Identifies this snapshot. Tokens of snapshots of the same container increase. */
+    val token: Long,
+    /** The value of each series, keyed by metric name and then by label values. */
+    internal val values: Map<String, Map<List<String>, Any>>
+)
+
+/**
+ * The metrics which changed since a [MetricsSnapshot], see [MetricsContainer.getDelta].
+ */
+class MetricsDelta internal constructor(
+    /** The snapshot to pass to the next call of [MetricsContainer.getDelta]. */
+    val snapshot: MetricsSnapshot,
+    /** The changed series, in the same JSON format as [MetricsContainer.jsonString]. */
+    val json: String,
+    /** The number of changed series. */
+    val changedSeries: Int
+)
+
+/** The value of a metric which is not split into series, as its JSON representation. */
+internal data class RawJson(val json: String)
+
+/** Writes a value passed to [Metric.forEachSeries]. */
+internal fun JsonGenerator.writeSeriesValue(value: Any) = when (value) {
+    is Double, is Float -> writeNumber((value as Number).toDouble())
+    is Number -> writeNumber(value.toLong())
+    is Boolean -> writeBoolean(value)
+    is RawJson -> writeRawValue(value.json)
+    else -> writeString(value.toString())
+}
@@ -18,33 +18,83 @@ package org.jitsi.metrics
 import org.jitsi.utils.logging2.createLogger
 import java.time.Duration
 import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.RejectedExecutionException
 import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
-class MetricsUpdater(
+/**
+ * Periodically runs subtasks which update metrics, every [updateInterval] on [executor]. A subtask may also have a
+ * longer interval of its own. Gauges which only need to be computed when the metrics are exported are better served
+ * by [MetricsContainer.registerLazyGauge], which does no work when nobody scrapes.
+ *
+ * By default the subtasks run one after another on [executor]. With a [subtaskExecutor] (e.g. a bounded pool, or a
+ * virtual thread executor) they run in parallel, so that a slow subtask does not delay the others, and a subtask which
+ * runs for longer than [subtaskTimeout] is interrupted (or cancelled, if the executor has not started it by then). In
+ * both cases a subtask which is still running when the next periodic update starts is skipped for that update, and
+ * counted as a missed interval. An update requested with [updateMetrics] waits for such a subtask instead, see there.
+ */
+class MetricsUpdater @JvmOverloads constructor(
     private val executor: ScheduledExecutorService,
-    private val updateInterval: Duration
+    private val updateInterval: Duration,
+    /** The executor to run subtasks on in parallel, or `null` to run them sequentially on [executor]. */
+    private val subtaskExecutor: ExecutorService? = null,
+    /**
+     * How long a subtask may run. When running on a [subtaskExecutor] a subtask is interrupted when it exceeds it,
+     * otherwise the overrun is only logged.
+     */
+    private val subtaskTimeout: Duration = updateInterval,
+    /**
+     * The container to register the metrics of the updater itself in, if any. Several updaters may use the same
+     * container, they share the metrics.
+     */
+    metricsContainer: MetricsContainer? = null
 ) {
     private val logger = createLogger()
-    private val subtasks: MutableList<() -> Unit> = CopyOnWriteArrayList()
+    private val subtasks: MutableList<Subtask> = CopyOnWriteArrayList()
     private var updateTask: ScheduledFuture<*>? = null
 
+    private val subtaskDuration = metricsContainer?.registerSharedTimer(
+        "metrics_updater_subtask_duration_nanoseconds",
+        "Time spent running metrics update subtasks."
+    )
+    private val missedIntervals = metricsContainer?.registerSharedCounter(
+        "metrics_updater_missed_intervals_total",
+        "Number of times a metrics update subtask was skipped because it was still running."
+    )
+    private val timeouts = metricsContainer?.registerSharedCounter(
+        "metrics_updater_subtask_timeouts_total",
+        "Number of times a metrics update subtask did not complete within its deadline."
+    )
+
     // Allow updates to be disabled for tests
     var disablePeriodicUpdates = false
 
-    fun addUpdateTask(subtask: () -> Unit) {
+    /** Adds a subtask which runs on every update. */
+    fun addUpdateTask(subtask: () -> Unit) = addUpdateTask(null, subtask)
+
+    /**
+     * Adds a subtask which runs every [interval], for values which are expensive to compute or change slowly. Subtasks
+     * run as part of an update, so [interval] is effectively rounded to a multiple of [updateInterval].
+     */
+    fun addUpdateTask(interval: Duration?, subtask: () -> Unit) {
         if (disablePeriodicUpdates) {
             logger.warn("Periodic updates are disabled, will not execute update task.")
             return
         }
 
-        subtasks.add(subtask)
+        subtasks.add(Subtask(subtask, interval))
         synchronized(this) {
             if (updateTask == null) {
                 logger.info("Scheduling metrics update task with interval $updateInterval.")
                 updateTask = executor.scheduleAtFixedRate(
-                    { updateMetrics() },
+                    { update(periodic = true) },
                     0,
                     updateInterval.toMillis(),
                     TimeUnit.MILLISECONDS
@@ -53,17 +103,68 @@ class MetricsUpdater(
         }
     }
 
-    fun updateMetrics() {
-        synchronized(this) {
-            logger.debug("Running ${subtasks.size} subtasks.")
-            subtasks.forEach {
+    /**
+     * Runs all subtasks which are due, and returns when they complete (or, when running on a [subtaskExecutor], when
+     * they exceed [subtaskTimeout]). The metrics are therefore up to date when it returns.
+     *
+     * A subtask which is still running from another update (e.g. a periodic one) is waited for, for up to
+     * [subtaskTimeout], and then run again. If it is still running after that it is skipped and counted as a missed
+     * interval, so its values may be stale.
+     */
+    fun updateMetrics() = update(periodic = false)
+
+    /**
+     * Runs all subtasks which are due. A subtask which is still running is skipped if the update is [periodic],
+     * otherwise it is waited for, see [updateMetrics].
+     */
+    private fun update(periodic: Boolean) {
+        logger.debug("Running ${subtasks.size} subtasks.")
+        val submitted = ArrayList<Pair<Subtask, Future<*>>>()
+        val now = System.nanoTime()
+        val waitDeadline = now + subtaskTimeout.toNanos()
+        subtasks.forEach { subtask ->
+            if (!subtask.isDue(now)) {
+                return@forEach
+            }
+            if (!subtask.state.compareAndSet(IDLE, QUEUED) && (periodic || !subtask.awaitIdle(waitDeadline))) {
+                // Logged at debug level, since a slow subtask is skipped on every update. They are counted instead.
+                logger.debug("Subtask is still running, skipping it.")
+                missedIntervals?.inc()
+                return@forEach
+            }
+            subtask.lastUpdateNanos = now
+            if (subtaskExecutor == null) {
+                subtask.run()
+            } else {
                 try {
-                    it.invoke()
-                } catch (e: Exception) {
-                    logger.warn("Exception while running subtask", e)
+                    submitted.add(subtask to subtaskExecutor.submit(Runnable { subtask.run() }))
+                } catch (e: RejectedExecutionException) {
+                    logger.warn("Failed to submit subtask", e)
+                    subtask.setIdle(QUEUED)
+                    missedIntervals?.inc()
                 }
             }
         }
+
+        val deadline = System.nanoTime() + subtaskTimeout.toNanos()
+        submitted.forEach { (subtask, future) ->
+            try {
+                future.get(maxOf(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+            } catch (e: TimeoutException) {
+                logger.warn("Subtask did not complete within $subtaskTimeout, cancelling it.")
+                timeouts?.inc()
+                if (future.cancel(false)) {
+                    // It had not started (e.g. the executor is saturated), and now never will, so a later update can
+                    // queue it again without this stale run starting after it.
+                    subtask.setIdle(QUEUED)
+                } else {
+                    // It remains running (and is skipped by subsequent updates) until it responds to the interrupt.
+                    future.cancel(true)
+                }
+            } catch (e: Exception) {
+                logger.warn("Exception while waiting for subtask", e)
+            }
+        }
     }
 
     fun stop() = synchronized(this) {
@@ -71,4 +172,80 @@ class MetricsUpdater(
         updateTask = null
         subtasks.clear()
     }
+
+    private inner class Subtask(private val task: () -> Unit, interval: Duration?) {
+        /** Whether the subtask is [IDLE], [QUEUED] to run or [RUNNING]. */
+        val state = AtomicInteger(IDLE)
+
+        /** Signalled when the subtask becomes [IDLE], see [awaitIdle]. */
+        private val lock = ReentrantLock()
+        private val idle = lock.newCondition()
+
+        /**
+         * How long after [lastUpdateNanos] the subtask is due again. Updates do not happen exactly [updateInterval]
+         * apart, so half of it is allowed as slack.
+         */
+        private val dueAfterNanos = interval?.let { it.toNanos() - updateInterval.toNanos() / 2 }
+
+        /** The time of the last update which ran this subtask, or `null` if none did. */
+        @Volatile
+        var lastUpdateNanos: Long? = null
+
+        /** Whether the subtask should run in an update which starts at [now]. */
+        fun isDue(now: Long): Boolean {
+            val last = lastUpdateNanos
+            return dueAfterNanos == null || last == null || now - last >= dueAfterNanos
+        }
+
+        /**
+         * Waits until the subtask is [IDLE] and moves it to [QUEUED]. Returns `false` if that did not happen before
+         * [deadline], a value of [System.nanoTime].
+         */
+        fun awaitIdle(deadline: Long): Boolean = lock.withLock {
+            while (!state.compareAndSet(IDLE, QUEUED)) {
+                val remaining = deadline - System.nanoTime()
+                if (remaining <= 0) {
+                    return false
+                }
+                try {
+                    idle.awaitNanos(remaining)
+                } catch (e: InterruptedException) {
+                    Thread.currentThread().interrupt()
+                    return false
+                }
+            }
+            true
+        }
+
+        /** Moves the subtask from [expected] to [IDLE], waking up the updates waiting for it, see [awaitIdle]. */
+        fun setIdle(expected: Int): Boolean = lock.withLock {
+            state.compareAndSet(expected, IDLE).also { if (it) idle.signalAll() }
+        }
+
+        fun run() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return
+            }
+            val start = System.nanoTime()
+            try {
+                task.invoke()
+            } catch (e: Exception) {
+                logger.warn("Exception while running subtask", e)
+            } finally {
+                val elapsed = System.nanoTime() - start
+                subtaskDuration?.record(elapsed)
+                if (subtaskExecutor == null && elapsed > subtaskTimeout.toNanos()) {
+                    logger.warn("Subtask took ${Duration.ofNanos(elapsed)}, longer than $subtaskTimeout.")
+                    timeouts?.inc()
+                }
+                setIdle(RUNNING)
+            }
+        }
+    }
+
+    companion object {
+        private const val IDLE = 0
+        private const val QUEUED = 1
+        private const val RUNNING = 2
+    }
 }
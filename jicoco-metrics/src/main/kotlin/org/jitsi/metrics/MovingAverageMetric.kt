@@ -0,0 +1,166 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import com.fasterxml.jackson.core.JsonGenerator
+import io.prometheus.client.CollectorRegistry
+import java.time.Clock
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.atomic.DoubleAdder
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * The average of the values recorded during the last [window] (e.g. health check latencies), as a sliding window.
+ * The window is split into [slots] slots held in a ring buffer. A value is added to the slot of the current time, and
+ * a slot is replaced when it is first written to after a full turn of the ring. Recording takes no lock and takes
+ * constant time; reading sums the slots which are still in the window.
+ *
+ * The window slides one slot at a time, so the average covers between `slots - 1` and `slots` slots. When no values
+ * were recorded in the window the average is 0.
+ *
+ * It is exported as a Prometheus gauge, and as a number in JSON.
+ */
+class MovingAverageMetric @JvmOverloads constructor(
+    /** the name of this metric */
+    override val name: String,
+    /** the description of this metric */
+    help: String,
+    /** the namespace (prefix) of this metric */
+    namespace: String,
+    /** the time window over which values are averaged */
+    val window: Duration = Duration.ofMinutes(1),
+    /** the number of slots the window is split into */
+    val slots: Int = DEFAULT_SLOTS,
+    /** Label names for this metric. If non-empty, all get/update calls MUST specify values for the labels. */
+    val labelNames: List<String> = emptyList(),
+    private val clock: Clock = Clock.systemUTC()
+) : Metric<Double>() {
+    private val slotMillis: Long
+
+    init {
+        if (slots < 1) {
+            throw IllegalArgumentException("The number of slots must be positive")
+        }
+        slotMillis = window.toMillis() / slots
+        if (slotMillis < 1) {
+            throw IllegalArgumentException("The window must be at least $slots ms")
+        }
+    }
+
+    private val average = GaugeCollector(
+        name,
+        help,
+        namespace,
+        labelNames,
+        { Child(clock, slotMillis, slots) },
+        { it.get() }
+    )
+
+    /** Returns the current average. Throws if this metric has labels. */
+    override fun get() = average.noLabels().get()
+
+    /** Returns the current average of the series with the given labels. */
+    fun get(labels: List<String>) = child(labels).get()
+
+    override fun writeJson(generator: JsonGenerator) = if (labelNames.isEmpty()) {
+        generator.writeNumber(get())
+    } else {
+        generator.writeLabeled(average.childEntries, labelNames.size, { it.key }) {
+            generator.writeNumber(it.value.get())
+        }
+    }
+
+    override fun reset() = average.clear()
+
+    override fun register(registry: CollectorRegistry) = this.also { registry.register(average) }
+
+    override fun forEachSeries(action: (List<String>, Any) -> Unit) =
+        average.childEntries.forEach { (labelValues, child) -> action(labelValues, child.get()) }
+
+    /** Records the given value. */
+    @JvmOverloads
+    fun record(value: Double, labels: List<String> = emptyList()) = child(labels).record(value)
+
+    /** Remove the child with the given labels (the metric with those labels will stop being emitted) */
+    fun remove(labels: List<String> = emptyList()) {
+        if (labels.isNotEmpty()) {
+            average.remove(labels)
+        }
+    }
+
+    /**
+     * Returns the child of this metric with the given label values, creating it if necessary. Values recorded
+     * through the returned handle do not look up the labels again.
+     */
+    fun child(vararg labelValues: String): Child = average.labels(labelValues.asList())
+
+    /** Returns the child of this metric with the given label values, see [child]. */
+    fun child(labelValues: List<String>): Child =
+        if (labelValues.isEmpty()) average.noLabels() else average.labels(labelValues)
+
+    override fun collect() = average.collect()
+
+    /**
+     * A handle to the average of a [MovingAverageMetric] for one set of label values, see [MovingAverageMetric.child].
+     */
+    class Child internal constructor(
+        private val clock: Clock,
+        private val slotMillis: Long,
+        slots: Int
+    ) {
+        private val ring = AtomicReferenceArray<Slot>(slots)
+
+        /** Records the given value. */
+        fun record(value: Double) {
+            val epoch = clock.millis() / slotMillis
+            val index = (epoch % ring.length()).toInt()
+            var slot = ring[index]
+            while (slot == null || slot.epoch < epoch) {
+                val fresh = Slot(epoch)
+                slot = if (ring.compareAndSet(index, slot, fresh)) fresh else ring[index]
+            }
+            slot.sum.add(value)
+            slot.count.increment()
+        }
+
+        /** Returns the average of the values recorded in the window, or 0 if there are none. */
+        fun get(): Double {
+            val epoch = clock.millis() / slotMillis
+            var sum = 0.0
+            var count = 0L
+            for (i in 0 until ring.length()) {
+                val slot = ring[i] ?: continue
+                if (slot.epoch > epoch - ring.length() && slot.epoch <= epoch) {
+                    sum += slot.sum.sum()
+                    count += slot.count.sum()
+                }
+            }
+            return if (count == 0L) 0.0 else sum / count
+        }
+    }
+
+    /** The values recorded during one slot, identified by its [epoch] (the time divided by the slot duration). */
+    private class Slot(val epoch: Long) {
+        val sum = DoubleAdder()
+        val count = LongAdder()
+    }
+
+    companion object {
+        /** The default number of slots the window is split into. */
+        const val DEFAULT_SLOTS = 12
+    }
+}
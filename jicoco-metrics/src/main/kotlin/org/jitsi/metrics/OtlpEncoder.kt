@@ -0,0 +1,230 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import io.prometheus.client.Collector.MetricFamilySamples
+import io.prometheus.client.Collector.MetricFamilySamples.Sample
+import io.prometheus.client.Collector.Type
+import org.jitsi.utils.logging2.createLogger
+
+/**
+ * Encodes metric family samples as an OTLP `ExportMetricsServiceRequest` (opentelemetry-proto `metrics/v1`):
+ * - counters as monotonic cumulative sums, starting at their `_created` time (or [defaultStartTimeNanos]),
+ * - histograms as explicit bucket histograms,
+ * - gauges, info metrics and untyped metrics as gauges.
+ * Other types are not exported.
+ *
+ * The encoded request is left in [writer], which is reused by subsequent calls.
+ */
+internal class OtlpEncoder(
+    private val resourceAttributes: Map<String, String>,
+    private val defaultStartTimeNanos: Long
+) {
+    private val logger = createLogger()
+
+    val writer = ProtobufWriter()
+
+    /** The finite upper bounds and the (non-cumulative) counts of the buckets of the histogram being encoded. */
+    private var bounds = DoubleArray(32)
+    private var bucketCounts = LongArray(33)
+    private var bucketCount = 0
+
+    fun encode(families: Iterator<MetricFamilySamples>, timeNanos: Long) = with(writer) {
+        reset()
+        message(REQUEST_RESOURCE_METRICS) {
+            message(RESOURCE_METRICS_RESOURCE) {
+                resourceAttributes.forEach { (key, value) -> attribute(RESOURCE_ATTRIBUTES, key, value) }
+            }
+            message(RESOURCE_METRICS_SCOPE_METRICS) {
+                message(SCOPE_METRICS_SCOPE) {
+                    string(SCOPE_NAME, SCOPE)
+                }
+                families.forEach { family ->
+                    when (family.type) {
+                        Type.COUNTER -> writeMetric(family, METRIC_SUM) { writeSum(family, timeNanos) }
+                        Type.HISTOGRAM -> writeMetric(family, METRIC_HISTOGRAM) { writeHistogram(family, timeNanos) }
+                        Type.GAUGE, Type.INFO, Type.UNKNOWN, Type.STATE_SET ->
+                            writeMetric(family, METRIC_GAUGE) { writeGauge(family, timeNanos) }
+                        else -> logger.debug("Not exporting ${family.name}, ${family.type} is not supported.")
+                    }
+                }
+            }
+        }
+    }
+
+    private inline fun writeMetric(family: MetricFamilySamples, dataField: Int, writeData: () -> Unit) {
+        if (family.samples.isEmpty()) {
+            return
+        }
+        writer.message(SCOPE_METRICS_METRICS) {
+            writer.string(METRIC_NAME, family.name)
+            if (family.help.isNotEmpty()) {
+                writer.string(METRIC_DESCRIPTION, family.help)
+            }
+            if (!family.unit.isNullOrEmpty()) {
+                writer.string(METRIC_UNIT, family.unit)
+            }
+            writer.message(dataField) { writeData() }
+        }
+    }
+
+    private fun writeGauge(family: MetricFamilySamples, timeNanos: Long) = with(writer) {
+        family.samples.forEach { sample ->
+            message(DATA_POINTS) {
+                attributes(NUMBER_POINT_ATTRIBUTES, sample, sample.labelNames.size)
+                fixed64(POINT_TIME, timeNanos)
+                double(NUMBER_POINT_AS_DOUBLE, sample.value)
+            }
+        }
+    }
+
+    private fun writeSum(family: MetricFamilySamples, timeNanos: Long) = with(writer) {
+        int64(SUM_AGGREGATION_TEMPORALITY, AGGREGATION_TEMPORALITY_CUMULATIVE)
+        bool(SUM_IS_MONOTONIC, true)
+        writePoints(family, timeNanos, NUMBER_POINT_ATTRIBUTES) { start, end ->
+            for (i in start until end) {
+                val sample = family.samples[i]
+                if (!sample.name.endsWith("_created")) {
+                    double(NUMBER_POINT_AS_DOUBLE, sample.value)
+                }
+            }
+        }
+    }
+
+    private fun writeHistogram(family: MetricFamilySamples, timeNanos: Long) = with(writer) {
+        int64(HISTOGRAM_AGGREGATION_TEMPORALITY, AGGREGATION_TEMPORALITY_CUMULATIVE)
+        writePoints(family, timeNanos, HISTOGRAM_POINT_ATTRIBUTES) { start, end ->
+            var cumulativeCount = 0L
+            for (i in start until end) {
+                val sample = family.samples[i]
+                when {
+                    sample.name.endsWith("_bucket") -> {
+                        val count = sample.value.toLong()
+                        addBucket(parseUpperBound(sample.labelValues.last()), count - cumulativeCount)
+                        cumulativeCount = count
+                    }
+                    sample.name.endsWith("_count") -> fixed64(HISTOGRAM_POINT_COUNT, sample.value.toLong())
+                    sample.name.endsWith("_sum") -> double(HISTOGRAM_POINT_SUM, sample.value)
+                }
+            }
+            writeBuckets()
+        }
+    }
+
+    /**
+     * Writes a data point for each series of [family], with its attributes, time and start time, and then the rest of
+     * its fields from the samples in the range passed to [writeSamples].
+     */
+    private inline fun writePoints(
+        family: MetricFamilySamples,
+        timeNanos: Long,
+        attributesField: Int,
+        writeSamples: (start: Int, end: Int) -> Unit
+    ) = forEachSampleSeries(family.samples) { start, end, labelCount ->
+        writer.message(DATA_POINTS) {
+            attributes(attributesField, family.samples[start], labelCount)
+            writer.fixed64(POINT_TIME, timeNanos)
+            var startTimeNanos = defaultStartTimeNanos
+            for (i in start until end) {
+                if (family.samples[i].name.endsWith("_created")) {
+                    startTimeNanos = secondsToNanos(family.samples[i].value)
+                }
+            }
+            writer.fixed64(POINT_START_TIME, startTimeNanos)
+            writeSamples(start, end)
+        }
+    }
+
+    private fun addBucket(upperBound: Double, count: Long) {
+        if (upperBound.isInfinite()) {
+            bucketCounts[bucketCount] = count
+            return
+        }
+        if (bucketCount == bounds.size) {
+            bounds = bounds.copyOf(bounds.size * 2)
+            bucketCounts = bucketCounts.copyOf(bounds.size + 1)
+        }
+        bounds[bucketCount] = upperBound
+        bucketCounts[bucketCount++] = count
+    }
+
+    /** Writes the buckets of the histogram data point being encoded. */
+    private fun writeBuckets() {
+        if (bucketCount == 0 && bucketCounts[0] == 0L) {
+            return
+        }
+        writer.packedFixed64(HISTOGRAM_POINT_BUCKET_COUNTS, bucketCounts, bucketCount + 1)
+        writer.packedDoubles(HISTOGRAM_POINT_EXPLICIT_BOUNDS, bounds, bucketCount)
+        bucketCount = 0
+        bucketCounts[0] = 0
+    }
+
+    private fun attributes(field: Int, sample: Sample, labelCount: Int) {
+        for (i in 0 until labelCount) {
+            attribute(field, sample.labelNames[i], sample.labelValues[i])
+        }
+    }
+
+    private fun attribute(field: Int, key: String, value: String) = with(writer) {
+        message(field) {
+            string(KEY_VALUE_KEY, key)
+            message(KEY_VALUE_VALUE) {
+                string(ANY_VALUE_STRING_VALUE, value)
+            }
+        }
+    }
+
+    companion object {
+        /** The name of the instrumentation scope of the exported metrics. */
+        const val SCOPE = "org.jitsi.metrics"
+
+        private const val AGGREGATION_TEMPORALITY_CUMULATIVE = 2L
+
+        // Field numbers, from opentelemetry/proto/collector/metrics/v1/metrics_service.proto,
+        // opentelemetry/proto/metrics/v1/metrics.proto and the protos they import.
+        const val REQUEST_RESOURCE_METRICS = 1
+        const val RESOURCE_METRICS_RESOURCE = 1
+        const val RESOURCE_METRICS_SCOPE_METRICS = 2
+        const val RESOURCE_ATTRIBUTES = 1
+        const val SCOPE_METRICS_SCOPE = 1
+        const val SCOPE_METRICS_METRICS = 2
+        const val SCOPE_NAME = 1
+        const val KEY_VALUE_KEY = 1
+        const val KEY_VALUE_VALUE = 2
+        const val ANY_VALUE_STRING_VALUE = 1
+        const val METRIC_NAME = 1
+        const val METRIC_DESCRIPTION = 2
+        const val METRIC_UNIT = 3
+        const val METRIC_GAUGE = 5
+        const val METRIC_SUM = 7
+        const val METRIC_HISTOGRAM = 9
+        const val DATA_POINTS = 1
+        const val SUM_AGGREGATION_TEMPORALITY = 2
+        const val SUM_IS_MONOTONIC = 3
+        const val HISTOGRAM_AGGREGATION_TEMPORALITY = 2
+        const val POINT_START_TIME = 2
+        const val POINT_TIME = 3
+        const val NUMBER_POINT_AS_DOUBLE = 4
+        const val NUMBER_POINT_ATTRIBUTES = 7
+        const val HISTOGRAM_POINT_COUNT = 4
+        const val HISTOGRAM_POINT_SUM = 5
+        const val HISTOGRAM_POINT_BUCKET_COUNTS = 6
+        const val HISTOGRAM_POINT_EXPLICIT_BOUNDS = 7
+        const val HISTOGRAM_POINT_ATTRIBUTES = 9
+
+        private fun secondsToNanos(seconds: Double) = (seconds * 1e9).toLong()
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import org.jitsi.utils.logging2.createLogger
+import java.io.IOException
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.time.Clock
+import java.time.Duration
+import java.util.ArrayDeque
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Pushes the metrics registered in [metricsContainer] to an OpenTelemetry collector every [interval], as a single
+ * OTLP/HTTP request in the binary protobuf encoding (see [OtlpEncoder] for how the metrics are mapped). Only the
+ * container's own metrics are exported, not other collectors registered in its [MetricsContainer.registry].
+ *
+ * Requests are encoded into a buffer which is reused for every export, and queued in send buffers, which are reused
+ * once their request was sent or dropped (a few of them are kept, within [maxPendingBytes]). A single sender at a time
+ * sends the queued requests in order, outside of the exporter's lock, so a slow collector does not block [stop] or the
+ * encoding of the next export. A request which fails with a network error or a retryable status (429, 502, 503, 504)
+ * stays queued, and is retried after a delay which starts at [initialBackoff] and doubles on each failure up to
+ * [maxBackoff]. Once the queued requests take more than [maxPendingBytes] the oldest are dropped, so that the memory
+ * used while the collector is down is bounded. Requests rejected with any other status are dropped.
+ *
+ * The exporter counts the requests which were exported, which failed, and which were dropped, in metrics registered
+ * in [metricsContainer]. They are shared by all the exporters using the same container.
+ */
+class OtlpExporter @JvmOverloads constructor(
+    private val metricsContainer: MetricsContainer,
+    /** The URI to post the metrics to, usually ending in `/v1/metrics`. */
+    private val endpoint: URI,
+    private val executor: ScheduledExecutorService,
+    private val interval: Duration = Duration.ofSeconds(30),
+    /** Attributes describing the exporting process, e.g. `service.name`. */
+    resourceAttributes: Map<String, String> = emptyMap(),
+    /** The maximum total size of the requests kept for retrying. */
+    private val maxPendingBytes: Int = 8 * 1024 * 1024,
+    private val initialBackoff: Duration = Duration.ofSeconds(1),
+    private val maxBackoff: Duration = Duration.ofMinutes(1),
+    /** The timeout of each request. */
+    private val timeout: Duration = Duration.ofSeconds(10),
+    private val httpClient: HttpClient = HttpClient.newBuilder().connectTimeout(timeout).build(),
+    private val clock: Clock = Clock.systemUTC()
+) {
+    private val logger = createLogger()
+
+    private val encoder = OtlpEncoder(resourceAttributes, clock.millis() * 1_000_000)
+
+    /** Requests waiting to be sent, oldest first. */
+    private val pending = ArrayDeque<Request>()
+
+    /** The total size of the requests in [pending]. */
+    @Volatile
+    var pendingBytes = 0
+        private set
+
+    /** The buffers of requests which were sent or dropped, to be reused by the next requests. */
+    private val freeBuffers = ArrayDeque<ByteArray>()
+
+    /** The total size of [freeBuffers]. */
+    private var freeBytes = 0
+
+    /** Whether a thread is sending the [pending] requests. */
+    private var sending = false
+
+    /** The request being sent, whose buffer must not be reused until it is sent. */
+    private var inFlight: Request? = null
+
+    private var backoff = Duration.ZERO
+    private var retryTask: ScheduledFuture<*>? = null
+    private var exportTask: ScheduledFuture<*>? = null
+
+    private val exportedRequests = metricsContainer.registerSharedCounter(
+        "otlp_exporter_exported_requests_total",
+        "Number of OTLP requests accepted by the collector."
+    )
+    private val failedRequests = metricsContainer.registerSharedCounter(
+        "otlp_exporter_failed_requests_total",
+        "Number of OTLP requests which failed (including retries)."
+    )
+    private val droppedRequests = metricsContainer.registerSharedCounter(
+        "otlp_exporter_dropped_requests_total",
+        "Number of OTLP requests which were dropped without being exported."
+    )
+
+    /** The number of requests dropped without being exported, by all exporters using the same container. */
+    val droppedCount: Long
+        get() = droppedRequests.get()
+
+    /** Starts exporting every [interval]. */
+    fun start() = synchronized(this) {
+        if (exportTask == null) {
+            logger.info("Exporting metrics to $endpoint every $interval.")
+            exportTask = executor.scheduleAtFixedRate(
+                { export() },
+                interval.toMillis(),
+                interval.toMillis(),
+                TimeUnit.MILLISECONDS
+            )
+        }
+    }
+
+    /** Stops exporting. Requests waiting to be sent are discarded, a request which is being sent is not interrupted. */
+    fun stop() = synchronized(this) {
+        exportTask?.cancel(false)
+        exportTask = null
+        retryTask?.cancel(false)
+        retryTask = null
+        discardPending()
+    }
+
+    /** Discards the pending requests, reusing their buffers. Must be called with the lock held. */
+    private fun discardPending() {
+        val discarded = pending.toList()
+        pending.clear()
+        pendingBytes = 0
+        discarded.forEach { release(it) }
+    }
+
+    /**
+     * Queues the current value of the metrics, and sends the queued requests unless they are waiting to be retried or
+     * another thread is sending them.
+     */
+    fun export() {
+        synchronized(this) {
+            try {
+                encoder.encode(metricsContainer.collect(), clock.millis() * 1_000_000)
+            } catch (e: Exception) {
+                logger.warn("Failed to encode metrics", e)
+                return
+            }
+            enqueue(newRequest(encoder.writer))
+            if (sending || retryTask != null) {
+                return
+            }
+            sending = true
+        }
+        sendPending()
+    }
+
+    private fun retry() {
+        synchronized(this) {
+            retryTask = null
+            if (sending) {
+                return
+            }
+            sending = true
+        }
+        sendPending()
+    }
+
+    /**
+     * Sends the pending requests in order, until there are none left or one fails. Only called by the thread which set
+     * [sending], and the requests are sent without holding the lock.
+     */
+    private fun sendPending() {
+        while (true) {
+            val request = synchronized(this) {
+                val first = pending.peekFirst()
+                if (first == null) {
+                    sending = false
+                    return
+                }
+                inFlight = first
+                first
+            }
+            val result = send(request)
+            synchronized(this) {
+                inFlight = null
+                // The request may have been dropped, or discarded by [stop], while it was being sent.
+                val stillPending = pending.peekFirst() === request
+                if (stillPending && result != Result.RETRY) {
+                    pending.removeFirst()
+                    pendingBytes -= request.size
+                }
+                if (!stillPending || result != Result.RETRY) {
+                    release(request)
+                }
+                if (result == Result.RETRY) {
+                    sending = false
+                    // Unless the exporter was stopped in the meantime.
+                    if (pending.isNotEmpty()) {
+                        scheduleRetry()
+                    }
+                    return
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules sending the [pending] requests again after [backoff]. If [executor] was shut down they are dropped,
+     * since nothing would send them. Must be called with the lock held.
+     */
+    private fun scheduleRetry() {
+        try {
+            retryTask = executor.schedule({ retry() }, backoff.toMillis(), TimeUnit.MILLISECONDS)
+        } catch (e: RejectedExecutionException) {
+            logger.warn("Can not retry, dropping ${pending.size} OTLP requests: ${e.message}")
+            droppedRequests.add(pending.size.toLong())
+            discardPending()
+        }
+    }
+
+    /** Copies the request encoded in [writer] into a free buffer, or a new one if none fits. */
+    private fun newRequest(writer: ProtobufWriter): Request {
+        var buffer = freeBuffers.pollFirst()
+        if (buffer != null) {
+            freeBytes -= buffer.size
+        }
+        if (buffer == null || buffer.size < writer.size) {
+            buffer = ByteArray(writer.size)
+        }
+        System.arraycopy(writer.bytes, 0, buffer, 0, writer.size)
+        return Request(buffer, writer.size)
+    }
+
+    /**
+     * Keeps the buffer of [request], which is no longer pending, for reuse, unless it is being sent or there are
+     * enough free buffers already. Must be called with the lock held.
+     */
+    private fun release(request: Request) {
+        val buffer = request.buffer
+        if (request !== inFlight &&
+            freeBuffers.size < MAX_FREE_BUFFERS &&
+            pendingBytes + freeBytes + buffer.size <= maxPendingBytes
+        ) {
+            freeBuffers.addLast(buffer)
+            freeBytes += buffer.size
+        }
+    }
+
+    private fun enqueue(request: Request) {
+        pending.addLast(request)
+        pendingBytes += request.size
+        while (pendingBytes > maxPendingBytes) {
+            val dropped = pending.removeFirst()
+            pendingBytes -= dropped.size
+            release(dropped)
+            droppedRequests.inc()
+            logger.warn("Dropped an OTLP request, ${pending.size} requests remain pending.")
+        }
+    }
+
+    private fun send(request: Request): Result {
+        val httpRequest = HttpRequest.newBuilder(endpoint)
+            .timeout(timeout)
+            .header("Content-Type", CONTENT_TYPE)
+            .POST(HttpRequest.BodyPublishers.ofByteArray(request.buffer, 0, request.size))
+            .build()
+        val status = try {
+            httpClient.send(httpRequest, HttpResponse.BodyHandlers.discarding()).statusCode()
+        } catch (e: IOException) {
+            logger.warn("Failed to export metrics to $endpoint: ${e.message}")
+            null
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            null
+        } catch (e: Exception) {
+            // Treated as a network error, so that the sender does not stop.
+            logger.warn("Failed to export metrics to $endpoint", e)
+            null
+        }
+        return when {
+            status != null && status in 200..299 -> {
+                exportedRequests.inc()
+                synchronized(this) { backoff = Duration.ZERO }
+                Result.SUCCESS
+            }
+            status == null || status in RETRYABLE_STATUSES -> {
+                failedRequests.inc()
+                synchronized(this) {
+                    backoff = if (backoff.isZero) initialBackoff else minOf(backoff.multipliedBy(2), maxBackoff)
+                }
+                Result.RETRY
+            }
+            else -> {
+                logger.warn("The collector at $endpoint rejected the metrics with status $status, dropping them.")
+                failedRequests.inc()
+                droppedRequests.inc()
+                Result.DROP
+            }
+        }
+    }
+
+    private enum class Result { SUCCESS, RETRY, DROP }
+
+    /** An encoded request: the first [size] bytes of [buffer]. */
+    private class Request(val buffer: ByteArray, val size: Int)
+
+    companion object {
+        private const val CONTENT_TYPE = "application/x-protobuf"
+
+        /** The maximum number of buffers kept for reuse. Requests are usually sent before the next one is encoded. */
+        private const val MAX_FREE_BUFFERS = 2
+        private val RETRYABLE_STATUSES = setOf(429, 502, 503, 504)
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import io.prometheus.client.Collector.MetricFamilySamples
+import io.prometheus.client.Collector.MetricFamilySamples.Sample
+import io.prometheus.client.Collector.Type
+import io.prometheus.client.exemplars.Exemplar
+import java.io.OutputStream
+import java.util.Enumeration
+import kotlin.math.floor
+
+/**
+ * The Prometheus protobuf exposition format: a sequence of length-delimited `io.prometheus.client.MetricFamily`
+ * messages, as defined in `io/prometheus/client/metrics.proto` of prometheus/client_model. Prometheus parses it more
+ * cheaply than the text formats.
+ */
+internal object PrometheusProtobufFormat {
+    const val CONTENT_TYPE =
+        "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited"
+
+    private const val MEDIA_TYPE = "application/vnd.google.protobuf"
+
+    /**
+     * Whether [mediaType] (from an `Accept` header) selects this format, i.e. it is [MEDIA_TYPE] with no parameters,
+     * or with parameters which match [CONTENT_TYPE].
+     */
+    fun matches(mediaType: String): Boolean {
+        val parts = mediaType.split(';')
+        if (parts[0].trim() != MEDIA_TYPE) {
+            return false
+        }
+        return parts.drop(1).all { parameter ->
+            val name = parameter.substringBefore('=').trim()
+            val value = parameter.substringAfter('=', "").trim()
+            when (name) {
+                "proto" -> value == "io.prometheus.client.MetricFamily"
+                "encoding" -> value == "delimited"
+                else -> true
+            }
+        }
+    }
+
+    /**
+     * Writes [families] to [out], one family at a time, so that only the encoding of the largest family is held in
+     * memory. Families without samples are omitted. The families are encoded with [writer], which may be reused by
+     * later calls so that its buffer does not have to grow again.
+     */
+    fun write(
+        families: Enumeration<MetricFamilySamples>,
+        out: OutputStream,
+        writer: ProtobufWriter = ProtobufWriter()
+    ) {
+        while (families.hasMoreElements()) {
+            val family = families.nextElement()
+            if (family.samples.isEmpty()) {
+                continue
+            }
+            writer.reset()
+            writer.delimitedMessage { writeFamily(writer, family) }
+            writer.writeTo(out)
+        }
+    }
+
+    private fun writeFamily(writer: ProtobufWriter, family: MetricFamilySamples) = with(writer) {
+        val name = when (family.type) {
+            Type.COUNTER -> if (family.name.endsWith("_total")) family.name else "${family.name}_total"
+            // The samples are named with an "_info" suffix, which the family name may lack.
+            Type.INFO -> family.samples[0].name
+            else -> family.name
+        }
+        string(FAMILY_NAME, name)
+        if (family.help.isNotEmpty()) {
+            string(FAMILY_HELP, family.help)
+        }
+        int64(FAMILY_TYPE, familyType(family.type))
+        if (!family.unit.isNullOrEmpty()) {
+            string(FAMILY_UNIT, family.unit)
+        }
+        forEachSampleSeries(family.samples) { start, end, labelCount ->
+            message(FAMILY_METRIC) {
+                val first = family.samples[start]
+                for (i in 0 until labelCount) {
+                    message(METRIC_LABEL) {
+                        string(LABEL_NAME, first.labelNames[i])
+                        string(LABEL_VALUE, first.labelValues[i])
+                    }
+                }
+                when (family.type) {
+                    Type.COUNTER -> writeCounter(writer, family.samples, start, end)
+                    Type.HISTOGRAM, Type.GAUGE_HISTOGRAM -> writeHistogram(writer, family.samples, start, end)
+                    Type.SUMMARY -> writeSummary(writer, family.samples, start, end)
+                    Type.GAUGE, Type.INFO, Type.STATE_SET -> message(METRIC_GAUGE) {
+                        double(VALUE, family.samples[end - 1].value)
+                    }
+                    else -> message(METRIC_UNTYPED) {
+                        double(VALUE, family.samples[end - 1].value)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun writeCounter(writer: ProtobufWriter, samples: List<Sample>, start: Int, end: Int) = with(writer) {
+        message(METRIC_COUNTER) {
+            for (i in start until end) {
+                val sample = samples[i]
+                if (sample.name.endsWith("_created")) {
+                    writeTimestamp(writer, COUNTER_CREATED_TIMESTAMP, sample.value)
+                } else {
+                    double(VALUE, sample.value)
+                    sample.exemplar?.let { writeExemplar(writer, COUNTER_EXEMPLAR, it) }
+                }
+            }
+        }
+    }
+
+    private fun writeHistogram(writer: ProtobufWriter, samples: List<Sample>, start: Int, end: Int) = with(writer) {
+        message(METRIC_HISTOGRAM) {
+            for (i in start until end) {
+                val sample = samples[i]
+                when {
+                    sample.name.endsWith("_bucket") -> {
+                        val upperBound = parseUpperBound(sample.labelValues.last())
+                        // The +Inf bucket is implied by the sample count, unless it has an exemplar.
+                        if (upperBound.isFinite() || sample.exemplar != null) {
+                            message(HISTOGRAM_BUCKET) {
+                                int64(BUCKET_CUMULATIVE_COUNT, sample.value.toLong())
+                                double(BUCKET_UPPER_BOUND, upperBound)
+                                sample.exemplar?.let { writeExemplar(writer, BUCKET_EXEMPLAR, it) }
+                            }
+                        }
+                    }
+                    sample.name.endsWith("_count") || sample.name.endsWith("_gcount") ->
+                        int64(SAMPLE_COUNT, sample.value.toLong())
+                    sample.name.endsWith("_sum") || sample.name.endsWith("_gsum") -> double(SAMPLE_SUM, sample.value)
+                    sample.name.endsWith("_created") ->
+                        writeTimestamp(writer, HISTOGRAM_CREATED_TIMESTAMP, sample.value)
+                }
+            }
+        }
+    }
+
+    private fun writeSummary(writer: ProtobufWriter, samples: List<Sample>, start: Int, end: Int) = with(writer) {
+        message(METRIC_SUMMARY) {
+            for (i in start until end) {
+                val sample = samples[i]
+                when {
+                    sample.name.endsWith("_count") -> int64(SAMPLE_COUNT, sample.value.toLong())
+                    sample.name.endsWith("_sum") -> double(SAMPLE_SUM, sample.value)
+                    sample.name.endsWith("_created") -> writeTimestamp(writer, SUMMARY_CREATED_TIMESTAMP, sample.value)
+                    else -> message(SUMMARY_QUANTILE) {
+                        double(QUANTILE_QUANTILE, sample.labelValues.last().toDouble())
+                        double(QUANTILE_VALUE, sample.value)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun writeExemplar(writer: ProtobufWriter, field: Int, exemplar: Exemplar) = with(writer) {
+        message(field) {
+            for (i in 0 until exemplar.numberOfLabels) {
+                message(EXEMPLAR_LABEL) {
+                    string(LABEL_NAME, exemplar.getLabelName(i))
+                    string(LABEL_VALUE, exemplar.getLabelValue(i))
+                }
+            }
+            double(EXEMPLAR_VALUE, exemplar.value)
+            exemplar.timestampMs?.let { writeTimestamp(writer, EXEMPLAR_TIMESTAMP, it / 1000.0) }
+        }
+    }
+
+    /** Writes a `google.protobuf.Timestamp` for [seconds] since the epoch. */
+    private fun writeTimestamp(writer: ProtobufWriter, field: Int, seconds: Double) = with(writer) {
+        val wholeSeconds = floor(seconds).toLong()
+        message(field) {
+            int64(TIMESTAMP_SECONDS, wholeSeconds)
+            int64(TIMESTAMP_NANOS, ((seconds - wholeSeconds) * 1e9).toLong())
+        }
+    }
+
+    private fun familyType(type: Type) = when (type) {
+        Type.COUNTER -> 0L
+        Type.GAUGE, Type.INFO, Type.STATE_SET -> 1L
+        Type.SUMMARY -> 2L
+        Type.HISTOGRAM -> 4L
+        Type.GAUGE_HISTOGRAM -> 5L
+        else -> 3L
+    }
+
+    // Field numbers, from io/prometheus/client/metrics.proto and google/protobuf/timestamp.proto.
+    private const val FAMILY_NAME = 1
+    private const val FAMILY_HELP = 2
+    private const val FAMILY_TYPE = 3
+    private const val FAMILY_METRIC = 4
+    private const val FAMILY_UNIT = 5
+    private const val METRIC_LABEL = 1
+    private const val METRIC_GAUGE = 2
+    private const val METRIC_COUNTER = 3
+    private const val METRIC_SUMMARY = 4
+    private const val METRIC_UNTYPED = 5
+    private const val METRIC_HISTOGRAM = 7
+    private const val LABEL_NAME = 1
+    private const val LABEL_VALUE = 2
+    private const val VALUE = 1
+    private const val COUNTER_EXEMPLAR = 2
+    private const val COUNTER_CREATED_TIMESTAMP = 3
+    private const val SAMPLE_COUNT = 1
+    private const val SAMPLE_SUM = 2
+    private const val HISTOGRAM_BUCKET = 3
+    private const val HISTOGRAM_CREATED_TIMESTAMP = 15
+    private const val BUCKET_CUMULATIVE_COUNT = 1
+    private const val BUCKET_UPPER_BOUND = 2
+    private const val BUCKET_EXEMPLAR = 3
+    private const val SUMMARY_QUANTILE = 3
+    private const val SUMMARY_CREATED_TIMESTAMP = 4
+    private const val QUANTILE_QUANTILE = 1
+    private const val QUANTILE_VALUE = 2
+    private const val EXEMPLAR_LABEL = 1
+    private const val EXEMPLAR_VALUE = 2
+    private const val EXEMPLAR_TIMESTAMP = 3
+    private const val TIMESTAMP_SECONDS = 1
+    private const val TIMESTAMP_NANOS = 2
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import java.io.OutputStream
+
+/**
+ * Writes protocol buffers messages in the binary wire format into a growable buffer, which is reused after [reset] so
+ * that encoding the metrics repeatedly does not allocate once the buffer has grown to fit them. Only the parts of the
+ * format needed to export metrics are supported, so no code generation or protobuf runtime is needed.
+ *
+ * Nested messages are written with [message]: their content is written first, and then moved to make room for its
+ * length.
+ */
+internal class ProtobufWriter(initialCapacity: Int = 4096) {
+    private var buffer = ByteArray(initialCapacity)
+
+    /** The number of bytes written. */
+    var size = 0
+        private set
+
+    /** The buffer holding the first [size] bytes written. It is only valid until the next write. */
+    val bytes: ByteArray
+        get() = buffer
+
+    /** Discards the bytes written, keeping the buffer. */
+    fun reset() {
+        size = 0
+    }
+
+    fun toByteArray(): ByteArray = buffer.copyOf(size)
+
+    fun writeTo(out: OutputStream) = out.write(buffer, 0, size)
+
+    fun int64(field: Int, value: Long) {
+        tag(field, WIRE_VARINT)
+        varint(value)
+    }
+
+    fun bool(field: Int, value: Boolean) = int64(field, if (value) 1 else 0)
+
+    fun fixed64(field: Int, value: Long) {
+        tag(field, WIRE_FIXED64)
+        rawFixed64(value)
+    }
+
+    fun double(field: Int, value: Double) = fixed64(field, value.toRawBits())
+
+    fun string(field: Int, value: String) {
+        tag(field, WIRE_LENGTH_DELIMITED)
+        val length = utf8Length(value)
+        varint(length.toLong())
+        ensureCapacity(length)
+        var i = 0
+        while (i < value.length) {
+            val codePoint = codePointAt(value, i)
+            when {
+                codePoint < 0x80 -> buffer[size++] = codePoint.toByte()
+                codePoint < 0x800 -> {
+                    buffer[size++] = (0xc0 or (codePoint shr 6)).toByte()
+                    buffer[size++] = (0x80 or (codePoint and 0x3f)).toByte()
+                }
+                codePoint < 0x10000 -> {
+                    buffer[size++] = (0xe0 or (codePoint shr 12)).toByte()
+                    buffer[size++] = (0x80 or ((codePoint shr 6) and 0x3f)).toByte()
+                    buffer[size++] = (0x80 or (codePoint and 0x3f)).toByte()
+                }
+                else -> {
+                    buffer[size++] = (0xf0 or (codePoint shr 18)).toByte()
+                    buffer[size++] = (0x80 or ((codePoint shr 12) and 0x3f)).toByte()
+                    buffer[size++] = (0x80 or ((codePoint shr 6) and 0x3f)).toByte()
+                    buffer[size++] = (0x80 or (codePoint and 0x3f)).toByte()
+                }
+            }
+            i += Character.charCount(codePoint)
+        }
+    }
+
+    /** Writes the first [count] of [values] as a packed repeated `double` field. */
+    fun packedDoubles(field: Int, values: DoubleArray, count: Int = values.size) =
+        packedFixed64(field, count) { rawFixed64(values[it].toRawBits()) }
+
+    /** Writes the first [count] of [values] as a packed repeated `fixed64` field. */
+    fun packedFixed64(field: Int, values: LongArray, count: Int = values.size) =
+        packedFixed64(field, count) { rawFixed64(values[it]) }
+
+    private inline fun packedFixed64(field: Int, count: Int, writeValue: (Int) -> Unit) {
+        if (count == 0) {
+            return
+        }
+        tag(field, WIRE_LENGTH_DELIMITED)
+        varint(count * 8L)
+        for (i in 0 until count) {
+            writeValue(i)
+        }
+    }
+
+    /** Writes a nested message, whose fields are written by [writeFields]. */
+    inline fun message(field: Int, writeFields: () -> Unit) {
+        val start = startMessage(field)
+        writeFields()
+        endMessage(start)
+    }
+
+    /**
+     * Writes a message prefixed by its length (as in protobuf's `writeDelimitedTo`), whose fields are written by
+     * [writeFields].
+     */
+    inline fun delimitedMessage(writeFields: () -> Unit) {
+        val start = size
+        writeFields()
+        endMessage(start)
+    }
+
+    /**
+     * Starts a nested message whose fields are written next, for messages which can not be written by a single block.
+     * Returns the position to pass to [endMessage] once they are written.
+     */
+    fun startMessage(field: Int): Int {
+        tag(field, WIRE_LENGTH_DELIMITED)
+        return size
+    }
+
+    /** Ends the message started at [start], by inserting its length before its fields. */
+    fun endMessage(start: Int) {
+        val length = size - start
+        val lengthSize = varintSize(length.toLong())
+        ensureCapacity(lengthSize)
+        System.arraycopy(buffer, start, buffer, start + lengthSize, length)
+        val end = size + lengthSize
+        size = start
+        varint(length.toLong())
+        size = end
+    }
+
+    private fun tag(field: Int, wireType: Int) = varint(((field shl 3) or wireType).toLong())
+
+    private fun varint(value: Long) {
+        ensureCapacity(MAX_VARINT_SIZE)
+        var v = value
+        while (v and 0x7fL.inv() != 0L) {
+            buffer[size++] = ((v and 0x7f) or 0x80).toByte()
+            v = v ushr 7
+        }
+        buffer[size++] = v.toByte()
+    }
+
+    private fun rawFixed64(value: Long) {
+        ensureCapacity(8)
+        for (i in 0 until 8) {
+            buffer[size++] = (value ushr (8 * i)).toByte()
+        }
+    }
+
+    private fun ensureCapacity(extra: Int) {
+        if (size + extra > buffer.size) {
+            buffer = buffer.copyOf(maxOf(buffer.size * 2, size + extra))
+        }
+    }
+
+    companion object {
+        const val WIRE_VARINT = 0
+        const val WIRE_FIXED64 = 1
+        const val WIRE_LENGTH_DELIMITED = 2
+
+        private const val MAX_VARINT_SIZE = 10
+
+        private fun varintSize(value: Long): Int {
+            var v = value
+            var size = 1
+            while (v and 0x7fL.inv() != 0L) {
+                v = v ushr 7
+                size++
+            }
+            return size
+        }
+
+        /**
+         * Returns the code point at [index] of [value], or '?' for an unpaired surrogate (which can not be encoded in
+         * UTF-8).
+         */
+        private fun codePointAt(value: String, index: Int): Int {
+            val codePoint = value.codePointAt(index)
+            return if (Character.isSurrogate(codePoint.toChar()) && codePoint < 0x10000) '?'.code else codePoint
+        }
+
+        /** Returns the number of bytes needed to encode [value] in UTF-8. */
+        private fun utf8Length(value: String): Int {
+            var length = 0
+            var i = 0
+            while (i < value.length) {
+                val codePoint = codePointAt(value, i)
+                length += when {
+                    codePoint < 0x80 -> 1
+                    codePoint < 0x800 -> 2
+                    codePoint < 0x10000 -> 3
+                    else -> 4
+                }
+                i += Character.charCount(codePoint)
+            }
+            return length
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import com.fasterxml.jackson.core.JsonGenerator
+import io.prometheus.client.CollectorRegistry
+import java.time.Clock
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+import kotlin.math.exp
+import kotlin.math.pow
+
+/**
+ * The rate of events per second, as an exponentially weighted moving average over a [window], like the load average
+ * of a Unix system. Events are counted with a [LongAdder]; every [TICK_INTERVAL] the count since the previous tick
+ * is folded into the average. Ticks happen lazily, on the first update or read after the interval elapsed, so neither
+ * marking events nor reading the rate takes a lock, and both take constant time.
+ *
+ * It is exported as a Prometheus gauge, and as a number in JSON.
+ */
+class RateMetric @JvmOverloads constructor(
+    /** the name of this metric */
+    override val name: String,
+    /** the description of this metric */
+    help: String,
+    /** the namespace (prefix) of this metric */
+    namespace: String,
+    /** the time window over which the rate is averaged, at least [TICK_INTERVAL] */
+    val window: Duration = Duration.ofMinutes(1),
+    /** Label names for this metric. If non-empty, all get/update calls MUST specify values for the labels. */
+    val labelNames: List<String> = emptyList(),
+    private val clock: Clock = Clock.systemUTC()
+) : Metric<Double>() {
+    /** The weight of the rate of the last tick in the moving average. */
+    private val alpha: Double
+
+    init {
+        if (window < TICK_INTERVAL) {
+            throw IllegalArgumentException("The window must be at least $TICK_INTERVAL")
+        }
+        alpha = 1 - exp(-TICK_INTERVAL.toMillis().toDouble() / window.toMillis())
+    }
+
+    private val rate = GaugeCollector(name, help, namespace, labelNames, { Child(clock, alpha) }, { it.get() })
+
+    /** Returns the current rate, in events per second. Throws if this metric has labels. */
+    override fun get() = rate.noLabels().get()
+
+    /** Returns the current rate of the series with the given labels, in events per second. */
+    fun get(labels: List<String>) = child(labels).get()
+
+    override fun writeJson(generator: JsonGenerator) = if (labelNames.isEmpty()) {
+        generator.writeNumber(get())
+    } else {
+        generator.writeLabeled(rate.childEntries, labelNames.size, { it.key }) { generator.writeNumber(it.value.get()) }
+    }
+
+    override fun reset() = rate.clear()
+
+    override fun register(registry: CollectorRegistry) = this.also { registry.register(rate) }
+
+    override fun forEachSeries(action: (List<String>, Any) -> Unit) =
+        rate.childEntries.forEach { (labelValues, child) -> action(labelValues, child.get()) }
+
+    /** Marks the occurrence of [count] events. */
+    @JvmOverloads
+    fun mark(count: Long = 1, labels: List<String> = emptyList()) = child(labels).mark(count)
+
+    /** Remove the child with the given labels (the metric with those labels will stop being emitted) */
+    fun remove(labels: List<String> = emptyList()) {
+        if (labels.isNotEmpty()) {
+            rate.remove(labels)
+        }
+    }
+
+    /**
+     * Returns the child of this metric with the given label values, creating it if necessary. Events marked through
+     * the returned handle do not look up the labels again.
+     */
+    fun child(vararg labelValues: String): Child = rate.labels(labelValues.asList())
+
+    /** Returns the child of this metric with the given label values, see [child]. */
+    fun child(labelValues: List<String>): Child =
+        if (labelValues.isEmpty()) rate.noLabels() else rate.labels(labelValues)
+
+    override fun collect() = rate.collect()
+
+    /**
+     * A handle to the rate of a [RateMetric] for one set of label values, see [RateMetric.child].
+     */
+    class Child internal constructor(private val clock: Clock, private val alpha: Double) {
+        private val count = LongAdder()
+
+        /** The time of the last tick, in milliseconds. Ticks are claimed by updating it. */
+        private val lastTick = AtomicLong(clock.millis())
+
+        /** The value of [count] at the last tick. */
+        @Volatile
+        private var countAtLastTick = 0L
+
+        /** The current rate in events per second, or `null` before the first tick. */
+        @Volatile
+        private var rate: Double? = null
+
+        /** Marks the occurrence of [count] events. */
+        @JvmOverloads
+        fun mark(count: Long = 1) {
+            if (count < 0) {
+                throw IllegalArgumentException("Count must be non-negative.")
+            }
+            tickIfNecessary()
+            this.count.add(count)
+        }
+
+        /** Returns the current rate, in events per second. */
+        fun get(): Double {
+            tickIfNecessary()
+            return rate ?: 0.0
+        }
+
+        private fun tickIfNecessary() {
+            val last = lastTick.get()
+            val ticks = (clock.millis() - last) / TICK_INTERVAL_MS
+            // Only the thread which moves lastTick forward ticks, the others carry on without waiting.
+            if (ticks > 0 && lastTick.compareAndSet(last, last + ticks * TICK_INTERVAL_MS)) {
+                val total = count.sum()
+                val tickRate = (total - countAtLastTick) * 1000.0 / TICK_INTERVAL_MS
+                countAtLastTick = total
+                val previous = rate
+                var updated = if (previous == null) tickRate else previous + alpha * (tickRate - previous)
+                // No events were counted in the remaining ticks, so the average decays.
+                if (ticks > 1) {
+                    updated *= (1 - alpha).pow((ticks - 1).toDouble())
+                }
+                rate = updated
+            }
+        }
+    }
+
+    companion object {
+        /** How often the count of events is folded into the moving average. */
+        @JvmField
+        val TICK_INTERVAL: Duration = Duration.ofSeconds(5)
+
+        private val TICK_INTERVAL_MS = TICK_INTERVAL.toMillis()
+    }
+}
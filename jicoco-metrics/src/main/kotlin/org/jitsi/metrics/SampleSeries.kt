@@ -0,0 +1,65 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import io.prometheus.client.Collector.MetricFamilySamples.Sample
+
+/**
+ * Calls [action] for each series of [samples], with the range of indices of its samples and the number of labels which
+ * identify it. The samples of a series must be adjacent, as they are for all collectors in this module and in the
+ * Prometheus client. The `le` label of histogram buckets and the `quantile` label of summary quantiles do not identify
+ * the series.
+ */
+internal inline fun forEachSampleSeries(
+    samples: List<Sample>,
+    action: (start: Int, end: Int, labelCount: Int) -> Unit
+) {
+    if (samples.isEmpty()) {
+        return
+    }
+    var start = 0
+    var labelCount = seriesLabelCount(samples[0])
+    for (i in 1 until samples.size) {
+        val count = seriesLabelCount(samples[i])
+        if (!sameSeries(samples[start], samples[i], labelCount, count)) {
+            action(start, i, labelCount)
+            start = i
+            labelCount = count
+        }
+    }
+    action(start, samples.size, labelCount)
+}
+
+/** Parses the value of an `le` label, which uses the Prometheus text format for infinity. */
+internal fun parseUpperBound(le: String) = if (le == "+Inf") Double.POSITIVE_INFINITY else le.toDouble()
+
+internal fun seriesLabelCount(sample: Sample): Int {
+    val last = sample.labelNames.lastOrNull()
+    val isBucket = last == "le" && sample.name.endsWith("_bucket")
+    return sample.labelNames.size - if (isBucket || last == "quantile") 1 else 0
+}
+
+internal fun sameSeries(a: Sample, b: Sample, aLabelCount: Int, bLabelCount: Int): Boolean {
+    if (aLabelCount != bLabelCount) {
+        return false
+    }
+    for (i in 0 until aLabelCount) {
+        if (a.labelValues[i] != b.labelValues[i]) {
+            return false
+        }
+    }
+    return true
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import java.io.StringWriter
+import java.io.Writer
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Caches rendered metrics per content type, so that scrapes arriving within [ttl] of each other render the metrics
+ * only once. Each content type has its own buffer, which is reused between renders so that its capacity does not
+ * have to grow again on every scrape. Also keeps track of how long rendering takes.
+ */
+internal class ScrapeCache {
+    /** How long a rendered result is reused. When zero or negative, every call renders. */
+    @Volatile
+    var ttl: Duration = Duration.ZERO
+
+    private val entries = ConcurrentHashMap<String, Entry>()
+
+    private val renders = LongAdder()
+    private val renderNanos = LongAdder()
+
+    /** The number of times metrics were rendered (i.e. not served from the cache). */
+    val renderCount: Long
+        get() = renders.sum()
+
+    /** The total time spent rendering, in nanoseconds. */
+    val totalRenderNanos: Long
+        get() = renderNanos.sum()
+
+    /**
+     * Returns the metrics rendered for [contentType], either from the cache or by calling [render] with a writer to
+     * render into.
+     */
+    fun get(contentType: String, render: (Writer) -> Unit): String {
+        val ttlNanos = ttl.toNanos()
+        if (ttlNanos <= 0) {
+            return StringWriter().also { timed { render(it) } }.toString()
+        }
+
+        val entry = entries[contentType] ?: Entry().let { entries.putIfAbsent(contentType, it) ?: it }
+        synchronized(entry) {
+            val now = System.nanoTime()
+            entry.value?.let {
+                if (now - entry.renderedAtNanos < ttlNanos) {
+                    return it
+                }
+            }
+            entry.writer.buffer.setLength(0)
+            try {
+                timed { render(entry.writer) }
+            } catch (e: Exception) {
+                entries.remove(contentType, entry)
+                throw e
+            }
+            return entry.writer.toString().also {
+                entry.value = it
+                entry.renderedAtNanos = now
+            }
+        }
+    }
+
+    /**
+     * Writes the metrics rendered for [contentType] to [writer]. When caching is enabled this is the same as [get];
+     * otherwise [render] writes directly to [writer], without buffering the output.
+     */
+    fun write(contentType: String, writer: Writer, render: (Writer) -> Unit) {
+        if (ttl.toNanos() <= 0) {
+            timed { render(writer) }
+        } else {
+            writer.write(get(contentType, render))
+        }
+    }
+
+    /** Drops all cached results, so that the next call for each content type renders again. */
+    fun invalidate() = entries.clear()
+
+    private inline fun timed(block: () -> Unit) {
+        val start = System.nanoTime()
+        block()
+        renderNanos.add(System.nanoTime() - start)
+        renders.increment()
+    }
+
+    /** The cached result for one content type. Only accessed while holding its lock. */
+    private class Entry {
+        val writer = StringWriter()
+        var value: String? = null
+        var renderedAtNanos = 0L
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+/**
+ * Tracks whether a series of a [LabeledCollector] changed since it was last read by [LabeledCollector.drainChanges],
+ * so that [MetricsContainer.getDelta] only reads the series which changed. The child of the series calls [mark] after
+ * each update, which only costs a volatile read once the series is marked.
+ */
+internal class SeriesChange {
+    /** Whether the series was queued as changed since it was last read. */
+    @Volatile
+    private var marked = false
+
+    /** The collector of the series, set before the series is published. `null` for series which are not exported. */
+    private var collector: LabeledCollector<*>? = null
+
+    /** The label values of the series. */
+    private var labelValues: List<String> = emptyList()
+
+    fun attach(collector: LabeledCollector<*>, labelValues: List<String>) {
+        this.collector = collector
+        this.labelValues = labelValues
+    }
+
+    /** Marks the series as changed. Must be called after the update. */
+    fun mark() {
+        if (!marked) {
+            marked = true
+            collector?.changed(labelValues)
+        }
+    }
+
+    /** Clears the mark. Must be called before the series is read, so that no update is missed. */
+    fun clear() {
+        marked = false
+    }
+}
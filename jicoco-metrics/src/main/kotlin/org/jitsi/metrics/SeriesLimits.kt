@@ -0,0 +1,55 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import java.time.Clock
+import java.time.Duration
+
+/**
+ * Limits on the series (sets of label values) of a labeled metric, which protect against series accumulating without
+ * bound when they are not removed explicitly.
+ *
+ * A series is idle when it was neither looked up by its label values nor changed its value. Idle series are evicted
+ * once they have been idle for [idleTtl]; activity is checked when the metric is exported, so an evicted series was
+ * idle for at least [idleTtl] and at most [idleTtl] plus the interval between exports. Note that a series updated
+ * through a child handle which keeps setting the same value looks idle. Updates through the handle of an evicted
+ * series are no longer exported.
+ *
+ * A lookup of a new series when the metric already has [maxSeries] series (after evicting the idle ones) is rejected:
+ * it returns a handle which is not exported. Concurrent lookups may exceed [maxSeries] slightly.
+ */
+class SeriesLimits @JvmOverloads constructor(
+    /** The maximum number of series. */
+    val maxSeries: Int = Int.MAX_VALUE,
+    /** How long a series may be idle before it is evicted, or `null` to never evict series. */
+    val idleTtl: Duration? = null,
+    internal val clock: Clock = Clock.systemUTC()
+) {
+    init {
+        if (maxSeries < 1) {
+            throw IllegalArgumentException("The maximum number of series must be positive")
+        }
+        if (idleTtl != null && idleTtl <= Duration.ZERO) {
+            throw IllegalArgumentException("The idle TTL must be positive")
+        }
+    }
+
+    companion object {
+        /** No limits. */
+        @JvmField
+        val NONE = SeriesLimits()
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.metrics
+
+import io.prometheus.client.Collector.MetricFamilySamples.Sample
+
+/**
+ * A Prometheus counter with [CounterMetric.Child] children, which are backed by a
+ * [LongAdder][java.util.concurrent.atomic.LongAdder] so that concurrent increments from many threads neither take a
+ * lock nor contend on a single memory location. The samples it produces are the same as those of a Prometheus
+ * [Counter][io.prometheus.client.Counter], including the "_total" suffix handling.
+ */
+internal class StripedCounter(
+    name: String,
+    help: String,
+    namespace: String,
+    labelNames: List<String>,
+    limits: SeriesLimits = SeriesLimits.NONE
+) : LabeledCollector<CounterMetric.Child>(
+    name.removeSuffix("_total"),
+    help,
+    namespace,
+    labelNames,
+    Type.COUNTER,
+    limits
+) {
+    init {
+        initializeNoLabelsChild()
+    }
+
+    override fun newChild() = CounterMetric.Child()
+
+    override fun valueOf(child: CounterMetric.Child) = child.get()
+
+    override fun changeOf(child: CounterMetric.Child) = child.change
+
+    override val tracksChanges: Boolean
+        get() = true
+
+    override fun addSamples(samples: MutableList<Sample>, labelValues: List<String>, child: CounterMetric.Child) {
+        samples.add(Sample("${fullName}_total", labelNames, labelValues, child.get().toDouble(), child.exemplar))
+        samples.add(Sample("${fullName}_created", labelNames, labelValues, child.created / 1000.0))
+    }
+}
@@ -16,9 +16,25 @@
 
 package org.jitsi.metrics
 
+import com.fasterxml.jackson.core.JsonFactory
 import io.kotest.assertions.throwables.shouldThrow
 import io.kotest.core.spec.style.ShouldSpec
+import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
+import io.kotest.matchers.comparables.shouldBeGreaterThanOrEqualTo
+import io.kotest.matchers.comparables.shouldBeLessThan
+import io.kotest.matchers.longs.shouldBeInRange
 import io.kotest.matchers.shouldBe
+import io.prometheus.client.CollectorRegistry
+import io.prometheus.client.Histogram
+import io.prometheus.client.exporter.common.TextFormat
+import org.jitsi.utils.time.FakeClock
+import java.io.StringWriter
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.math.exp
 
 class MetricTest : ShouldSpec() {
     private val namespace = "test"
@@ -97,6 +113,19 @@ class MetricTest : ShouldSpec() {
                     get(labels3) shouldBe true
                     // Even a get() will summon a child
                     collect()[0].samples.size shouldBe 3
+                    json() shouldBe """{"A":{"A":false,"B":false},"B":{"B":true}}"""
+                }
+            }
+            context("Using a child handle") {
+                with(BooleanMetric("testBoolean", "Help", namespace, labelNames = listOf("l1", "l2"))) {
+                    val child = child("A", "B")
+                    child shouldBe child(listOf("A", "B"))
+                    child.get() shouldBe false
+                    child.setAndGet(true) shouldBe true
+                    get(listOf("A", "B")) shouldBe true
+                    set(false, listOf("A", "B"))
+                    child.get() shouldBe false
+                    get(listOf("A", "A")) shouldBe false
                 }
             }
         }
@@ -159,6 +188,28 @@ class MetricTest : ShouldSpec() {
                     get(labels3) shouldBe 1.0
                     // Even a get() will summon a child
                     collect()[0].samples.size shouldBe 3
+                    json() shouldBe """{"A":{"A":5.0,"B":0.0},"B":{"B":1.0}}"""
+                }
+            }
+            context("Using a child handle") {
+                with(DoubleGaugeMetric("testDoubleGauge", "Help", namespace, labelNames = listOf("l1"))) {
+                    val child = child("A")
+                    child.set(0.5)
+                    child.addAndGet(1.0) shouldBe 1.5
+                    get(listOf("A")) shouldBe 1.5
+                    child.setAndGet(-2.5) shouldBe -2.5
+                    child.incAndGet() shouldBe -1.5
+                    child.decAndGet() shouldBe -2.5
+                    get(listOf("B")) shouldBe 0.0
+                }
+            }
+            context("and updating its value from many threads") {
+                with(DoubleGaugeMetric("testDoubleGauge", "Help", namespace)) {
+                    List(8) { i -> thread { repeat(10_000) { addAndGet(if (i % 2 == 0) 1.5 else -0.5) } } }
+                        .forEach { it.join() }
+                    should("not lose any updates") {
+                        get() shouldBe 40_000.0
+                    }
                 }
             }
         }
@@ -171,7 +222,7 @@ class MetricTest : ShouldSpec() {
                             incAndGet() shouldBe 1
                             repeat(20) { inc() }
                             get() shouldBe 21
-                            supportsJson shouldBe true
+                            json() shouldBe "21"
                         }
                     }
                     context("and decrementing its value") {
@@ -181,6 +232,28 @@ class MetricTest : ShouldSpec() {
                     }
                 }
             }
+            context("and incrementing its value from many threads") {
+                with(CounterMetric("testCounter", "Help", namespace)) {
+                    List(8) { thread { repeat(10_000) { inc() } } }.forEach { it.join() }
+                    should("not lose any updates") {
+                        get() shouldBe 80_000
+                    }
+                }
+                with(CounterMetric("testCounter", "Help", namespace)) {
+                    val values = ConcurrentHashMap.newKeySet<Long>()
+                    List(8) { thread { repeat(10_000) { values.add(incAndGet()) } } }.forEach { it.join() }
+                    should("return distinct values from incAndGet") {
+                        values shouldBe (1L..80_000L).toSet()
+                    }
+                }
+                with(CounterMetric("testCounter", "Help", namespace, labelNames = listOf("l1"))) {
+                    List(8) { i -> thread { repeat(10_000) { add(2, listOf("${i % 2}")) } } }.forEach { it.join() }
+                    should("not lose any updates to labeled children") {
+                        get(listOf("0")) shouldBe 80_000
+                        get(listOf("1")) shouldBe 80_000
+                    }
+                }
+            }
             context("with a positive initial value") {
                 val initialValue: Long = 50
                 with(CounterMetric("testCounter", "Help", namespace, initialValue)) {
@@ -202,7 +275,6 @@ class MetricTest : ShouldSpec() {
                     }
                 }
                 with(CounterMetric("testCounter", "Help", namespace, labelNames = listOf("l1", "l2"))) {
-                    supportsJson shouldBe false
                     listOf(
                         { get() },
                         { get(listOf("v1")) },
@@ -254,6 +326,26 @@ class MetricTest : ShouldSpec() {
                     get(labels3) shouldBe 1
                     // Even a get() will summon a child
                     collect()[0].samples.size shouldBe 6
+                    json() shouldBe """{"A":{"A":5,"B":0},"B":{"B":1}}"""
+                }
+            }
+            context("Using a child handle") {
+                with(CounterMetric("testCounter", "Help", namespace, labelNames = listOf("l1", "l2"))) {
+                    val child = child("A", "B")
+                    child shouldBe child(listOf("A", "B"))
+                    child.inc()
+                    child.add(2)
+                    child.incAndGet() shouldBe 4
+                    get(listOf("A", "B")) shouldBe 4
+                    inc(listOf("A", "B"))
+                    child.get() shouldBe 5
+                    get(listOf("A", "A")) shouldBe 0
+                    shouldThrow<IllegalArgumentException> { child.add(-1) }
+                    shouldThrow<IllegalArgumentException> { child("A") }
+                }
+                with(CounterMetric("testCounter", "Help", namespace)) {
+                    child().addAndGet(3) shouldBe 3
+                    get() shouldBe 3
                 }
             }
         }
@@ -315,6 +407,44 @@ class MetricTest : ShouldSpec() {
                     get(labels3) shouldBe 1
                     // Even a get() will summon a child
                     collect()[0].samples.size shouldBe 3
+                    json() shouldBe """{"A":{"A":5,"B":0},"B":{"B":1}}"""
+                }
+            }
+            context("Using a child handle") {
+                with(LongGaugeMetric("testLongGauge", "Help", namespace, labelNames = listOf("l1", "l2"))) {
+                    val child = child("A", "B")
+                    child.set(10)
+                    child.inc()
+                    child.dec()
+                    child.decAndGet() shouldBe 9
+                    child.addAndGet(-4) shouldBe 5
+                    get(listOf("A", "B")) shouldBe 5
+                    incAndGet(listOf("A", "B")) shouldBe 6
+                    child.get() shouldBe 6
+                    get(listOf("A", "A")) shouldBe 0
+                }
+            }
+            context("with values which are not exact as doubles") {
+                with(LongGaugeMetric("testLongGauge", "Help", namespace, Long.MAX_VALUE - 1)) {
+                    should("keep the exact value") {
+                        get() shouldBe Long.MAX_VALUE - 1
+                        json() shouldBe "${Long.MAX_VALUE - 1}"
+                    }
+                }
+                with(LongGaugeMetric("testLongGauge", "Help", namespace, labelNames = listOf("l1"))) {
+                    set((1L shl 53) + 1, listOf("A"))
+                    should("keep the exact value of labeled children") {
+                        json() shouldBe """{"A":${(1L shl 53) + 1}}"""
+                    }
+                }
+            }
+            context("and updating its value from many threads") {
+                with(LongGaugeMetric("testLongGauge", "Help", namespace)) {
+                    List(8) { i -> thread { repeat(10_000) { addAndGet(if (i % 2 == 0) 3 else -1) } } }
+                        .forEach { it.join() }
+                    should("not lose any updates") {
+                        get() shouldBe 80_000
+                    }
                 }
             }
         }
@@ -351,6 +481,205 @@ class MetricTest : ShouldSpec() {
                     get(labels) shouldBe "AA"
                     get(labels2) shouldBe null
                     get(labels3) shouldBe "BB"
+                    // Children which were never set are not exported
+                    json() shouldBe """{"A":{"A":"AA"},"B":{"B":"BB"}}"""
+                }
+            }
+        }
+        context("Limiting the series of a labeled metric") {
+            val clock = FakeClock()
+            val limits = SeriesLimits(maxSeries = 2, idleTtl = Duration.ofMinutes(1), clock = clock)
+            with(CounterMetric("testCounter", "Help", namespace, labelNames = listOf("l1"), limits = limits)) {
+                inc(listOf("A"))
+                val childB = child("B")
+                context("when there are too many series") {
+                    inc(listOf("C"))
+                    should("reject new series") {
+                        get(listOf("C")) shouldBe 0
+                        json() shouldBe """{"A":1,"B":0}"""
+                        limitedCollector!!.rejectedCount shouldBe 2
+                    }
+                }
+                context("when series are idle") {
+                    collect()
+                    clock.elapse(Duration.ofSeconds(30))
+                    childB.inc()
+                    collect()
+                    clock.elapse(Duration.ofSeconds(40))
+                    should("evict them") {
+                        json() shouldBe """{"B":1}"""
+                        limitedCollector!!.evictedCount shouldBe 1
+                    }
+                    should("accept new series again") {
+                        inc(listOf("C"))
+                        json() shouldBe """{"B":1,"C":1}"""
+                    }
+                }
+                context("when series are looked up") {
+                    collect()
+                    clock.elapse(Duration.ofSeconds(40))
+                    get(listOf("B"))
+                    collect()
+                    clock.elapse(Duration.ofSeconds(40))
+                    should("not evict them") {
+                        json() shouldBe """{"B":1}"""
+                    }
+                }
+            }
+            should("apply to gauges and info metrics") {
+                with(LongGaugeMetric("testGauge", "Help", namespace, labelNames = listOf("l1"), limits = limits)) {
+                    set(1, listOf("A"))
+                    set(2, listOf("B"))
+                    set(3, listOf("C"))
+                    json() shouldBe """{"A":1,"B":2}"""
+                }
+                with(BooleanMetric("testBoolean", "Help", namespace, labelNames = listOf("l1"), limits = limits)) {
+                    set(true, listOf("A"))
+                    collect()
+                    clock.elapse(Duration.ofMinutes(2))
+                    json() shouldBe "{}"
+                }
+                with(InfoMetric("testInfo", "Help", namespace, labelNames = listOf("l1"), limits = limits)) {
+                    set(listOf("A"), "a")
+                    set(listOf("B"), "b")
+                    set(listOf("C"), "c")
+                    json() shouldBe """{"A":"a","B":"b"}"""
+                    limitedCollector!!.rejectedCount shouldBe 1
+                }
+            }
+            should("reject invalid limits") {
+                shouldThrow<IllegalArgumentException> { SeriesLimits(maxSeries = 0) }
+                shouldThrow<IllegalArgumentException> { SeriesLimits(idleTtl = Duration.ZERO) }
+            }
+        }
+        context("Creating a RateMetric") {
+            val clock = FakeClock()
+            with(RateMetric("testRate", "Help", namespace, clock = clock)) {
+                mark(50)
+                should("report no rate before the first tick") {
+                    get() shouldBe 0.0
+                }
+                context("after a tick") {
+                    clock.elapse(RateMetric.TICK_INTERVAL)
+                    should("report the rate of the first tick") {
+                        get() shouldBe 10.0
+                    }
+                }
+                context("after another tick") {
+                    mark(100)
+                    clock.elapse(RateMetric.TICK_INTERVAL)
+                    should("move the average towards the rate of the tick") {
+                        get() shouldBe 10.0 + (1 - exp(-5.0 / 60)) * (20.0 - 10.0)
+                    }
+                }
+                context("after a long time without events") {
+                    clock.elapse(Duration.ofMinutes(10))
+                    should("decay") {
+                        get() shouldBeLessThan 0.01
+                    }
+                }
+                should("reject negative counts") {
+                    shouldThrow<IllegalArgumentException> { mark(-1) }
+                }
+            }
+            should("reject windows shorter than the tick interval") {
+                shouldThrow<IllegalArgumentException> {
+                    RateMetric("testRate", "Help", namespace, Duration.ofSeconds(1))
+                }
+            }
+            with(RateMetric("testRate", "Help", namespace, labelNames = listOf("l1"), clock = clock)) {
+                mark(10, listOf("A"))
+                child("B").mark(20)
+                clock.elapse(RateMetric.TICK_INTERVAL)
+                should("export labeled rates") {
+                    get(listOf("A")) shouldBe 2.0
+                    json() shouldBe """{"A":2.0,"B":4.0}"""
+                    collect()[0].samples.map { it.value } shouldContainExactlyInAnyOrder listOf(2.0, 4.0)
+                }
+            }
+        }
+        context("Creating a MovingAverageMetric") {
+            val clock = FakeClock()
+            with(MovingAverageMetric("testAverage", "Help", namespace, Duration.ofMinutes(1), clock = clock)) {
+                get() shouldBe 0.0
+                record(10.0)
+                record(20.0)
+                should("average the recorded values") {
+                    get() shouldBe 15.0
+                }
+                context("later in the window") {
+                    clock.elapse(Duration.ofSeconds(30))
+                    record(60.0)
+                    should("average all the values in the window") {
+                        get() shouldBe 30.0
+                    }
+                }
+                context("once the first values leave the window") {
+                    clock.elapse(Duration.ofSeconds(40))
+                    should("only average the remaining values") {
+                        get() shouldBe 60.0
+                    }
+                }
+                context("once all values leave the window") {
+                    clock.elapse(Duration.ofMinutes(2))
+                    should("be 0") {
+                        get() shouldBe 0.0
+                    }
+                    record(1.0)
+                    should("reuse the slots") {
+                        get() shouldBe 1.0
+                    }
+                }
+            }
+            with(MovingAverageMetric("testAverage", "Help", namespace, labelNames = listOf("l1"), clock = clock)) {
+                record(1.0, listOf("A"))
+                child("A").record(3.0)
+                record(5.0, listOf("B"))
+                should("export labeled averages") {
+                    json() shouldBe """{"A":2.0,"B":5.0}"""
+                }
+            }
+            should("reject invalid windows") {
+                shouldThrow<IllegalArgumentException> {
+                    MovingAverageMetric("testAverage", "Help", namespace, Duration.ofMillis(5), slots = 10)
+                }
+                shouldThrow<IllegalArgumentException> {
+                    MovingAverageMetric("testAverage", "Help", namespace, slots = 0)
+                }
+            }
+        }
+        context("Creating a LazyGaugeMetric") {
+            val clock = FakeClock()
+            var computed = 0
+            with(LazyGaugeMetric("testLazy", "Help", namespace, Duration.ofSeconds(10), clock) { ++computed }) {
+                should("not compute its value until it is read") {
+                    computed shouldBe 0
+                }
+                should("reuse its value within the refresh interval") {
+                    get() shouldBe 1
+                    clock.elapse(Duration.ofSeconds(5))
+                    collect()[0].samples[0].value shouldBe 1.0
+                    json() shouldBe "1"
+                }
+                should("compute its value again after the refresh interval") {
+                    clock.elapse(Duration.ofSeconds(5))
+                    get() shouldBe 2
+                    computed shouldBe 2
+                }
+                should("compute its value again after being reset") {
+                    reset()
+                    get() shouldBe 3
+                }
+            }
+            with(LazyGaugeMetric("testLazy", "Help", namespace) { if (computed++ == 0) 0.5 else throw Exception() }) {
+                computed = 0
+                should("compute its value on every read without a refresh interval") {
+                    json() shouldBe "0.5"
+                    computed shouldBe 1
+                }
+                should("keep the previous value if computing it fails") {
+                    get() shouldBe 0.5
+                    computed shouldBe 2
                 }
             }
         }
@@ -394,5 +723,280 @@ class MetricTest : ShouldSpec() {
                 this[0].value shouldBe 0
             }
         }
+        context("HistogramMetric with labels") {
+            with(HistogramMetric("histogram_test", "h", namespace, listOf("l1"), 1.0, 10.0)) {
+                shouldThrow<IllegalArgumentException> { observe(1.5) }
+                shouldThrow<IllegalStateException> { get() }
+                observe(1.5, listOf("A"))
+                child("A").observe(0.5)
+                child(listOf("B")).observe(25.0)
+
+                histogram.labels("A").get().sum shouldBe 2.0
+                json() shouldBe """{"A":{"bucket_le_1.0":1.0,"bucket_le_10.0":2.0,"bucket_le_+Inf":2.0,""" +
+                    """"count":2.0,"sum":2.0,"created":${histogram.labels("A").get().created / 1000.0}},""" +
+                    """"B":{"bucket_le_1.0":0.0,"bucket_le_10.0":0.0,"bucket_le_+Inf":1.0,"count":1.0,"sum":25.0,""" +
+                    """"created":${histogram.labels("B").get().created / 1000.0}}}"""
+                remove(listOf("A"))
+                histogram.collect()[0].samples.count { it.name.endsWith("_count") } shouldBe 1
+            }
+        }
+        context("Recording exemplars") {
+            val counter = CounterMetric("exemplar_counter", "c", namespace, labelNames = listOf("l1"))
+            val histogram = HistogramMetric("exemplar_histogram", "h", namespace, listOf("l1"), 1.0, 10.0)
+            counter.incWithExemplar(listOf("A"), "conference_id", "c1")
+            with(counter.child("A")) {
+                val nowMs = exemplar!!.timestampMs + ExemplarSlots.MIN_INTERVAL_MS - 1
+                addWithExemplar(1, arrayOf("conference_id", "c2"), nowMs)
+            }
+            counter.inc(listOf("B"))
+            histogram.observeWithExemplar(5.0, listOf("A"), "conference_id", "c3")
+            histogram.child("A").observeWithExemplar(50.0, "conference_id", "c4")
+            histogram.observe(0.5, listOf("A"))
+
+            val registry = CollectorRegistry().apply {
+                counter.register(this)
+                histogram.register(this)
+            }
+            val exemplars = registry.metricFamilySamples().toList().flatMap { it.samples }
+                .filter { it.exemplar != null }
+                .associate { "${it.name}${it.labelValues}" to it.exemplar.getLabelValue(0) }
+            should("attach the first exemplar of each series and bucket to its sample") {
+                exemplars shouldBe mapOf(
+                    "test_exemplar_counter_total[A]" to "c1",
+                    "test_exemplar_histogram_bucket[A, 10.0]" to "c3",
+                    "test_exemplar_histogram_bucket[A, +Inf]" to "c4"
+                )
+            }
+            should("export them in the OpenMetrics format") {
+                val writer = StringWriter()
+                TextFormat.writeOpenMetrics100(writer, registry.metricFamilySamples())
+                writer.toString().lines().filter { it.contains(" # {") }.size shouldBe 3
+            }
+            should("replace an exemplar only once it is old enough") {
+                val slots = ExemplarSlots(1)
+                slots.record(0, 1.0, arrayOf("id", "1"), nowMs = 1000)
+                slots.record(0, 2.0, arrayOf("id", "2"), nowMs = 1000 + ExemplarSlots.MIN_INTERVAL_MS - 1)
+                slots[0]!!.value shouldBe 1.0
+                slots.record(0, 3.0, arrayOf("id", "3"), nowMs = 1000 + ExemplarSlots.MIN_INTERVAL_MS)
+                slots[0]!!.value shouldBe 3.0
+            }
+            should("use the default buckets of a histogram created without any") {
+                with(HistogramMetric("no_buckets", "h", namespace)) {
+                    observeWithExemplar(20.0, emptyList(), "conference_id", "c5")
+                    collect().flatMap { it.samples }.single { it.exemplar != null }.labelValues shouldBe listOf("+Inf")
+                    get().get("bucket_le_10.0").asDouble() shouldBe 0.0
+                    val defaultBuckets = Histogram.build("defaults", "h").create().collect()[0].samples
+                        .filter { it.name.endsWith("_bucket") }
+                        .map { it.labelValues.last() }
+                    get().fieldNames().asSequence().filter { it.startsWith("bucket_le_") }.toList() shouldBe
+                        defaultBuckets.map { "bucket_le_$it" }
+                }
+            }
+            should("drop the exemplars of a removed series") {
+                histogram.remove(listOf("A"))
+                histogram.observe(5.0, listOf("A"))
+                histogram.collect().flatMap { it.samples }.none { it.exemplar != null } shouldBe true
+            }
+            should("drop the exemplars recorded through the handle of a removed series") {
+                val child = histogram.child("B")
+                histogram.remove(listOf("B"))
+                child.observeWithExemplar(5.0, "conference_id", "c6")
+                histogram.collect()
+                histogram.observe(5.0, listOf("B"))
+                histogram.collect().flatMap { it.samples }.none { it.exemplar != null } shouldBe true
+            }
+        }
+        context("Creating a LogLinearHistogramMetric") {
+            context("and taking snapshots while the first values of its series are recorded") {
+                val histogram = LogLinearHistogramMetric("testLogLinear", "Help", namespace, labelNames = listOf("l1"))
+                val latest = AtomicInteger()
+                val recorder = thread {
+                    repeat(200_000) {
+                        val child = histogram.child("$it")
+                        latest.set(it)
+                        child.record(it + 1L)
+                    }
+                }
+                var failure: Throwable? = null
+                while (recorder.isAlive && failure == null) {
+                    try {
+                        histogram.child("${latest.get()}").snapshot().valueAtQuantile(0.5)
+                    } catch (e: Throwable) {
+                        failure = e
+                    }
+                }
+                recorder.join()
+                should("not fail") {
+                    failure shouldBe null
+                }
+            }
+            context("and recording values") {
+                with(LogLinearHistogramMetric("testLogLinear", "Help", namespace)) {
+                    (1L..1000L).shuffled().forEach { record(it) }
+                    should("track the count, sum and extremes exactly") {
+                        get().count shouldBe 1000
+                        get().sum shouldBe 500500
+                        get().min shouldBe 1
+                        get().max shouldBe 1000
+                        get().mean shouldBe 500.5
+                    }
+                    should("return quantiles within its resolution") {
+                        get().valueAtQuantile(0.5) shouldBeInRange 500L..(500L + 500L / 32)
+                        get().valueAtQuantile(0.99) shouldBeInRange 990L..(990L + 990L / 32)
+                        get().valueAtQuantile(0.999) shouldBeInRange 999L..1000L
+                        get().valueAtQuantile(0.0) shouldBe 1
+                        get().valueAtQuantile(1.0) shouldBe 1000
+                        shouldThrow<IllegalArgumentException> { get().valueAtQuantile(1.5) }
+                    }
+                    should("be empty after a reset") {
+                        reset()
+                        get().count shouldBe 0
+                        get().valueAtQuantile(0.99) shouldBe 0
+                    }
+                }
+            }
+            context("and recording small values") {
+                with(LogLinearHistogramMetric("testLogLinear", "Help", namespace, precision = 5)) {
+                    (0L..31L).forEach { record(it) }
+                    should("return exact quantiles") {
+                        get().valueAtQuantile(0.5) shouldBe 15
+                    }
+                }
+            }
+            context("and recording values at the ends of the range") {
+                with(LogLinearHistogramMetric("testLogLinear", "Help", namespace)) {
+                    record(0)
+                    record(Long.MAX_VALUE)
+                    should("accept them") {
+                        get().valueAtQuantile(0.0) shouldBe 0
+                        get().valueAtQuantile(1.0) shouldBe Long.MAX_VALUE
+                    }
+                    should("reject negative values") {
+                        shouldThrow<IllegalArgumentException> { record(-1) }
+                    }
+                }
+            }
+            context("with an invalid precision") {
+                should("throw an exception") {
+                    shouldThrow<IllegalArgumentException> { LogLinearHistogramMetric("name", "help", namespace, 0) }
+                    shouldThrow<IllegalArgumentException> { LogLinearHistogramMetric("name", "help", namespace, 11) }
+                }
+            }
+            context("and recording values from many threads") {
+                with(LogLinearHistogramMetric("testLogLinear", "Help", namespace)) {
+                    List(8) { i -> thread { repeat(10_000) { record(i * 1000L + it) } } }.forEach { it.join() }
+                    should("not lose any values") {
+                        get().count shouldBe 80_000
+                        get().min shouldBe 0
+                        get().max shouldBe 7000L + 9_999L
+                    }
+                }
+            }
+            context("and exporting it to Prometheus") {
+                with(LogLinearHistogramMetric("testLogLinear", "Help", namespace, maxBucketValue = 100_000)) {
+                    listOf(1L, 100L, 10_000L, 1_000_000L).forEach { record(it) }
+                    val samples = collect()[0].samples
+                    should("export a cumulative bucket per power of two up to the maximum bucket value") {
+                        val buckets = samples.filter { it.name == "test_testLogLinear_bucket" }
+                        buckets.map { it.labelValues.last() } shouldBe
+                            (5..17).map { "${(1L shl it) - 1}.0" } + "+Inf"
+                        buckets.map { it.value.toLong() } shouldBe
+                            listOf(1L, 1, 2, 2, 2, 2, 2, 2, 2, 3, 3, 3, 3, 4)
+                        samples.single { it.name == "test_testLogLinear_count" }.value shouldBe 4
+                        samples.single { it.name == "test_testLogLinear_sum" }.value shouldBe 1_010_101
+                    }
+                }
+            }
+            context("and exporting it to Prometheus with the default maximum bucket value") {
+                with(LogLinearHistogramMetric("testLogLinear", "Help", namespace)) {
+                    record(Long.MAX_VALUE)
+                    should("export a bounded number of buckets") {
+                        val buckets = collect()[0].samples.filter { it.name == "test_testLogLinear_bucket" }
+                        buckets.map { it.labelValues.last() } shouldBe (5..20).map { "${(1L shl it) - 1}.0" } + "+Inf"
+                        buckets.last().value shouldBe 1
+                    }
+                }
+            }
+            context("and exporting series with different values") {
+                with(
+                    LogLinearHistogramMetric(
+                        "testLogLinear",
+                        "Help",
+                        namespace,
+                        labelNames = listOf("l1"),
+                        maxBucketValue = Long.MAX_VALUE
+                    )
+                ) {
+                    child("A")
+                    record(1, listOf("B"))
+                    record(Long.MAX_VALUE, listOf("C"))
+                    should("export the same buckets for all of them") {
+                        val buckets = collect()[0].samples.filter { it.name == "test_testLogLinear_bucket" }
+                            .groupBy({ it.labelValues[0] }, { it.labelValues[1] })
+                        buckets.keys shouldBe setOf("A", "B", "C")
+                        buckets.values.distinct().size shouldBe 1
+                        buckets.getValue("A").size shouldBe 64 - LogLinearHistogramMetric.DEFAULT_PRECISION + 1
+                    }
+                }
+            }
+            context("and timing code") {
+                with(LogLinearHistogramMetric("testTimer", "Help", namespace, labelNames = listOf("type"))) {
+                    time(listOf("sleep")) { Thread.sleep(10) }
+                    shouldThrow<IllegalStateException> {
+                        time(listOf("throw")) { throw IllegalStateException() }
+                    }
+                    observeSince(System.nanoTime() - 1_000_000, listOf("since"))
+                    val future = CompletableFuture<String>()
+                    timeAsync(future, listOf("async")) shouldBe future
+                    snapshot(listOf("async")).count shouldBe 0
+                    future.complete("done")
+                    val sequential = child("sequential")
+                    repeat(3) {
+                        val reused = CompletableFuture<Unit>()
+                        sequential.timeAsync(reused) shouldBe reused
+                        reused.complete(Unit)
+                    }
+                    sequential.timeAsync(CompletableFuture.failedFuture<Unit>(IllegalStateException()))
+                    // Overlapping futures on the same handle each record their own duration.
+                    val overlapping = child("overlapping")
+                    val first = overlapping.timeAsync(CompletableFuture<Unit>())
+                    Thread.sleep(20)
+                    val second = overlapping.timeAsync(CompletableFuture<Unit>())
+                    second.complete(Unit)
+                    Thread.sleep(20)
+                    first.complete(Unit)
+
+                    should("record the durations in nanoseconds") {
+                        snapshot(listOf("sleep")).min shouldBeGreaterThanOrEqualTo 10_000_000L
+                        snapshot(listOf("throw")).count shouldBe 1
+                        snapshot(listOf("since")).min shouldBeGreaterThanOrEqualTo 1_000_000L
+                        snapshot(listOf("async")).count shouldBe 1
+                        snapshot(listOf("sequential")).count shouldBe 4
+                        with(snapshot(listOf("overlapping"))) {
+                            count shouldBe 2
+                            min shouldBeLessThan 20_000_000L
+                            max shouldBeGreaterThanOrEqualTo 40_000_000L
+                        }
+                    }
+                }
+            }
+            context("With labels") {
+                with(LogLinearHistogramMetric("testLogLinear", "Help", namespace, labelNames = listOf("l1"))) {
+                    shouldThrow<IllegalStateException> { record(1) }
+                    child("A").record(10)
+                    record(20, listOf("B"))
+                    record(30, listOf("B"))
+                    snapshot(listOf("B")).count shouldBe 2
+                    json() shouldBe """{"A":{"count":1,"sum":10,"min":10,"max":10,"mean":10.0,"p50":10,"p99":10,""" +
+                        """"p999":10},"B":{"count":2,"sum":50,"min":20,"max":30,"mean":25.0,"p50":20,"p99":30,""" +
+                        """"p999":30}}"""
+                    remove(listOf("A"))
+                    collect()[0].samples.count { it.name == "test_testLogLinear_count" } shouldBe 1
+                }
+            }
+        }
     }
+
+    private fun Metric<*>.json() =
+        StringWriter().also { writer -> JsonFactory().createGenerator(writer).use { writeJson(it) } }.toString()
 }
@@ -16,12 +16,30 @@
 
 package org.jitsi.metrics
 
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.node.ObjectNode
 import io.kotest.assertions.throwables.shouldThrow
 import io.kotest.core.spec.style.ShouldSpec
+import io.kotest.matchers.collections.shouldContain
 import io.kotest.matchers.collections.shouldContainExactly
+import io.kotest.matchers.collections.shouldContainExactlyInAnyOrder
+import io.kotest.matchers.comparables.shouldBeGreaterThan
 import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
+import io.kotest.matchers.string.shouldContain
+import io.kotest.matchers.string.shouldStartWith
 import io.prometheus.client.CollectorRegistry
 import io.prometheus.client.exporter.common.TextFormat
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.StringWriter
+import java.io.Writer
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.zip.GZIPInputStream
+import kotlin.concurrent.thread
 
 class MetricsContainerTest : ShouldSpec() {
 
@@ -86,6 +104,429 @@ class MetricsContainerTest : ShouldSpec() {
                 }
             }
         }
+        context("Registering metrics from many threads while exporting") {
+            val container = MetricsContainer(CollectorRegistry()).apply { checkForNameConflicts = false }
+            val registered = ConcurrentHashMap<String, MutableSet<Metric<*>>>()
+            val errors = CopyOnWriteArrayList<Throwable>()
+            val done = AtomicBoolean(false)
+            val scraper = thread {
+                while (!done.get()) {
+                    try {
+                        container.getPrometheusMetrics(TextFormat.CONTENT_TYPE_OPENMETRICS_100)
+                        container.jsonString
+                        container.resetAll()
+                    } catch (e: Throwable) {
+                        errors.add(e)
+                    }
+                }
+            }
+            List(8) { t ->
+                thread {
+                    repeat(200) { i ->
+                        try {
+                            val n = (i + t) % 50
+                            listOf(
+                                container.registerCounter("counter_$n", "help", labelNames = listOf("l")),
+                                container.registerLongGauge("gauge_$n", "help"),
+                                container.registerBooleanMetric("boolean_$n", "help"),
+                                container.registerDoubleGauge("double_$n", "help"),
+                                container.registerInfo("info_$n", "help", "value"),
+                                container.registerHistogram("histogram_$n", "help", 1.0, 10.0)
+                            ).forEach {
+                                registered.computeIfAbsent(it.name) { ConcurrentHashMap.newKeySet() }.add(it)
+                            }
+                        } catch (e: Throwable) {
+                            errors.add(e)
+                        }
+                    }
+                }
+            }.forEach { it.join() }
+            done.set(true)
+            scraper.join()
+
+            should("register each metric exactly once") {
+                errors shouldBe emptyList()
+                registered.size shouldBe 300
+                registered.values.forEach { it.size shouldBe 1 }
+            }
+            should("throw an exception when the existing metric has a different type") {
+                shouldThrow<RuntimeException> { container.registerLongGauge("boolean_1", "help") }
+            }
+            should("register only one of a counter and a metric named like it without the suffix") {
+                repeat(50) { i ->
+                    val failures = CopyOnWriteArrayList<Throwable>()
+                    listOf(
+                        { container.registerCounter("race_$i", "help") },
+                        { container.registerLongGauge("race_$i", "help") }
+                    ).map { register ->
+                        thread {
+                            try {
+                                register()
+                            } catch (e: Throwable) {
+                                failures.add(e)
+                            }
+                        }
+                    }.forEach { it.join() }
+                    failures.map { it::class to it.message!!.startsWith("Could not register metric") } shouldBe
+                        listOf(RuntimeException::class to true)
+                }
+            }
+        }
+        context("Caching the Prometheus output") {
+            val container = MetricsContainer(CollectorRegistry())
+            val counter = container.registerCounter("cached", "help")
+            container.prometheusCacheTtl = Duration.ofHours(1)
+
+            val openMetrics = container.getPrometheusMetrics(TextFormat.CONTENT_TYPE_OPENMETRICS_100)
+            val text = container.getPrometheusMetrics(TextFormat.CONTENT_TYPE_004)
+            counter.inc()
+            should("reuse the output within the TTL") {
+                (container.getPrometheusMetrics(TextFormat.CONTENT_TYPE_OPENMETRICS_100) === openMetrics) shouldBe true
+                (container.getPrometheusMetrics(TextFormat.CONTENT_TYPE_004) === text) shouldBe true
+                container.prometheusRenderCount shouldBe 2
+            }
+            should("render again once the TTL is changed") {
+                container.prometheusCacheTtl = Duration.ZERO
+                container.getPrometheusMetrics(TextFormat.CONTENT_TYPE_004) shouldNotBe text
+                container.getPrometheusMetrics(TextFormat.CONTENT_TYPE_004) shouldNotBe text
+                container.prometheusRenderCount shouldBe 4
+                container.prometheusRenderTime shouldBeGreaterThan Duration.ZERO
+            }
+        }
+        context("Streaming metrics") {
+            val container = MetricsContainer(CollectorRegistry())
+            container.registerCounter("streamed", "help", labelNames = listOf("l")).apply {
+                repeat(100) { inc(listOf("$it")) }
+            }
+            container.registerLongGauge("gauge", "help", 42)
+
+            listOf(
+                emptyList(),
+                listOf("text/plain"),
+                listOf("application/json"),
+                listOf("application/other", "application/openmetrics-text")
+            ).forEach { accepts ->
+                val expected = container.getMetrics(accepts)
+                should("write the same output as getMetrics for $accepts") {
+                    val out = ByteArrayOutputStream()
+                    container.writeMetrics(accepts, out) shouldBe expected.second
+                    out.toString(Charsets.UTF_8) shouldBe expected.first
+
+                    val writer = StringWriter()
+                    container.writeMetrics(accepts, writer) shouldBe expected.second
+                    writer.toString() shouldBe expected.first
+                }
+                should("write gzip-compressed output for $accepts") {
+                    val out = ByteArrayOutputStream()
+                    container.writeMetrics(accepts, out, gzip = true) shouldBe expected.second
+                    val decompressed = GZIPInputStream(ByteArrayInputStream(out.toByteArray())).readBytes()
+                    decompressed.toString(Charsets.UTF_8) shouldBe expected.first
+                }
+            }
+            should("not write anything when no media type is supported") {
+                val out = ByteArrayOutputStream()
+                shouldThrow<MetricsContainer.NoSupportedMediaTypeException> {
+                    container.writeMetrics(listOf("application/something"), out, gzip = true)
+                }
+                out.size() shouldBe 0
+            }
+            should("write the output of a subclass which overrides the text formats") {
+                val custom = object : MetricsContainer(CollectorRegistry()) {
+                    override fun writeTextFormat(contentType: String, writer: Writer) {
+                        writer.write(if (contentType == "application/json") "{\"custom\":1}" else "custom 1\n")
+                    }
+                }
+                custom.jsonString shouldBe "{\"custom\":1}"
+                custom.getPrometheusMetrics("text/plain") shouldBe "custom 1\n"
+                listOf("application/json", "text/plain").forEach { accepts ->
+                    val writer = StringWriter()
+                    custom.writeMetrics(listOf(accepts), writer)
+                    writer.toString() shouldBe custom.getMetrics(listOf(accepts)).first
+                }
+            }
+        }
+        context("Overriding getPrometheusMetrics in a subclass") {
+            val custom = object : MetricsContainer(CollectorRegistry()) {
+                override fun getPrometheusMetrics(contentType: String): String =
+                    "# custom\n" + super.getPrometheusMetrics(contentType)
+            }
+            custom.registerLongGauge("gauge", "help", 42)
+
+            should("return the output of the override from getMetrics") {
+                val (metrics, contentType) = custom.getMetrics(listOf("text/plain"))
+                contentType shouldBe TextFormat.CONTENT_TYPE_004
+                metrics shouldStartWith "# custom\n"
+                metrics shouldContain "jitsi_gauge 42.0"
+            }
+        }
+        context("Exporting metrics in the Prometheus protobuf format") {
+            val container = MetricsContainer(CollectorRegistry())
+            container.registerCounter("requests", "Requests.", labelNames = listOf("type")).apply {
+                inc(listOf("a"))
+                addAndGet(5, listOf("b"))
+            }
+            container.registerLongGauge("queue_size", "Queue size.", 7)
+            container.registerHistogram("latency", "Latency.", 1.0, 10.0).apply {
+                observe(0.5)
+                observe(5.0)
+                observe(50.0)
+            }
+            val accepts = listOf("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily")
+            val out = ByteArrayOutputStream()
+            val contentType = container.writeMetrics(accepts, out)
+            val families = ProtobufParser.parseDelimited(out.toByteArray()).map { ProtobufParser.parse(it) }
+                .associateBy { String(it.field(1).single().bytes) }
+
+            should("be negotiated when writing to a stream") {
+                contentType shouldBe
+                    "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited"
+                families.keys shouldBe setOf("jitsi_requests_total", "jitsi_queue_size", "jitsi_latency")
+            }
+            should("be skipped when returning a string") {
+                container.getMetrics(accepts + "text/plain").second shouldBe TextFormat.CONTENT_TYPE_004
+                shouldThrow<MetricsContainer.NoSupportedMediaTypeException> { container.getMetrics(accepts) }
+            }
+            should("encode counters with a metric per series") {
+                val counter = families["jitsi_requests_total"]!!
+                counter.field(3).single().second shouldBe 0L
+                counter.field(4).map { metric ->
+                    val fields = ProtobufParser.parse(metric.bytes)
+                    val label = ProtobufParser.parse(fields.field(1).single().bytes)
+                    val value = ProtobufParser.parse(fields.field(3).single().bytes).field(1).single().second as Long
+                    String(label.field(2).single().bytes) to java.lang.Double.longBitsToDouble(value)
+                }.toSet() shouldBe setOf("a" to 1.0, "b" to 5.0)
+            }
+            should("encode histograms with cumulative buckets") {
+                val metric = ProtobufParser.parse(families["jitsi_latency"]!!.field(4).single().bytes)
+                val histogram = ProtobufParser.parse(metric.field(7).single().bytes)
+                histogram.field(1).single().second shouldBe 3L
+                histogram.field(3).map { ProtobufParser.parse(it.bytes).field(1).single().second } shouldBe
+                    listOf(1L, 2L)
+            }
+            should("write the same output when exporting again") {
+                val again = ByteArrayOutputStream()
+                container.writeMetrics(accepts, again)
+                again.toByteArray().toList() shouldBe out.toByteArray().toList()
+            }
+        }
+        context("Exporting metrics as JSON") {
+            val container = MetricsContainer(CollectorRegistry())
+            val metrics = listOf(
+                container.registerBooleanMetric("boolean", "help", true),
+                container.registerCounter("counter", "help", 3),
+                container.registerLongGauge("long_gauge", "help", -7),
+                container.registerDoubleGauge("double_gauge", "help", 0.5),
+                container.registerInfo("info", "help", "value"),
+                container.registerHistogram("histogram", "help", 1.0, 10.0).apply { histogram.observe(2.0) }
+            )
+            container.registerTimer("timer", "help").record(5)
+            container.registerCounter("labeled", "help", labelNames = listOf("l1", "l2")).apply {
+                inc(listOf("a", "x"))
+                add(2, listOf("a", "y"))
+                inc(listOf("b", "x"))
+            }
+
+            should("produce the same JSON as serializing the values of the metrics") {
+                val mapper = ObjectMapper()
+                val timer = mapOf(
+                    "count" to 1, "sum" to 5, "min" to 5, "max" to 5, "mean" to 5.0, "p50" to 5, "p99" to 5, "p999" to 5
+                )
+                val expected = mapper.valueToTree<ObjectNode>(
+                    metrics.associate { it.name to it.get() } +
+                        ("labeled_total" to mapOf("a" to mapOf("x" to 1, "y" to 2), "b" to mapOf("x" to 1))) +
+                        ("timer" to timer)
+                )
+                mapper.readTree(container.jsonString) shouldBe mapper.readTree(expected.toString())
+            }
+            should("keep the metrics in the order they were registered") {
+                ObjectMapper().readTree(container.jsonString).fieldNames().asSequence().toList() shouldBe
+                    metrics.map { it.name } + "timer" + "labeled_total"
+            }
+        }
+        context("Exporting the changes since a snapshot") {
+            val container = MetricsContainer(CollectorRegistry())
+            val mapper = ObjectMapper()
+            val counter = container.registerCounter("counter", "help", 10)
+            val gauge = container.registerLongGauge("gauge", "help", 5)
+            val labeled = container.registerCounter("labeled", "help", labelNames = listOf("l1", "l2")).apply {
+                inc(listOf("a", "x"))
+                inc(listOf("b", "x"))
+            }
+            val histogram = container.registerTimer("timer", "help")
+
+            val first = container.getDelta()
+            should("include all series in the first delta") {
+                first.changedSeries shouldBe 5
+                mapper.readTree(first.json)["labeled_total"] shouldBe
+                    mapper.readTree("""{"a":{"x":1},"b":{"x":1}}""")
+            }
+            context("after some changes") {
+                counter.add(3)
+                labeled.add(2, listOf("b", "x"))
+                labeled.inc(listOf("b", "y"))
+                histogram.record(100)
+                val second = container.getDelta(first.snapshot)
+                should("include only the changed series, with counter increases") {
+                    second.snapshot.token shouldBeGreaterThan first.snapshot.token
+                    second.changedSeries shouldBe 4
+                    val json = mapper.readTree(second.json)
+                    json.fieldNames().asSequence().toList() shouldContainExactlyInAnyOrder
+                        listOf("counter_total", "labeled_total", "timer")
+                    json["counter_total"].asLong() shouldBe 3
+                    json["labeled_total"] shouldBe mapper.readTree("""{"b":{"x":2,"y":1}}""")
+                    json["timer"]["count"].asLong() shouldBe 1
+                }
+                should("include the same series for another caller with the first snapshot") {
+                    mapper.readTree(container.getDelta(first.snapshot).json) shouldBe mapper.readTree(second.json)
+                }
+                context("and without changes") {
+                    val third = container.getDelta(second.snapshot)
+                    should("be empty") {
+                        third.json shouldBe "{}"
+                        third.changedSeries shouldBe 0
+                    }
+                }
+                context("and after a reset") {
+                    gauge.set(7)
+                    container.resetAll()
+                    counter.inc()
+                    val third = container.getDelta(second.snapshot)
+                    should("report the totals of counters which were reset") {
+                        val json = mapper.readTree(third.json)
+                        json["counter_total"].asLong() shouldBe 11
+                        json["gauge"] shouldBe null
+                        json["labeled_total"] shouldBe null
+                    }
+                }
+            }
+        }
+        context("Exporting the changes of series which were updated through a handle or removed") {
+            val container = MetricsContainer(CollectorRegistry())
+            val mapper = ObjectMapper()
+            val counter = container.registerCounter("counter", "help", labelNames = listOf("l1"))
+            counter.add(5, listOf("a"))
+            val child = counter.child(listOf("b"))
+            val first = container.getDelta()
+            child.inc()
+            counter.remove(listOf("a"))
+            val second = container.getDelta(first.snapshot)
+            counter.inc(listOf("a"))
+            val third = container.getDelta(second.snapshot)
+            should("report the updates through the handle, but not the removal") {
+                mapper.readTree(second.json) shouldBe mapper.readTree("""{"counter_total":{"b":1}}""")
+            }
+            should("report the total of a series which was added again") {
+                mapper.readTree(third.json) shouldBe mapper.readTree("""{"counter_total":{"a":1}}""")
+            }
+        }
+        context("Exporting the changes of series which changed too often to be tracked") {
+            val container = MetricsContainer(CollectorRegistry())
+            val mapper = ObjectMapper()
+            val counter = container.registerCounter("counter", "help", labelNames = listOf("l1"))
+            counter.inc(listOf("a"))
+            val first = container.getDelta()
+            repeat(LabeledCollector.MAX_QUEUED_CHANGES) {
+                counter.inc(listOf("$it"))
+                counter.remove(listOf("$it"))
+            }
+            counter.inc(listOf("b"))
+            val second = container.getDelta(first.snapshot)
+            counter.remove(listOf("a"))
+            counter.inc(listOf("c"))
+            val third = container.getDelta(second.snapshot)
+            counter.inc(listOf("a"))
+            counter.inc(listOf("b"))
+            val fourth = container.getDelta(third.snapshot)
+            should("report the same changes as if they were tracked") {
+                mapper.readTree(second.json) shouldBe mapper.readTree("""{"counter_total":{"b":1}}""")
+                mapper.readTree(third.json) shouldBe mapper.readTree("""{"counter_total":{"c":1}}""")
+                mapper.readTree(fourth.json) shouldBe mapper.readTree("""{"counter_total":{"a":1,"b":1}}""")
+            }
+        }
+        context("Registering metrics with series limits") {
+            val container = MetricsContainer(CollectorRegistry())
+            val counter = container.registerCounter(
+                "limited",
+                "help",
+                labelNames = listOf("l"),
+                limits = SeriesLimits(maxSeries = 1)
+            )
+            counter.inc(listOf("a"))
+            counter.inc(listOf("b"))
+            should("count the rejected series") {
+                container.getPrometheusMetrics(TextFormat.CONTENT_TYPE_004).lines() shouldContain
+                    "jitsi_metrics_rejected_series_total{metric=\"limited_total\",} 1.0"
+            }
+            should("keep counting them after a reset") {
+                container.resetAll()
+                counter.inc(listOf("a"))
+                counter.inc(listOf("b"))
+                container.getPrometheusMetrics(TextFormat.CONTENT_TYPE_004).lines() shouldContain
+                    "jitsi_metrics_rejected_series_total{metric=\"limited_total\",} 1.0"
+            }
+            should("not fail updates when the counters can not be registered") {
+                val registry = CollectorRegistry()
+                MetricsContainer(registry).registerCounter(
+                    "first",
+                    "help",
+                    labelNames = listOf("l"),
+                    limits = SeriesLimits(maxSeries = 1)
+                ).apply {
+                    inc(listOf("a"))
+                    inc(listOf("b"))
+                }
+                val second = MetricsContainer(registry).registerCounter(
+                    "second",
+                    "help",
+                    labelNames = listOf("l"),
+                    limits = SeriesLimits(maxSeries = 1)
+                )
+                second.inc(listOf("a"))
+                second.inc(listOf("b"))
+                second.get(listOf("a")) shouldBe 1
+            }
+        }
+        context("Scoping series to the lifecycle of an object") {
+            val container = MetricsContainer(CollectorRegistry())
+            val labels = listOf("conference", "direction")
+            val packets = container.registerCounter("scoped_packets", "help", labelNames = labels)
+            val bitrate = container.registerLongGauge("scoped_bitrate", "help", labelNames = listOf("conference"))
+            val latency = container.registerHistogram("scoped_latency", "help", listOf("conference"), 1.0)
+            val info = container.registerInfo("scoped_info", "help", "", listOf("conference"))
+
+            val scope = container.createScope("c1")
+            val other = container.createScope("c2")
+            scope.child(packets, "send").inc()
+            scope.child(packets, "receive").add(2)
+            scope.child(bitrate).set(1000)
+            scope.child(latency).observe(0.5)
+            scope.setInfo(info, "value")
+            other.child(packets, "send").inc()
+
+            should("create series with the label values of the scope") {
+                packets.get(listOf("c1", "receive")) shouldBe 2
+                bitrate.get(listOf("c1")) shouldBe 1000
+            }
+            scope.close()
+            should("remove all of the series of the scope when it is closed") {
+                val text = container.getPrometheusMetrics(TextFormat.CONTENT_TYPE_004)
+                text.lines().filter { it.contains("\"c1\"") } shouldBe emptyList()
+                text.lines().any { it.startsWith("jitsi_scoped_packets_total{conference=\"c2\"") } shouldBe true
+            }
+            should("not allow new series once it is closed") {
+                shouldThrow<IllegalStateException> { scope.child(packets, "send") }
+            }
+            should("not allow a second open scope with the same label values") {
+                shouldThrow<IllegalStateException> { container.createScope("c2") }
+                container.createScope("c1").use { it.child(packets, "send").inc() }
+                scope.close()
+                packets.get(listOf("c2", "send")) shouldBe 1
+            }
+            should("not allow the metrics of another container") {
+                val foreign = MetricsContainer(CollectorRegistry()).registerCounter("scoped_packets", "help")
+                shouldThrow<IllegalArgumentException> { other.child(foreign) }
+            }
+        }
         context("Getting metrics with different accepted content types") {
             should("return the correct content type") {
                 mc.getMetrics(emptyList()).second shouldBe TextFormat.CONTENT_TYPE_OPENMETRICS_100
@@ -0,0 +1,184 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.metrics
+
+import io.kotest.core.spec.style.ShouldSpec
+import io.kotest.matchers.comparables.shouldBeLessThan
+import io.kotest.matchers.shouldBe
+import io.prometheus.client.CollectorRegistry
+import java.time.Duration
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class MetricsUpdaterTest : ShouldSpec() {
+    private val scheduler = Executors.newSingleThreadScheduledExecutor()
+    private val pool = Executors.newFixedThreadPool(4)
+
+    /** Keeps the scheduler busy, so that subtasks only run when the tests call updateMetrics(). */
+    private val schedulerBlocked = CountDownLatch(1).also { latch -> scheduler.execute { latch.await() } }
+
+    init {
+        context("Running subtasks sequentially") {
+            val updater = MetricsUpdater(scheduler, Duration.ofHours(1))
+            val thread = Thread.currentThread()
+            val runs = CopyOnWriteArrayList<Int>()
+            updater.addUpdateTask { throw IllegalStateException() }
+            updater.addUpdateTask { if (Thread.currentThread() == thread) runs.add(1) }
+            updater.addUpdateTask { if (Thread.currentThread() == thread) runs.add(2) }
+            updater.updateMetrics()
+            should("run them in order on the calling thread, even if one fails") {
+                runs shouldBe listOf(1, 2)
+            }
+            updater.stop()
+        }
+        context("Running subtasks with their own interval") {
+            val updater = MetricsUpdater(scheduler, Duration.ofMillis(100))
+            val everyUpdate = AtomicInteger()
+            val hourly = AtomicInteger()
+            updater.addUpdateTask { everyUpdate.incrementAndGet() }
+            updater.addUpdateTask(Duration.ofHours(1)) { hourly.incrementAndGet() }
+            repeat(3) { updater.updateMetrics() }
+            should("only run them when their interval elapsed") {
+                everyUpdate.get() shouldBe 3
+                hourly.get() shouldBe 1
+            }
+            updater.stop()
+        }
+        context("Running subtasks in parallel") {
+            val container = MetricsContainer(CollectorRegistry())
+            val updater = MetricsUpdater(
+                scheduler,
+                Duration.ofHours(1),
+                pool,
+                Duration.ofMillis(200),
+                container
+            )
+            val runs = AtomicInteger()
+            val started = CountDownLatch(2)
+            val release = CountDownLatch(1)
+            // Both subtasks must run at the same time for either to complete.
+            repeat(2) {
+                updater.addUpdateTask {
+                    started.countDown()
+                    started.await(1, TimeUnit.SECONDS)
+                    runs.incrementAndGet()
+                }
+            }
+            // A subtask which ignores interrupts, so it overruns the next update.
+            updater.addUpdateTask {
+                while (release.count > 0) {
+                    try {
+                        release.await()
+                    } catch (e: InterruptedException) {
+                        // Keep running
+                    }
+                }
+            }
+            val start = System.nanoTime()
+            updater.updateMetrics()
+            val elapsed = Duration.ofNanos(System.nanoTime() - start)
+
+            should("run them concurrently") {
+                runs.get() shouldBe 2
+            }
+            should("stop waiting for a subtask at its deadline") {
+                elapsed shouldBeLessThan Duration.ofSeconds(1)
+                container.registerSharedCounter("metrics_updater_subtask_timeouts_total", "help").get() shouldBe 1
+            }
+            context("and updating again while a subtask is still running") {
+                updater.updateMetrics()
+                should("skip it and count a missed interval") {
+                    runs.get() shouldBe 4
+                    container.registerSharedCounter("metrics_updater_missed_intervals_total", "help").get() shouldBe 1
+                }
+            }
+            should("share its metrics with another updater using the same container") {
+                val duration = container.registerSharedTimer("metrics_updater_subtask_duration_nanoseconds", "help")
+                val count = duration.get().count
+                val another = MetricsUpdater(scheduler, Duration.ofHours(1), metricsContainer = container)
+                another.addUpdateTask { }
+                another.updateMetrics()
+                another.stop()
+                duration.get().count shouldBe count + 1
+            }
+            release.countDown()
+            updater.stop()
+        }
+        context("Updating while a periodic update is still running a subtask") {
+            val periodicScheduler = Executors.newSingleThreadScheduledExecutor()
+            val container = MetricsContainer(CollectorRegistry())
+            val updater = MetricsUpdater(periodicScheduler, Duration.ofHours(1), metricsContainer = container)
+            val started = CountDownLatch(1)
+            val release = CountDownLatch(1)
+            val runs = AtomicInteger()
+            // The first (periodic) update starts right away and blocks until released.
+            updater.addUpdateTask {
+                started.countDown()
+                release.await()
+                runs.incrementAndGet()
+            }
+            started.await(1, TimeUnit.SECONDS) shouldBe true
+            Executors.newSingleThreadScheduledExecutor().apply {
+                schedule({ release.countDown() }, 50, TimeUnit.MILLISECONDS)
+                shutdown()
+            }
+            updater.updateMetrics()
+
+            should("wait for it and run it again before returning") {
+                runs.get() shouldBe 2
+                container.registerSharedCounter("metrics_updater_missed_intervals_total", "help").get() shouldBe 0
+            }
+            updater.stop()
+            periodicScheduler.shutdown()
+        }
+        context("Timing out subtasks queued on a saturated subtask executor") {
+            val saturated = ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, LinkedBlockingQueue())
+            val release = CountDownLatch(1)
+            saturated.execute { release.await() }
+            val container = MetricsContainer(CollectorRegistry())
+            val updater = MetricsUpdater(scheduler, Duration.ofHours(1), saturated, Duration.ofMillis(50), container)
+            val runs = AtomicInteger()
+            updater.addUpdateTask { runs.incrementAndGet() }
+            repeat(2) { updater.updateMetrics() }
+
+            should("cancel them, so that they do not start later") {
+                container.registerSharedCounter("metrics_updater_subtask_timeouts_total", "help").get() shouldBe 2
+                saturated.queue.size shouldBe 2
+                saturated.queue.all { (it as Future<*>).isCancelled } shouldBe true
+                runs.get() shouldBe 0
+            }
+            should("run them again once the executor is available") {
+                release.countDown()
+                updater.updateMetrics()
+                runs.get() shouldBe 1
+            }
+            updater.stop()
+            saturated.shutdown()
+        }
+        afterSpec {
+            schedulerBlocked.countDown()
+            scheduler.shutdown()
+            pool.shutdown()
+        }
+    }
+}
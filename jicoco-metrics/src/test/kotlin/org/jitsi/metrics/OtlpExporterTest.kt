@@ -0,0 +1,235 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.metrics
+
+import com.sun.net.httpserver.HttpServer
+import io.kotest.core.spec.style.ShouldSpec
+import io.kotest.matchers.collections.shouldContainAll
+import io.kotest.matchers.comparables.shouldBeGreaterThan
+import io.kotest.matchers.comparables.shouldBeLessThan
+import io.kotest.matchers.shouldBe
+import io.prometheus.client.CollectorRegistry
+import org.jitsi.metrics.ProtobufParser.parse
+import org.jitsi.metrics.ProtobufParser.readFixed64
+import java.net.InetSocketAddress
+import java.net.URI
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class OtlpExporterTest : ShouldSpec() {
+    private val scheduler = Executors.newSingleThreadScheduledExecutor()
+
+    /** Requests received by [server], and the statuses it responds with (200 when there are none). */
+    private val received = LinkedBlockingQueue<ByteArray>()
+    private val statuses = LinkedBlockingQueue<Int>()
+    private val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0).apply {
+        createContext("/v1/metrics") { exchange ->
+            received.add(exchange.requestBody.readBytes())
+            exchange.sendResponseHeaders(statuses.poll() ?: 200, -1)
+            exchange.close()
+        }
+        // Responds once [slowResponse] is released.
+        createContext("/slow") { exchange ->
+            exchange.requestBody.readBytes()
+            slowResponse.await(5, TimeUnit.SECONDS)
+            exchange.sendResponseHeaders(200, -1)
+            exchange.close()
+        }
+        // Responds with 503 once [unavailableResponse] is released.
+        createContext("/unavailable") { exchange ->
+            exchange.requestBody.readBytes()
+            unavailableRequest.countDown()
+            unavailableResponse.await(5, TimeUnit.SECONDS)
+            exchange.sendResponseHeaders(503, -1)
+            exchange.close()
+        }
+        executor = Executors.newCachedThreadPool()
+        start()
+    }
+    private val endpoint = URI("http://127.0.0.1:${server.address.port}/v1/metrics")
+    private val slowResponse = CountDownLatch(1)
+    private val unavailableRequest = CountDownLatch(1)
+    private val unavailableResponse = CountDownLatch(1)
+
+    init {
+        context("Exporting metrics") {
+            val registry = CollectorRegistry()
+            // Another container sharing the registry.
+            MetricsContainer(registry, "other").registerLongGauge("queue_size", "Queue size.", 1)
+            val container = MetricsContainer(registry)
+            container.registerCounter("requests", "Requests.", labelNames = listOf("type")).apply {
+                inc(listOf("a"))
+                addAndGet(5, listOf("b"))
+            }
+            container.registerLongGauge("queue_size", "Queue size.", 7)
+            container.registerHistogram("latency", "Latency.", 1.0, 10.0).apply {
+                observe(0.5)
+                observe(5.0)
+                observe(7.0)
+                observe(50.0)
+            }
+            val exporter =
+                OtlpExporter(container, endpoint, scheduler, resourceAttributes = mapOf("service.name" to "x"))
+            exporter.export()
+            val request = received.poll(5, TimeUnit.SECONDS)!!
+            val resourceMetrics = parse(request).single { it.first == 1 }.bytes
+            val scopeMetrics = parse(resourceMetrics).single { it.first == 2 }.bytes
+            val metrics = parse(scopeMetrics).filter { it.first == 2 }.map { parse(it.bytes) }
+            val byName = metrics.associateBy { metric -> String(metric.single { it.first == 1 }.bytes) }
+
+            should("export only the metrics of the container") {
+                byName.keys shouldBe setOf(
+                    "jitsi_requests",
+                    "jitsi_queue_size",
+                    "jitsi_latency",
+                    "jitsi_otlp_exporter_exported_requests",
+                    "jitsi_otlp_exporter_failed_requests",
+                    "jitsi_otlp_exporter_dropped_requests"
+                )
+            }
+            should("export all metrics with their resource attributes") {
+                byName.keys shouldContainAll listOf("jitsi_requests", "jitsi_queue_size", "jitsi_latency")
+                val resource = parse(parse(resourceMetrics).single { it.first == 1 }.bytes)
+                String(parse(resource.single().bytes).first().bytes) shouldBe "service.name"
+            }
+            should("export counters as monotonic sums with a point per series") {
+                val sum = parse(byName["jitsi_requests"]!!.single { it.first == 7 }.bytes)
+                sum.single { it.first == 3 }.second shouldBe 1L
+                val values = sum.filter { it.first == 1 }.map { point ->
+                    java.lang.Double.longBitsToDouble(parse(point.bytes).single { it.first == 4 }.second as Long)
+                }
+                values.sorted() shouldBe listOf(1.0, 5.0)
+            }
+            should("export histograms with non-cumulative buckets") {
+                val histogram = parse(byName["jitsi_latency"]!!.single { it.first == 9 }.bytes)
+                val point = parse(histogram.single { it.first == 1 }.bytes)
+                point.single { it.first == 4 }.second shouldBe 4L
+                val counts = point.single { it.first == 6 }.bytes
+                (0 until counts.size / 8).map { readFixed64(counts, it * 8) } shouldBe listOf(1L, 2L, 1L)
+            }
+            exporter.stop()
+        }
+        context("When the collector is unavailable") {
+            val container = MetricsContainer(CollectorRegistry())
+            container.registerLongGauge("queue_size", "Queue size.", 7)
+            val exporter = OtlpExporter(container, endpoint, scheduler, initialBackoff = Duration.ofMillis(10))
+            received.clear()
+            statuses.add(503)
+            exporter.export()
+            val first = received.poll(5, TimeUnit.SECONDS)!!
+            val retried = received.poll(5, TimeUnit.SECONDS)!!
+            should("retry the request") {
+                retried.toList() shouldBe first.toList()
+                waitUntil { exporter.pendingBytes == 0 }
+                exporter.pendingBytes shouldBe 0
+            }
+            exporter.stop()
+        }
+        context("When the collector stays down") {
+            val container = MetricsContainer(CollectorRegistry())
+            container.registerLongGauge("queue_size", "Queue size.", 7)
+            val maxPendingBytes = 1000
+            val exporter = OtlpExporter(
+                container,
+                endpoint,
+                scheduler,
+                maxPendingBytes = maxPendingBytes,
+                initialBackoff = Duration.ofHours(1)
+            )
+            repeat(50) {
+                statuses.add(503)
+                exporter.export()
+            }
+            should("bound the memory used by pending requests and count the dropped ones") {
+                exporter.pendingBytes shouldBeGreaterThan 0
+                exporter.pendingBytes shouldBeLessThan maxPendingBytes + 1
+                exporter.droppedCount shouldBeGreaterThan 0L
+            }
+            exporter.stop()
+            statuses.clear()
+        }
+        context("Creating several exporters for the same container") {
+            val container = MetricsContainer(CollectorRegistry())
+            val first = OtlpExporter(container, endpoint, scheduler)
+            first.stop()
+            val second = OtlpExporter(container, endpoint, scheduler)
+            OtlpExporter(container, endpoint, scheduler)
+            should("share their metrics") {
+                statuses.add(400)
+                received.clear()
+                second.export()
+                received.poll(5, TimeUnit.SECONDS)
+                first.droppedCount shouldBe 1
+            }
+        }
+        context("When the collector is slow") {
+            val container = MetricsContainer(CollectorRegistry())
+            container.registerLongGauge("queue_size", "Queue size.", 7)
+            val exporter = OtlpExporter(container, URI(endpoint.toString().replace("v1/metrics", "slow")), scheduler)
+            val sender = Executors.newSingleThreadExecutor()
+            sender.execute { exporter.export() }
+            Thread.sleep(100)
+            should("not block exporting or stopping while a request is being sent") {
+                val start = System.nanoTime()
+                exporter.export()
+                exporter.pendingBytes shouldBeGreaterThan 0
+                exporter.stop()
+                Duration.ofNanos(System.nanoTime() - start) shouldBeLessThan Duration.ofSeconds(1)
+                exporter.pendingBytes shouldBe 0
+            }
+            slowResponse.countDown()
+            sender.shutdown()
+        }
+        context("When the executor is shut down while the collector is unavailable") {
+            val container = MetricsContainer(CollectorRegistry())
+            container.registerLongGauge("queue_size", "Queue size.", 7)
+            val retryScheduler = Executors.newSingleThreadScheduledExecutor()
+            val exporter = OtlpExporter(
+                container,
+                URI(endpoint.toString().replace("v1/metrics", "unavailable")),
+                retryScheduler,
+                initialBackoff = Duration.ofMillis(10)
+            )
+            val sender = Executors.newSingleThreadExecutor()
+            val sent = sender.submit { exporter.export() }
+            unavailableRequest.await(5, TimeUnit.SECONDS) shouldBe true
+            retryScheduler.shutdown()
+            unavailableResponse.countDown()
+            should("drop the request instead of failing to schedule a retry") {
+                sent.get(5, TimeUnit.SECONDS)
+                exporter.pendingBytes shouldBe 0
+                exporter.droppedCount shouldBe 1
+                exporter.stop()
+            }
+            sender.shutdown()
+        }
+        afterSpec {
+            server.stop(0)
+            scheduler.shutdownNow()
+        }
+    }
+
+    private fun waitUntil(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+}
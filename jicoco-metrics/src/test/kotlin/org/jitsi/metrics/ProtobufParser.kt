@@ -0,0 +1,74 @@
+/*
+ * Copyright @ 2026 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.metrics
+
+/** A minimal parser of protobuf messages, for checking the output of [ProtobufWriter]. */
+object ProtobufParser {
+    /** Parses the fields of [message], with varint and fixed64 values as longs and length-delimited ones as bytes. */
+    fun parse(message: ByteArray): List<Pair<Int, Any>> {
+        val fields = ArrayList<Pair<Int, Any>>()
+        val position = intArrayOf(0)
+        while (position[0] < message.size) {
+            val tag = readVarint(message, position).toInt()
+            val value: Any = when (tag and 7) {
+                0 -> readVarint(message, position)
+                1 -> readFixed64(message, position[0]).also { position[0] += 8 }
+                2 -> readBytes(message, position)
+                else -> throw IllegalArgumentException("Unsupported wire type in tag $tag")
+            }
+            fields.add((tag ushr 3) to value)
+        }
+        return fields
+    }
+
+    /** Splits a sequence of length-delimited messages. */
+    fun parseDelimited(messages: ByteArray): List<ByteArray> {
+        val result = ArrayList<ByteArray>()
+        val position = intArrayOf(0)
+        while (position[0] < messages.size) {
+            result.add(readBytes(messages, position))
+        }
+        return result
+    }
+
+    fun readFixed64(bytes: ByteArray, offset: Int): Long =
+        (0 until 8).fold(0L) { value, i -> value or ((bytes[offset + i].toLong() and 0xff) shl (8 * i)) }
+
+    private fun readBytes(bytes: ByteArray, position: IntArray): ByteArray {
+        val length = readVarint(bytes, position).toInt()
+        return bytes.copyOfRange(position[0], position[0] + length).also { position[0] += length }
+    }
+
+    private fun readVarint(bytes: ByteArray, position: IntArray): Long {
+        var value = 0L
+        var shift = 0
+        while (true) {
+            val b = bytes[position[0]++].toInt()
+            value = value or ((b and 0x7f).toLong() shl shift)
+            if (b and 0x80 == 0) {
+                return value
+            }
+            shift += 7
+        }
+    }
+}
+
+val Pair<Int, Any>.bytes: ByteArray
+    get() = second as ByteArray
+
+/** Returns the fields of a message numbered [field]. */
+fun List<Pair<Int, Any>>.field(field: Int) = filter { it.first == field }